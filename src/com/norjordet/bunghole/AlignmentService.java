@@ -14,17 +14,27 @@ package com.norjordet.bunghole;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -34,6 +44,10 @@ import com.maxprograms.converters.FileFormats;
 import com.maxprograms.languages.Language;
 import com.maxprograms.languages.LanguageUtils;
 import com.norjordet.bunghole.models.Alignment;
+import com.norjordet.bunghole.models.AlignmentImporter;
+import com.norjordet.bunghole.models.AlignmentSnapshot;
+import com.norjordet.bunghole.models.EditQueue;
+import com.norjordet.bunghole.models.SegmentTable;
 import com.maxprograms.xml.Document;
 import com.maxprograms.xml.Element;
 import com.maxprograms.xml.SAXBuilder;
@@ -42,9 +56,19 @@ import com.maxprograms.xml.SAXBuilder;
 import com.norjordet.bunghole.alignment.AlignmentEngine;
 import com.norjordet.bunghole.alignment.AlignmentPair;
 import com.norjordet.bunghole.alignment.AlignmentResult;
-import com.norjordet.bunghole.ai.ClaudeAIService;
+import com.norjordet.bunghole.alignment.PairScorer;
+import com.norjordet.bunghole.alignment.TranslationMemory;
+import com.norjordet.bunghole.ai.AIBatchDispatcher;
+import com.norjordet.bunghole.ai.AIProvider;
+import com.norjordet.bunghole.ai.AIProviderFactory;
+import com.norjordet.bunghole.ai.AIResponseCache;
+import com.norjordet.bunghole.ai.ClaudeAIServiceAdapter;
 import com.norjordet.bunghole.ai.CostEstimator;
 import com.norjordet.bunghole.ai.CostEstimator.CostEstimate;
+import com.norjordet.bunghole.ai.PromptBatch;
+import com.norjordet.bunghole.ai.PromptBatcher;
+import com.norjordet.bunghole.ai.ReviewScheduler;
+import com.norjordet.bunghole.ai.UsageLedger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -59,33 +83,55 @@ public class AlignmentService {
 	protected String status;
 
 	protected boolean loading;
+	protected volatile boolean analyzing;
 	protected String loadError;
-	protected Alignment alignment;
+	protected volatile Alignment alignment;
 
-	protected boolean saving;
+	// Every change to the open alignment goes through this queue
+	private EditQueue edits;
+
+	protected volatile boolean saving;
 	protected String saveError;
 
+	// Saves run one after another on a background thread, each writing the
+	// snapshot taken when it was requested
+	private ExecutorService saveExecutor;
+	private AtomicInteger pendingSaves;
+
 	// NEW: AI-enhanced alignment components
 	private AlignmentEngine alignmentEngine;
-	private ClaudeAIService claudeAI;
+	private PairScorer pairScorer;
+	private AIProvider aiProvider;
 	private AlignmentResult currentAlignmentResult;
+	protected volatile boolean reviewing;
+	protected volatile int reviewDone;
+	protected volatile int reviewTotal;
+	private AtomicInteger reviewImproved = new AtomicInteger();
 
 	public AlignmentService() {
 		loading = false;
 		saving = false;
 		aligning = false;
+		edits = new EditQueue();
+		pendingSaves = new AtomicInteger();
+		saveExecutor = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "bunghole-save");
+			thread.setDaemon(true);
+			return thread;
+		});
 
 		// Initialize alignment engine with app path
 		String appPath = System.getProperty("user.dir");
 		this.alignmentEngine = new AlignmentEngine(appPath);
+		this.pairScorer = PairScorer.load(Path.of(appPath, "dictionaries"));
 
-		// Initialize Claude AI if API key is available
-		String apiKey = System.getenv("ANTHROPIC_API_KEY");
-		if (apiKey != null && !apiKey.isEmpty()) {
-			this.claudeAI = new ClaudeAIService(apiKey);
-			logger.log(Level.INFO, "Claude AI service initialized");
+		// Initialize the configured AI provider if its API key is available
+		AIProvider provider = AIProviderFactory.getReviewProvider();
+		if (provider.isConfigured()) {
+			this.aiProvider = provider;
+			logger.log(Level.INFO, "{0} AI service initialized", provider.getProviderName());
 		} else {
-			logger.log(Level.INFO, "Claude AI not available (no API key)");
+			logger.log(Level.INFO, "AI review not available (no API key)");
 		}
 	}
 
@@ -94,10 +140,10 @@ public class AlignmentService {
 	 */
 	public void setClaudeAPIKey(String apiKey) {
 		if (apiKey != null && !apiKey.isEmpty()) {
-			this.claudeAI = new ClaudeAIService(apiKey);
+			this.aiProvider = AIProviderFactory.withHedging(new ClaudeAIServiceAdapter(apiKey));
 			logger.log(Level.INFO, "Claude AI service configured");
 		} else {
-			this.claudeAI = null;
+			this.aiProvider = null;
 		}
 	}
 
@@ -253,12 +299,14 @@ public class AlignmentService {
 						recurse(list, doc.getRootElement());
 						algn.setTargets(list);
 						Files.delete(tgtXlf.toPath());
+						algn.publish();
 
 						// NEW: Run Hunalign/Gale-Church alignment algorithm
 						logger.log(Level.INFO, "Running alignment...");
 						currentAlignmentResult = alignmentEngine.performAlignment(
 							algn.getSources(),
-							algn.getTargets()
+							algn.getTargets(),
+							memories(json, json.getString("srcLang"), json.getString("tgtLang"))
 						);
 
 						// Store confidence scores and methods in alignment object
@@ -268,6 +316,7 @@ public class AlignmentService {
 								algn.setConfidenceAndMethod(segmentId, pair.getConfidence(), pair.getNote());
 							}
 						}
+						algn.publish();
 
 						logger.log(Level.INFO, String.format(
 							"Alignment complete: %d pairs, %.1f%% confidence, %d uncertain",
@@ -315,6 +364,23 @@ public class AlignmentService {
 		return result;
 	}
 
+	/**
+	 * Reference translation memories listed in "memories", or null if there
+	 * are none
+	 */
+	private static TranslationMemory memories(JSONObject json, String srcLang, String tgtLang)
+			throws IOException, SAXException, ParserConfigurationException {
+		JSONArray files = json.optJSONArray("memories");
+		if (files == null || files.isEmpty()) {
+			return null;
+		}
+		List<String> list = new ArrayList<>();
+		for (int i = 0; i < files.length(); i++) {
+			list.add(files.getString(i));
+		}
+		return TranslationMemory.load(list, srcLang, tgtLang);
+	}
+
 	public JSONObject alignmentStatus() {
 		JSONObject result = new JSONObject();
 		result.put("aligning", aligning);
@@ -334,42 +400,118 @@ public class AlignmentService {
 				@Override
 				public void run() {
 					try {
-						alignment = new Alignment(json.getString("file"));
+						Alignment algn = new Alignment(json.getString("file"));
+
+						// Show the file right away; confidence scores follow when the analysis ends
+						alignment = algn;
+						analyzing = true;
+						status = "";
+						loading = false;
+						if (algn.isScored()) {
+							// scores were restored from the binary snapshot
+							logger.log(Level.INFO, "Using stored confidence scores");
+							currentAlignmentResult = null;
+							return;
+						}
 
 						// NEW: Run Hunalign/Gale-Church on existing alignment file
 						logger.log(Level.INFO, "Analyzing existing alignment...");
-						currentAlignmentResult = alignmentEngine.performAlignment(
-							alignment.getSources(),
-							alignment.getTargets()
+						AlignmentSnapshot view = algn.snapshot();
+						AlignmentResult analysis = alignmentEngine.performAlignment(
+							view.getSources(),
+							view.getTargets(),
+							memories(json, view.getSrcLang().getCode(), view.getTgtLang().getCode())
 						);
+						currentAlignmentResult = analysis;
 
 						// Store confidence scores in alignment object
-						for (AlignmentPair pair : currentAlignmentResult.getAllPairs()) {
-							if (!pair.getSourceIndices().isEmpty()) {
-								int segmentId = pair.getSourceIndices().get(0);
-								alignment.setConfidenceAndMethod(segmentId, pair.getConfidence(), pair.getNote());
+						edits.submit(algn, a -> {
+							for (AlignmentPair pair : analysis.getAllPairs()) {
+								if (!pair.getSourceIndices().isEmpty()) {
+									int segmentId = pair.getSourceIndices().get(0);
+									a.setConfidenceAndMethod(segmentId, pair.getConfidence(), pair.getNote());
+								}
 							}
-						}
+							return null;
+						});
 
 						logger.log(Level.INFO, String.format(
 							"Analysis complete: %d pairs, %.1f%% confidence, %d uncertain",
-							currentAlignmentResult.getTotalPairs(),
-							currentAlignmentResult.getOverallConfidence() * 100,
-							currentAlignmentResult.getUncertainPairs().size()
+							analysis.getTotalPairs(),
+							analysis.getOverallConfidence() * 100,
+							analysis.getUncertainPairs().size()
 						));
+					} catch (JSONException | SAXException | IOException | ParserConfigurationException
+							| UncheckedIOException e) {
+						logger.log(Level.ERROR, e);
+						loadError = e.getMessage();
+						status = "";
+						loading = false;
+					} finally {
+						analyzing = false;
+					}
+				}
+			}.start();
+			result.put(Constants.STATUS, Constants.SUCCESS);
+			return result;
+		} catch (IllegalThreadStateException e) {
+			logger.log(Level.ERROR, e);
+			loadError = e.getMessage();
+			status = "";
+			loading = false;
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
+		return result;
+	}
 
+	/**
+	 * Open a bilingual TMX, TSV or XLSX file as a new alignment. Pairs stay as
+	 * they are in the file; they are only scored, in the background, and the
+	 * alignment is then saved to "alignmentFile".
+	 */
+	public JSONObject importFile(JSONObject json) {
+		JSONObject result = new JSONObject();
+		loading = true;
+		loadError = "";
+		status = Messages.getString("AlignmentService.6");
+		try {
+			new Thread() {
+
+				@Override
+				public void run() {
+					try {
+						Alignment algn = AlignmentImporter.read(json.getString("file"), json.optString("srcLang"),
+								json.optString("tgtLang"));
+						algn.setFile(json.getString("alignmentFile"));
+
+						alignment = algn;
+						analyzing = true;
+						currentAlignmentResult = null;
 						status = "";
 						loading = false;
-					} catch (JSONException | SAXException | IOException | ParserConfigurationException e) {
+
+						double[] scores = AlignmentImporter.score(algn.snapshot());
+						edits.submit(algn, a -> {
+							for (int i = 0; i < scores.length; i++) {
+								a.setConfidenceAndMethod(i, scores[i], AlignmentImporter.METHOD);
+							}
+							return null;
+						});
+						logger.log(Level.INFO, "Imported {0} pairs from {1}", scores.length, json.getString("file"));
+						saveFile();
+					} catch (JSONException | SAXException | IOException | ParserConfigurationException
+							| UncheckedIOException e) {
 						logger.log(Level.ERROR, e);
 						loadError = e.getMessage();
 						status = "";
 						loading = false;
+					} finally {
+						analyzing = false;
 					}
 				}
 			}.start();
 			result.put(Constants.STATUS, Constants.SUCCESS);
-			return result;
 		} catch (IllegalThreadStateException e) {
 			logger.log(Level.ERROR, e);
 			loadError = e.getMessage();
@@ -384,6 +526,7 @@ public class AlignmentService {
 	public JSONObject loadingStatus() {
 		JSONObject result = new JSONObject();
 		result.put("loading", loading);
+		result.put("analyzing", analyzing);
 		result.put("loadError", loadError);
 		result.put("status", status);
 		return result;
@@ -401,12 +544,73 @@ public class AlignmentService {
 		return result;
 	}
 
+	public JSONObject getFilteredRows(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
+		JSONObject result = alignment.getFilteredRows(json);
+		result.put(Constants.STATUS, Constants.SUCCESS);
+		return result;
+	}
+
+	/**
+	 * Locate the next (or previous) uncertain segment from a given row
+	 */
+	public JSONObject nextUncertain(JSONObject json) {
+		JSONObject result = new JSONObject();
+		if (alignment == null) {
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, "No alignment file open");
+			return result;
+		}
+		result = alignment.nextUncertain(json);
+		result.put(Constants.STATUS, Constants.SUCCESS);
+		return result;
+	}
+
+	/**
+	 * Find rows whose source or target contains a text or matches a regular
+	 * expression, one page at a time
+	 */
+	public JSONObject search(JSONObject json) {
+		JSONObject result = new JSONObject();
+		if (alignment == null) {
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, "No alignment file open");
+			return result;
+		}
+		try {
+			result = alignment.search(json);
+			result.put(Constants.STATUS, Constants.SUCCESS);
+		} catch (JSONException | PatternSyntaxException e) {
+			logger.log(Level.ERROR, e);
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
+		return result;
+	}
+
 	public JSONObject exportTMX(JSONObject json) {
 		JSONObject result = new JSONObject();
 		try {
-			alignment.exportTMX(json.getString("file"));
+			int units = alignment.exportTMX(json.getString("file"), json);
+			result.put("units", units);
+			result.put(Constants.STATUS, Constants.SUCCESS);
+		} catch (JSONException | IOException e) {
+			logger.log(Level.ERROR, e);
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Write TMX, TSV and Excel files from a single pass over the segments
+	 */
+	public JSONObject exportAll(JSONObject json) {
+		JSONObject result = new JSONObject();
+		try {
+			int rows = alignment.exportAll(json);
+			result.put("rows", rows);
 			result.put(Constants.STATUS, Constants.SUCCESS);
-		} catch (JSONException | IOException | SAXException | ParserConfigurationException e) {
+		} catch (IOException e) {
 			logger.log(Level.ERROR, e);
 			result.put(Constants.STATUS, Constants.ERROR);
 			result.put(Constants.REASON, e.getMessage());
@@ -416,31 +620,31 @@ public class AlignmentService {
 
 	public JSONObject saveFile() {
 		JSONObject result = new JSONObject();
+		AlignmentSnapshot snapshot = alignment.snapshot();
+		pendingSaves.incrementAndGet();
 		saving = true;
 		saveError = "";
 		status = Messages.getString("AlignmentService.7");
 
 		try {
-			new Thread() {
-
-				@Override
-				public void run() {
-					try {
-						alignment.save();
-						saving = false;
-						status = "";
-					} catch (JSONException | IOException e) {
-						saving = false;
-						logger.log(Level.ERROR, e);
-						saveError = e.getMessage();
-						status = "";
-					}
+			saveExecutor.execute(() -> {
+				try {
+					snapshot.save();
+				} catch (IOException e) {
+					logger.log(Level.ERROR, e);
+					saveError = e.getMessage();
 				}
-			}.start();
+				if (pendingSaves.decrementAndGet() == 0) {
+					saving = false;
+					status = "";
+				}
+			});
 			result.put(Constants.STATUS, Constants.SUCCESS);
-		} catch (IllegalThreadStateException e) {
+		} catch (RejectedExecutionException e) {
 			logger.log(Level.ERROR, e);
-			saving = false;
+			if (pendingSaves.decrementAndGet() == 0) {
+				saving = false;
+			}
 			saveError = e.getMessage();
 			status = "";
 			result.put(Constants.STATUS, Constants.ERROR);
@@ -458,9 +662,25 @@ public class AlignmentService {
 	}
 
 	public JSONObject removeTags() {
+		return edit(a -> {
+			a.removeTags();
+			return null;
+		});
+	}
+
+	/**
+	 * Run a change on the writer thread and report its outcome
+	 */
+	private JSONObject edit(EditQueue.Command<?> command) {
 		JSONObject result = new JSONObject();
-		alignment.removeTags();
-		result.put(Constants.STATUS, Constants.SUCCESS);
+		try {
+			edits.submit(alignment, command);
+			result.put(Constants.STATUS, Constants.SUCCESS);
+		} catch (IOException | SAXException | ParserConfigurationException e) {
+			logger.log(Level.ERROR, e);
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
 		return result;
 	}
 
@@ -482,7 +702,7 @@ public class AlignmentService {
 		try {
 			alignment.exportExcel(json.getString("file"));
 			result.put(Constants.STATUS, Constants.SUCCESS);
-		} catch (IOException | JSONException | SAXException | ParserConfigurationException e) {
+		} catch (IOException | JSONException e) {
 			logger.log(Level.ERROR, e);
 			result.put(Constants.STATUS, Constants.ERROR);
 			result.put(Constants.REASON, e.getMessage());
@@ -491,16 +711,18 @@ public class AlignmentService {
 	}
 
 	public JSONObject setLanguages(JSONObject json) {
-		JSONObject result = new JSONObject();
 		try {
-			alignment.setLanguages(json);
-			result.put(Constants.STATUS, Constants.SUCCESS);
-		} catch (JSONException | IOException | SAXException | ParserConfigurationException e) {
+			return edit(a -> {
+				a.setLanguages(json);
+				return null;
+			});
+		} catch (JSONException e) {
 			logger.log(Level.ERROR, e);
+			JSONObject result = new JSONObject();
 			result.put(Constants.STATUS, Constants.ERROR);
 			result.put(Constants.REASON, e.getMessage());
+			return result;
 		}
-		return result;
 	}
 
 	public JSONObject closeFile() {
@@ -512,52 +734,92 @@ public class AlignmentService {
 
 	public JSONObject removeDuplicates() {
 		JSONObject result = new JSONObject();
-		alignment.removeDuplicates();
-		result.put(Constants.STATUS, Constants.SUCCESS);
+		try {
+			int removed = edits.submit(alignment, a -> a.removeDuplicates());
+			result.put(Constants.STATUS, Constants.SUCCESS);
+			result.put("removed", removed);
+		} catch (IOException | SAXException | ParserConfigurationException e) {
+			logger.log(Level.ERROR, e);
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
 		return result;
 	}
 
-	public JSONObject renameFile(JSONObject json) {
+	/**
+	 * Cluster near-duplicate pairs; with "remove" set only the first pair of
+	 * each cluster is kept
+	 */
+	public JSONObject findNearDuplicates(JSONObject json) {
 		JSONObject result = new JSONObject();
-		alignment.setFile(json.getString("file"));
-		result.put(Constants.STATUS, Constants.SUCCESS);
+		try {
+			result = edits.submit(alignment, a -> a.findNearDuplicates(json));
+			result.put(Constants.STATUS, Constants.SUCCESS);
+		} catch (IOException | SAXException | ParserConfigurationException e) {
+			logger.log(Level.ERROR, e);
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
 		return result;
 	}
 
+	public JSONObject renameFile(JSONObject json) {
+		return edit(a -> {
+			a.setFile(json.getString("file"));
+			return null;
+		});
+	}
+
 	public JSONObject removeSegment(JSONObject json) {
-		JSONObject result = new JSONObject();
-		alignment.removeSegment(json);
-		result.put(Constants.STATUS, Constants.SUCCESS);
-		return result;
+		return edit(a -> {
+			a.removeSegment(json);
+			return null;
+		});
 	}
 
 	public JSONObject segmentDown(JSONObject json) {
-		JSONObject result = new JSONObject();
-		alignment.segmentDown(json);
-		result.put(Constants.STATUS, Constants.SUCCESS);
-		return result;
+		return edit(a -> {
+			a.segmentDown(json);
+			return null;
+		});
 	}
 
 	public JSONObject segmentUp(JSONObject json) {
-		JSONObject result = new JSONObject();
-		alignment.segmentUp(json);
-		result.put(Constants.STATUS, Constants.SUCCESS);
-		return result;
+		return edit(a -> {
+			a.segmentUp(json);
+			return null;
+		});
 	}
 
 	public JSONObject mergeNext(JSONObject json) {
-		JSONObject result = new JSONObject();
-		alignment.mergeNext(json);
-		result.put(Constants.STATUS, Constants.SUCCESS);
-		return result;
+		return edit(a -> {
+			a.mergeNext(json);
+			return null;
+		});
 	}
 
 	public JSONObject saveData(JSONObject json) {
+		return edit(a -> {
+			a.saveData(json);
+			return null;
+		});
+	}
+
+	/**
+	 * Replace text in sources or targets. A dry run only reports matches and
+	 * previews, so it does not wait for the writer.
+	 */
+	public JSONObject replaceText(JSONObject json) {
 		JSONObject result = new JSONObject();
 		try {
-			alignment.saveData(json);
+			if (json.optBoolean("dryRun", false)) {
+				result = alignment.replaceText(json);
+			} else {
+				result = edits.submit(alignment, a -> a.replaceText(json));
+			}
 			result.put(Constants.STATUS, Constants.SUCCESS);
-		} catch (SAXException | IOException | ParserConfigurationException e) {
+		} catch (IOException | SAXException | ParserConfigurationException | JSONException
+				| IllegalArgumentException e) {
 			logger.log(Level.ERROR, e);
 			result.put(Constants.STATUS, Constants.ERROR);
 			result.put(Constants.REASON, e.getMessage());
@@ -565,19 +827,53 @@ public class AlignmentService {
 		return result;
 	}
 
-	public JSONObject replaceText(JSONObject json) {
+	/**
+	 * Revert the last edit command
+	 */
+	public JSONObject undo() {
+		return history(Alignment::undo);
+	}
+
+	/**
+	 * Repeat the last undone edit command
+	 */
+	public JSONObject redo() {
+		return history(Alignment::redo);
+	}
+
+	private JSONObject history(EditQueue.Command<JSONObject> command) {
 		JSONObject result = new JSONObject();
-		alignment.replaceText(json);
-		result.put(Constants.STATUS, Constants.SUCCESS);
+		if (alignment == null) {
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, "No alignment file open");
+			return result;
+		}
+		try {
+			result = edits.submit(alignment, command);
+			result.put(Constants.STATUS, Constants.SUCCESS);
+		} catch (IOException | SAXException | ParserConfigurationException e) {
+			logger.log(Level.ERROR, e);
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, e.getMessage());
+		}
 		return result;
 	}
 
-	public JSONObject splitSegment(JSONObject json) {
+	/**
+	 * Apply a batch of structural and text edits as a single change
+	 */
+	public JSONObject applyEdits(JSONObject json) {
 		JSONObject result = new JSONObject();
+		if (alignment == null) {
+			result.put(Constants.STATUS, Constants.ERROR);
+			result.put(Constants.REASON, "No alignment file open");
+			return result;
+		}
 		try {
-			alignment.splitSegment(json);
+			result = edits.submit(alignment, a -> a.applyEdits(json));
 			result.put(Constants.STATUS, Constants.SUCCESS);
-		} catch (SAXException | IOException | ParserConfigurationException e) {
+		} catch (IOException | SAXException | ParserConfigurationException | JSONException
+				| IllegalArgumentException | IndexOutOfBoundsException e) {
 			logger.log(Level.ERROR, e);
 			result.put(Constants.STATUS, Constants.ERROR);
 			result.put(Constants.REASON, e.getMessage());
@@ -585,12 +881,20 @@ public class AlignmentService {
 		return result;
 	}
 
+	public JSONObject splitSegment(JSONObject json) {
+		return edit(a -> {
+			a.splitSegment(json);
+			return null;
+		});
+	}
+
 	// ==================== NEW: AI-ENHANCED ALIGNMENT METHODS ====================
 
 	/**
-	 * Get cost estimate for AI improvement
+	 * Get cost estimate for AI improvement; with a budget, also what part of
+	 * the review it covers
 	 */
-	public JSONObject estimateAICost() {
+	public JSONObject estimateAICost(JSONObject json) {
 		JSONObject result = new JSONObject();
 		try {
 			if (alignment == null) {
@@ -618,28 +922,11 @@ public class AlignmentService {
 				return result;
 			}
 
-			// Build AlignmentPairs for uncertain segments
+			// Pairs the local scorer confirms need no AI review
 			List<Element> sources = alignment.getSources();
 			List<Element> targets = alignment.getTargets();
-			List<AlignmentPair> uncertainPairs = new ArrayList<>();
-
-			for (Integer segmentId : uncertainIds) {
-				List<Integer> srcIndices = new ArrayList<>();
-				List<Integer> tgtIndices = new ArrayList<>();
-
-				if (segmentId < sources.size()) {
-					srcIndices.add(segmentId);
-				}
-				if (segmentId < targets.size()) {
-					tgtIndices.add(segmentId);
-				}
-
-				double confidence = alignment.getConfidence(segmentId);
-				String note = alignment.getSegmentInfo(segmentId).manuallyMarked ?
-					"Manually marked for review" : "Low confidence";
-
-				uncertainPairs.add(new AlignmentPair(srcIndices, tgtIndices, confidence, note));
-			}
+			Map<Integer, Double> confirmed = new TreeMap<>();
+			List<AlignmentPair> uncertainPairs = reviewPairs(uncertainIds, sources, targets, confirmed);
 
 			List<String> sourceStrings = alignmentEngine.getTextStrings(
 				new ArrayList<>(sources)
@@ -648,14 +935,36 @@ public class AlignmentService {
 				new ArrayList<>(targets)
 			);
 
+			if (uncertainPairs.isEmpty()) {
+				result.put(Constants.STATUS, Constants.SUCCESS);
+				result.put("needsReview", false);
+				result.put("confirmedLocally", confirmed.size());
+				result.put("cost", 0.0);
+				result.put("pairsToReview", 0);
+				result.put("inputTokens", 0);
+				result.put("outputTokens", 0);
+				result.put("totalTokens", 0);
+				result.put("estimatedCost", 0.0);
+				result.put("formattedCost", "$0.00");
+				return result;
+			}
+
+			// token ratios are calibrated from the usage measured for the
+			// language pair
+			String languages = languages();
+			ReviewScheduler scheduler = scheduler(json);
 			CostEstimate estimate = CostEstimator.estimateCost(
 				sourceStrings,
 				targetStrings,
-				uncertainPairs
+				uncertainPairs,
+				languages,
+				scheduler.getInputPrice(),
+				scheduler.getOutputPrice()
 			);
 
 			result.put(Constants.STATUS, Constants.SUCCESS);
 			result.put("needsReview", true);
+			result.put("confirmedLocally", confirmed.size());
 			result.put("pairsToReview", estimate.getPairsToReview());
 			result.put("inputTokens", estimate.getInputTokens());
 			result.put("outputTokens", estimate.getOutputTokens());
@@ -663,6 +972,21 @@ public class AlignmentService {
 			result.put("estimatedCost", estimate.getTotalCost());
 			result.put("formattedCost", estimate.getFormattedCost());
 			result.put("breakdown", estimate.getDetailedBreakdown());
+			result.put("calibrationSamples", CostEstimator.ratios(languages).samples());
+
+			if (scheduler.getBudget() > 0) {
+				List<PromptBatch> batches = PromptBatcher.fromConfiguration(languages).batches(sourceStrings,
+					targetStrings, uncertainPairs);
+				int pairs = 0;
+				double cost = 0;
+				for (PromptBatch batch : scheduler.plan(batches)) {
+					pairs += batch.getPairs().size();
+					cost += scheduler.cost(batch);
+				}
+				result.put("budget", scheduler.getBudget());
+				result.put("pairsWithinBudget", pairs);
+				result.put("costWithinBudget", cost);
+			}
 
 		} catch (Exception e) {
 			logger.log(Level.ERROR, "Error estimating AI cost", e);
@@ -673,12 +997,13 @@ public class AlignmentService {
 	}
 
 	/**
-	 * Improve alignment using Claude AI (only uncertain pairs)
+	 * Improve alignment using Claude AI (only uncertain pairs), within the
+	 * optional "budget" in USD and "deadline" in seconds
 	 */
-	public JSONObject improveAlignmentWithAI() {
+	public JSONObject improveAlignmentWithAI(JSONObject json) {
 		JSONObject result = new JSONObject();
 		try {
-			if (claudeAI == null) {
+			if (aiProvider == null) {
 				result.put(Constants.STATUS, Constants.ERROR);
 				result.put(Constants.REASON, "Claude AI not configured. Please set API key in preferences.");
 				return result;
@@ -700,28 +1025,11 @@ public class AlignmentService {
 				return result;
 			}
 
-			// Build AlignmentPairs for uncertain segments
+			// Pairs the local scorer confirms need no AI review
 			List<Element> sources = alignment.getSources();
 			List<Element> targets = alignment.getTargets();
-			List<AlignmentPair> uncertainPairs = new ArrayList<>();
-
-			for (Integer segmentId : uncertainIds) {
-				List<Integer> srcIndices = new ArrayList<>();
-				List<Integer> tgtIndices = new ArrayList<>();
-
-				if (segmentId < sources.size()) {
-					srcIndices.add(segmentId);
-				}
-				if (segmentId < targets.size()) {
-					tgtIndices.add(segmentId);
-				}
-
-				double confidence = alignment.getConfidence(segmentId);
-				String note = alignment.getSegmentInfo(segmentId).manuallyMarked ?
-					"Manually marked for review" : "Low confidence";
-
-				uncertainPairs.add(new AlignmentPair(srcIndices, tgtIndices, confidence, note));
-			}
+			Map<Integer, Double> confirmed = new TreeMap<>();
+			List<AlignmentPair> uncertainPairs = reviewPairs(uncertainIds, sources, targets, confirmed);
 
 			List<String> sourceStrings = alignmentEngine.getTextStrings(
 				new ArrayList<>(sources)
@@ -730,52 +1038,59 @@ public class AlignmentService {
 				new ArrayList<>(targets)
 			);
 
-			// Call Claude AI to improve uncertain pairs
-			List<AlignmentPair> improvedPairs = claudeAI.improveAlignment(
-				sourceStrings,
-				targetStrings,
-				uncertainPairs
-			);
-
-			// Apply AI improvements: reorder targets if needed
-			logger.log(Level.INFO, "Applying AI improvements...");
-			int reorderedCount = 0;
-
-			for (AlignmentPair pair : improvedPairs) {
-				if (pair.getSourceIndices().isEmpty() || pair.getTargetIndices().isEmpty()) {
-					continue;
-				}
-
-				int sourceId = pair.getSourceIndices().get(0);
-				int suggestedTargetId = pair.getTargetIndices().get(0);
-
-				// Check if AI suggests a different target index
-				if (sourceId != suggestedTargetId) {
-					// AI wants to align sourceId with a different target
-					logger.log(Level.INFO, "AI suggests: S{0} -> T{1} (was T{2})",
-						new Object[]{sourceId, suggestedTargetId, sourceId});
-
-					// Swap target segments to align correctly
-					if (sourceId < targets.size() && suggestedTargetId < targets.size()) {
-						Element temp = targets.get(sourceId);
-						targets.set(sourceId, targets.get(suggestedTargetId));
-						targets.set(suggestedTargetId, temp);
-						reorderedCount++;
-						logger.log(Level.INFO, "Swapped T{0} <-> T{1}",
-							new Object[]{sourceId, suggestedTargetId});
+			if (!confirmed.isEmpty()) {
+				edits.submit(alignment, a -> {
+					for (Map.Entry<Integer, Double> entry : confirmed.entrySet()) {
+						a.setConfidenceAndMethod(entry.getKey(), entry.getValue(), PairScorer.METHOD);
 					}
-				}
+					return null;
+				});
+				logger.log(Level.INFO, "{0} uncertain alignments confirmed locally", confirmed.size());
+			}
 
-				// Update confidence and flags
-				alignment.setConfidence(sourceId, pair.getConfidence());
-				alignment.setAIReviewed(sourceId, true);
-				alignment.setManualMark(sourceId, false);
+			// Only windows around the uncertain pairs are sent, in prompts that
+			// fit the token budget. Prompts run concurrently, most useful first,
+			// and fixes are applied while they arrive, so the UI can show them
+			// while the review runs; the whole review is one undo step
+			ReviewScheduler scheduler = scheduler(json);
+			List<PromptBatch> batches = PromptBatcher.fromConfiguration(languages()).batches(sourceStrings,
+				targetStrings, uncertainPairs);
+			logger.log(Level.INFO, "Sending {0} uncertain alignments to {1} in {2} prompts", uncertainPairs.size(),
+				aiProvider.getProviderName(), batches.size());
+			ReviewEdits fixes = new ReviewEdits(alignment, sourceStrings, targetStrings);
+			reviewing = true;
+			reviewDone = 0;
+			reviewTotal = scheduler.plan(batches).size();
+			reviewImproved.set(0);
+			ReviewScheduler.Report outcome;
+			try {
+				outcome = scheduler.run(batches, (batch, sent) -> aiProvider.improveAlignment(batch, fixes, sent),
+					(done, total, batch, error) -> {
+						if (error != null) {
+							logger.log(Level.WARNING, "Prompt {0} of {1} failed: {2}", done, total,
+								error.getMessage());
+						}
+						reviewDone = done;
+						reviewTotal = total;
+						// the last fixes of a prompt do not wait for the next prompt
+						fixes.flush();
+					});
+			} finally {
+				reviewing = false;
+				fixes.close();
+			}
+			AtomicInteger reordered = fixes.reordered;
+			if (fixes.stale.get() > 0) {
+				logger.log(Level.WARNING, "Dropped {0} AI suggestions for rows edited during the review",
+					fixes.stale.get());
+			}
+			if (outcome.batches() > 0 && outcome.failed() == outcome.batches()) {
+				throw new IOException(outcome.error());
 			}
+			List<AlignmentPair> improvedPairs = outcome.pairs();
 
-			// Save the reordered targets back to alignment
-			if (reorderedCount > 0) {
-				alignment.setTargets(targets);
-				logger.log(Level.INFO, "Reordered {0} target segments", reorderedCount);
+			if (reordered.get() > 0) {
+				logger.log(Level.INFO, "Reordered {0} target segments", reordered.get());
 			}
 
 			// Calculate statistics
@@ -785,6 +1100,18 @@ public class AlignmentService {
 
 			result.put(Constants.STATUS, Constants.SUCCESS);
 			result.put("improved", improvedPairs.size());
+			result.put("failedPrompts", outcome.failed());
+			result.put("staleFixes", fixes.stale.get());
+			result.put("confirmedLocally", confirmed.size());
+			result.put("estimatedSpend", outcome.spent());
+			result.put("stopReason", outcome.stopReason());
+			JSONArray notReviewed = new JSONArray();
+			for (AlignmentPair pair : outcome.notReviewed()) {
+				int row = pair.getSourceIndices().isEmpty() ? pair.getTargetIndices().get(0)
+					: pair.getSourceIndices().get(0);
+				notReviewed.put(row);
+			}
+			result.put("notReviewed", notReviewed);
 			result.put("remainingUncertain", remainingUncertain);
 			result.put("overallConfidence", overallConfidence);
 
@@ -800,6 +1127,249 @@ public class AlignmentService {
 		return result;
 	}
 
+	/**
+	 * Scheduler with the budget and deadline of the request, or the
+	 * configured ones
+	 */
+	private ReviewScheduler scheduler(JSONObject json) {
+		Configuration config = Configuration.getInstance();
+		double budget = json.optDouble(ReviewScheduler.BUDGET, config.getReviewBudget());
+		int seconds = json.optInt(ReviewScheduler.DEADLINE, config.getReviewDeadline());
+		long deadline = seconds > 0 ? System.currentTimeMillis() + seconds * 1000L : 0;
+		double inputPrice = aiProvider != null ? aiProvider.getInputTokenPrice() : config.getInputTokenPrice();
+		double outputPrice = aiProvider != null ? aiProvider.getOutputTokenPrice() : config.getOutputTokenPrice();
+		return new ReviewScheduler(budget, deadline, inputPrice, outputPrice, config.getMaxConcurrentRequests());
+	}
+
+	/**
+	 * Language pair of the open alignment, as CostEstimator keys it
+	 */
+	private String languages() {
+		AlignmentSnapshot view = alignment.snapshot();
+		return CostEstimator.languages(view.getSrcLang().getCode(), view.getTgtLang().getCode());
+	}
+
+	/**
+	 * Pairs for the AI review of the uncertain rows. Rows the local scorer
+	 * confirms are put in confirmed with their score as the new confidence
+	 * instead, unless they were marked for review by hand; the others carry
+	 * the local score as their confidence. A threshold below the uncertain
+	 * threshold acts as that, so confirmed rows are no longer uncertain.
+	 */
+	private List<AlignmentPair> reviewPairs(List<Integer> uncertainIds, List<Element> sources,
+			List<Element> targets, Map<Integer, Double> confirmed) {
+		int[] rows = uncertainIds.stream().mapToInt(Integer::intValue).toArray();
+		PairScorer.Score[] scores = pairScorer.score(sources, targets, rows);
+		double threshold = Math.max(SegmentTable.UNCERTAIN_THRESHOLD,
+			Configuration.getInstance().getLocalConfirmThreshold());
+		List<AlignmentPair> pairs = new ArrayList<>();
+		for (int k = 0; k < rows.length; k++) {
+			int segmentId = rows[k];
+			boolean manual = alignment.getSegmentInfo(segmentId).manuallyMarked;
+			if (!manual && scores[k].confirms(threshold)) {
+				confirmed.put(segmentId, scores[k].value());
+				continue;
+			}
+			List<Integer> srcIndices = new ArrayList<>();
+			List<Integer> tgtIndices = new ArrayList<>();
+			if (segmentId < sources.size()) {
+				srcIndices.add(segmentId);
+			}
+			if (segmentId < targets.size()) {
+				tgtIndices.add(segmentId);
+			}
+			String note = manual ? "Manually marked for review" : "Low confidence";
+			pairs.add(new AlignmentPair(srcIndices, tgtIndices, scores[k].value(), note));
+		}
+		return pairs;
+	}
+
+	/**
+	 * Progress of the running AI review, for the UI to show fixes while they
+	 * arrive
+	 */
+	public JSONObject aiReviewStatus() {
+		JSONObject result = new JSONObject();
+		result.put(Constants.STATUS, Constants.SUCCESS);
+		result.put("reviewing", reviewing);
+		result.put("promptsDone", reviewDone);
+		result.put("prompts", reviewTotal);
+		result.put("improved", reviewImproved.get());
+		return result;
+	}
+
+	/**
+	 * Token usage, cost and answer times measured for AI requests, with the
+	 * ratios the cost estimates are calibrated with
+	 */
+	public JSONObject getAIUsage() {
+		JSONObject result = UsageLedger.getInstance().statistics();
+		AIResponseCache cache = AIResponseCache.getInstance();
+		JSONObject cached = new JSONObject();
+		cached.put("entries", cache.size());
+		cached.put("bytes", cache.bytes());
+		cached.put("hits", cache.getHits());
+		cached.put("misses", cache.getMisses());
+		result.put("cache", cached);
+		result.put(Constants.STATUS, Constants.SUCCESS);
+		return result;
+	}
+
+	/**
+	 * Applies the fixes of one AI review while they arrive, collecting those
+	 * that arrive close together into one command, and keeps the review in
+	 * one undo group. Fixes refer to the rows as they were when the review
+	 * started; when other edits were published since then, a fix is only
+	 * applied if its rows still hold the same text.
+	 */
+	private final class ReviewEdits implements Consumer<AlignmentPair> {
+
+		private static final long FLUSH_INTERVAL = 500;
+
+		private final Alignment alignment;
+		private final List<String> sources;
+		// target texts as the review left them, with its own swaps
+		private final List<String> targets;
+		private final ConcurrentLinkedQueue<AlignmentPair> queue = new ConcurrentLinkedQueue<>();
+		final AtomicInteger reordered = new AtomicInteger();
+		final AtomicInteger stale = new AtomicInteger();
+		private long version;
+		private long flushed;
+
+		ReviewEdits(Alignment alignment, List<String> sources, List<String> targets)
+				throws IOException, SAXException, ParserConfigurationException {
+			this.alignment = alignment;
+			this.sources = sources;
+			this.targets = new ArrayList<>(targets);
+			edits.submit(alignment, a -> {
+				a.openEditGroup();
+				// the version this command publishes
+				version = a.snapshot().getVersion() + 1;
+				return null;
+			});
+		}
+
+		@Override
+		public void accept(AlignmentPair pair) {
+			queue.add(pair);
+			if (System.currentTimeMillis() - flushed >= FLUSH_INTERVAL) {
+				flush();
+			}
+		}
+
+		synchronized void flush() {
+			List<AlignmentPair> pairs = new ArrayList<>();
+			AlignmentPair pair;
+			while ((pair = queue.poll()) != null) {
+				pairs.add(pair);
+			}
+			if (pairs.isEmpty()) {
+				return;
+			}
+			try {
+				int applied = edits.submit(alignment, a -> {
+					a.joinEditGroup();
+					boolean edited = a.snapshot().getVersion() != version;
+					int count = 0;
+					for (AlignmentPair fix : pairs) {
+						if (edited && !unchanged(a, fix)) {
+							stale.incrementAndGet();
+							continue;
+						}
+						int swaps = applyAIPairs(a, List.of(fix));
+						if (swaps > 0) {
+							Collections.swap(targets, fix.getSourceIndices().get(0), fix.getTargetIndices().get(0));
+							reordered.addAndGet(swaps);
+						}
+						count++;
+					}
+					version = a.snapshot().getVersion() + 1;
+					return count;
+				});
+				reviewImproved.addAndGet(applied);
+			} catch (IOException | SAXException | ParserConfigurationException e) {
+				logger.log(Level.ERROR, "Error applying AI suggestions", e);
+			}
+			flushed = System.currentTimeMillis();
+		}
+
+		/**
+		 * Whether the rows of a fix hold the text the review saw
+		 */
+		private boolean unchanged(Alignment a, AlignmentPair fix) {
+			List<Element> currentSources = a.getWorkingSources();
+			List<Element> current = a.getWorkingTargets();
+			for (int row : fix.getSourceIndices()) {
+				if (row >= currentSources.size() || row >= sources.size()
+						|| !sources.get(row).equals(text(currentSources.get(row)))) {
+					return false;
+				}
+			}
+			List<Integer> rows = new ArrayList<>(fix.getTargetIndices());
+			rows.addAll(fix.getSourceIndices());
+			for (int row : rows) {
+				if (row >= current.size() || row >= targets.size()
+						|| !targets.get(row).equals(text(current.get(row)))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private String text(Element element) {
+			return alignmentEngine.getTextStrings(List.of(element)).get(0);
+		}
+
+		/**
+		 * Apply what is still queued and close the undo group
+		 */
+		void close() throws IOException, SAXException, ParserConfigurationException {
+			flush();
+			edits.submit(alignment, a -> {
+				a.closeEditGroup();
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Apply AI suggestions on the writer thread, returning the number of swaps
+	 */
+	private static int applyAIPairs(Alignment alignment, List<AlignmentPair> improvedPairs) {
+		List<Element> targets = alignment.getWorkingTargets();
+		int reorderedCount = 0;
+
+		for (AlignmentPair pair : improvedPairs) {
+			if (pair.getSourceIndices().isEmpty() || pair.getTargetIndices().isEmpty()) {
+				continue;
+			}
+
+			int sourceId = pair.getSourceIndices().get(0);
+			int suggestedTargetId = pair.getTargetIndices().get(0);
+
+			// Check if AI suggests a different target index
+			if (sourceId != suggestedTargetId) {
+				// AI wants to align sourceId with a different target
+				logger.log(Level.INFO, "AI suggests: S{0} -> T{1} (was T{2})",
+					new Object[]{sourceId, suggestedTargetId, sourceId});
+
+				// Swap target segments to align correctly
+				if (sourceId < targets.size() && suggestedTargetId < targets.size()) {
+					alignment.swapTargets(sourceId, suggestedTargetId);
+					reorderedCount++;
+					logger.log(Level.INFO, "Swapped T{0} <-> T{1}",
+						new Object[]{sourceId, suggestedTargetId});
+				}
+			}
+
+			// Update confidence and flags
+			alignment.setConfidence(sourceId, pair.getConfidence());
+			alignment.setAIReviewed(sourceId, true);
+			alignment.setManualMark(sourceId, false);
+		}
+		return reorderedCount;
+	}
+
 	/**
 	 * Get current alignment statistics
 	 */
@@ -808,6 +1378,9 @@ public class AlignmentService {
 		if (currentAlignmentResult != null) {
 			result = currentAlignmentResult.toJSON();
 		}
+		if (alignment != null) {
+			result.put("segments", alignment.getSegmentStats());
+		}
 		result.put(Constants.STATUS, Constants.SUCCESS);
 		return result;
 	}
@@ -838,7 +1411,10 @@ public class AlignmentService {
 			}
 
 			int segmentId = json.getInt("segmentId");
-			alignment.toggleManualMark(segmentId);
+			edits.submit(alignment, a -> {
+				a.toggleManualMark(segmentId);
+				return null;
+			});
 
 			result.put(Constants.STATUS, Constants.SUCCESS);
 			result.put("segmentId", segmentId);
@@ -879,10 +1455,10 @@ public class AlignmentService {
 			}
 
 			// Swap with previous
-			Element temp = targets.get(segmentId);
-			targets.set(segmentId, targets.get(segmentId - 1));
-			targets.set(segmentId - 1, temp);
-			alignment.setTargets(targets);
+			edits.submit(alignment, a -> {
+				a.swapTargets(segmentId, segmentId - 1);
+				return null;
+			});
 
 			result.put(Constants.STATUS, Constants.SUCCESS);
 			result.put("segmentId", segmentId);
@@ -917,10 +1493,10 @@ public class AlignmentService {
 			}
 
 			// Swap with next
-			Element temp = targets.get(segmentId);
-			targets.set(segmentId, targets.get(segmentId + 1));
-			targets.set(segmentId + 1, temp);
-			alignment.setTargets(targets);
+			edits.submit(alignment, a -> {
+				a.swapTargets(segmentId, segmentId + 1);
+				return null;
+			});
 
 			result.put(Constants.STATUS, Constants.SUCCESS);
 			result.put("segmentId", segmentId);
@@ -938,14 +1514,14 @@ public class AlignmentService {
 	 */
 	public JSONObject testClaudeConnection() {
 		JSONObject result = new JSONObject();
-		if (claudeAI == null) {
+		if (aiProvider == null) {
 			result.put(Constants.STATUS, Constants.ERROR);
 			result.put(Constants.REASON, "Claude AI not configured");
 			return result;
 		}
 
 		try {
-			boolean connected = claudeAI.testConnection();
+			boolean connected = aiProvider.testConnection();
 			result.put(Constants.STATUS, connected ? Constants.SUCCESS : Constants.ERROR);
 			result.put("connected", connected);
 		} catch (Exception e) {
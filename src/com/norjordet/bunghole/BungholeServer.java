@@ -115,6 +115,9 @@ public class BungholeServer implements HttpHandler {
 				case "/openFile":
 					response = openFile(new JSONObject(request));
 					break;
+				case "/importFile":
+					response = importFile(new JSONObject(request));
+					break;
 				case "/loadingStatus":
 					response = loadingStatus();
 					break;
@@ -124,6 +127,15 @@ public class BungholeServer implements HttpHandler {
 				case "/getRows":
 					response = getRows(new JSONObject(request));
 					break;
+				case "/getFilteredRows":
+					response = getFilteredRows(new JSONObject(request));
+					break;
+				case "/nextUncertain":
+					response = nextUncertain(new JSONObject(request));
+					break;
+				case "/search":
+					response = search(new JSONObject(request));
+					break;
 				case "/exportTMX":
 					response = exportTMX(new JSONObject(request));
 					break;
@@ -133,6 +145,9 @@ public class BungholeServer implements HttpHandler {
 				case "/exportExcel":
 					response = exportExcel(new JSONObject(request));
 					break;
+				case "/exportAll":
+					response = exportAll(new JSONObject(request));
+					break;
 				case "/saveFile":
 					response = saveFile();
 					break;
@@ -151,6 +166,15 @@ public class BungholeServer implements HttpHandler {
 				case "/mergeNext":
 					response = mergeNext(new JSONObject(request));
 					break;
+				case "/applyEdits":
+					response = applyEdits(new JSONObject(request));
+					break;
+				case "/undo":
+					response = undo();
+					break;
+				case "/redo":
+					response = redo();
+					break;
 				case "/saveData":
 					response = saveData(new JSONObject(request));
 					break;
@@ -169,6 +193,9 @@ public class BungholeServer implements HttpHandler {
 				case "/removeDuplicates":
 					response = removeDuplicates();
 					break;
+				case "/findNearDuplicates":
+					response = findNearDuplicates(new JSONObject(request));
+					break;
 				case "/setLanguages":
 					response = setLanguages(new JSONObject(request));
 					break;
@@ -180,10 +207,16 @@ public class BungholeServer implements HttpHandler {
 					break;
 				// NEW: AI-enhanced alignment endpoints
 				case "/estimateAICost":
-					response = estimateAICost();
+					response = estimateAICost(new JSONObject(request));
 					break;
 				case "/improveWithAI":
-					response = improveWithAI();
+					response = improveWithAI(new JSONObject(request));
+					break;
+				case "/aiReviewStatus":
+					response = aiReviewStatus();
+					break;
+				case "/getAIUsage":
+					response = getAIUsage();
 					break;
 				case "/getAlignmentStats":
 					response = getAlignmentStats();
@@ -272,6 +305,10 @@ public class BungholeServer implements HttpHandler {
 		return service.openFile(json).toString();
 	}
 
+	private String importFile(JSONObject json) {
+		return service.importFile(json).toString();
+	}
+
 	private String loadingStatus() {
 		return service.loadingStatus().toString();
 	}
@@ -304,6 +341,10 @@ public class BungholeServer implements HttpHandler {
 		return service.exportExcel(json).toString();
 	}
 
+	private String exportAll(JSONObject json) {
+		return service.exportAll(json).toString();
+	}
+
 	private String removeTags() {
 		return service.removeTags().toString();
 	}
@@ -312,6 +353,10 @@ public class BungholeServer implements HttpHandler {
 		return service.removeDuplicates().toString();
 	}
 
+	private String findNearDuplicates(JSONObject json) {
+		return service.findNearDuplicates(json).toString();
+	}
+
 	private String getFileType(JSONObject json) {
 		return service.getFileType(json.getString("file")).toString();
 	}
@@ -340,6 +385,18 @@ public class BungholeServer implements HttpHandler {
 		return service.mergeNext(json).toString();
 	}
 
+	private String applyEdits(JSONObject json) {
+		return service.applyEdits(json).toString();
+	}
+
+	private String undo() {
+		return service.undo().toString();
+	}
+
+	private String redo() {
+		return service.redo().toString();
+	}
+
 	private String removeSegment(JSONObject json) {
 		return service.removeSegment(json).toString();
 	}
@@ -393,12 +450,20 @@ public class BungholeServer implements HttpHandler {
 
 	// ==================== NEW: AI-ENHANCED ALIGNMENT ENDPOINTS ====================
 
-	private String estimateAICost() {
-		return service.estimateAICost().toString();
+	private String estimateAICost(JSONObject json) {
+		return service.estimateAICost(json).toString();
+	}
+
+	private String improveWithAI(JSONObject json) {
+		return service.improveAlignmentWithAI(json).toString();
 	}
 
-	private String improveWithAI() {
-		return service.improveAlignmentWithAI().toString();
+	private String aiReviewStatus() {
+		return service.aiReviewStatus().toString();
+	}
+
+	private String getAIUsage() {
+		return service.getAIUsage().toString();
 	}
 
 	private String getAlignmentStats() {
@@ -426,6 +491,18 @@ public class BungholeServer implements HttpHandler {
 		return service.toggleManualMark(json).toString();
 	}
 
+	private String getFilteredRows(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
+		return service.getFilteredRows(json).toString();
+	}
+
+	private String nextUncertain(JSONObject json) {
+		return service.nextUncertain(json).toString();
+	}
+
+	private String search(JSONObject json) {
+		return service.search(json).toString();
+	}
+
 	private String moveTargetUp(JSONObject json) {
 		return service.moveTargetUp(json).toString();
 	}
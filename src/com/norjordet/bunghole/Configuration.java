@@ -15,6 +15,7 @@ package com.norjordet.bunghole;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Properties;
 
 /**
@@ -37,6 +38,17 @@ public class Configuration {
     private static final double DEFAULT_INPUT_PRICE = 3.0;
     private static final double DEFAULT_OUTPUT_PRICE = 15.0;
     private static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
+    private static final int DEFAULT_PROMPT_CONTEXT = 5;
+    private static final int DEFAULT_PROMPT_TOKENS = 8000;
+    private static final int DEFAULT_MAX_OUTPUT_TOKENS = 4000;
+    private static final int DEFAULT_REQUESTS_PER_MINUTE = 50;
+    private static final int DEFAULT_TOKENS_PER_MINUTE = 100000;
+    private static final int DEFAULT_MAX_CONCURRENT = 8;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final int DEFAULT_AI_CACHE_SIZE = 100;
+    private static final int DEFAULT_HEDGE_PERCENTILE = 95;
+    private static final int DEFAULT_HEDGE_DELAY = 30;
+    private static final double DEFAULT_LOCAL_CONFIRM = 0.8;
 
     private Configuration() {
         properties = new Properties();
@@ -165,6 +177,143 @@ public class Configuration {
         }
     }
 
+    /**
+     * Get number of segments shown on each side of an uncertain pair
+     */
+    public int getPromptContext() {
+        return getInt("claude.promptContext", DEFAULT_PROMPT_CONTEXT);
+    }
+
+    /**
+     * Get input token budget of one prompt
+     */
+    public int getPromptTokenBudget() {
+        return getInt("claude.promptTokens", DEFAULT_PROMPT_TOKENS);
+    }
+
+    /**
+     * Get maximum number of tokens in one answer
+     */
+    public int getMaxOutputTokens() {
+        return getInt("claude.maxTokens", DEFAULT_MAX_OUTPUT_TOKENS);
+    }
+
+    /**
+     * Get number of AI requests allowed per minute
+     */
+    public int getRequestsPerMinute() {
+        return getInt("ai.requestsPerMinute", DEFAULT_REQUESTS_PER_MINUTE);
+    }
+
+    /**
+     * Get number of input tokens allowed per minute
+     */
+    public int getTokensPerMinute() {
+        return getInt("ai.tokensPerMinute", DEFAULT_TOKENS_PER_MINUTE);
+    }
+
+    /**
+     * Get number of AI requests sent at the same time
+     */
+    public int getMaxConcurrentRequests() {
+        return getInt("ai.maxConcurrent", DEFAULT_MAX_CONCURRENT);
+    }
+
+    /**
+     * Get number of attempts for an AI request before giving up
+     */
+    public int getMaxAttempts() {
+        return getInt("ai.maxAttempts", DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Get folder where AI answers are cached
+     */
+    public String getAICacheFolder() {
+        return getProperty("ai.cacheFolder",
+                Path.of(System.getProperty("user.home"), ".bunghole", "aicache").toString());
+    }
+
+    /**
+     * Get maximum size of the AI answer cache in MB; 0 disables it
+     */
+    public int getAICacheSize() {
+        return getInt("ai.cacheSize", DEFAULT_AI_CACHE_SIZE);
+    }
+
+    /**
+     * Get file where the token usage of AI requests is recorded; empty keeps
+     * it in memory only
+     */
+    public String getAIUsageLedger() {
+        return getProperty("ai.usageLedger",
+                Path.of(System.getProperty("user.home"), ".bunghole", "aiusage.jsonl").toString());
+    }
+
+    /**
+     * Get provider asked when the main AI provider is slow; empty for none
+     */
+    public String getHedgeProvider() {
+        return getProperty("ai.hedgeProvider", "");
+    }
+
+    /**
+     * Get percentile of answer times after which the hedge provider is asked
+     */
+    public int getHedgePercentile() {
+        return getInt("ai.hedgePercentile", DEFAULT_HEDGE_PERCENTILE);
+    }
+
+    /**
+     * Get seconds to wait before asking the hedge provider, until answer
+     * times are known
+     */
+    public int getHedgeDelay() {
+        return getInt("ai.hedgeDelay", DEFAULT_HEDGE_DELAY);
+    }
+
+    /**
+     * Get local score from which an uncertain pair is confirmed without AI
+     * review; values below 0.75, the uncertain threshold, act as 0.75 and
+     * above 1 sends all of them
+     */
+    public double getLocalConfirmThreshold() {
+        String threshold = getProperty("ai.localConfirm", String.valueOf(DEFAULT_LOCAL_CONFIRM));
+        try {
+            return Double.parseDouble(threshold);
+        } catch (NumberFormatException e) {
+            return DEFAULT_LOCAL_CONFIRM;
+        }
+    }
+
+    /**
+     * Get maximum estimated cost of one AI review in USD; 0 for no limit
+     */
+    public double getReviewBudget() {
+        String budget = getProperty("ai.reviewBudget", "0");
+        try {
+            return Double.parseDouble(budget);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get seconds after which an AI review sends no more prompts; 0 for no
+     * limit
+     */
+    public int getReviewDeadline() {
+        return getInt("ai.reviewDeadline", 0);
+    }
+
+    private int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getProperty(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Get property with fallback to environment variable
      */
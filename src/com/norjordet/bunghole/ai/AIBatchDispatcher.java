@@ -0,0 +1,340 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.norjordet.bunghole.Configuration;
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
+/**
+ * Sends AI requests over one shared HTTP/2 client.
+ *
+ * Batches run concurrently on virtual threads. Every request first takes its
+ * share of two token buckets, one for requests and one for input tokens per
+ * minute, so a large review never runs into the provider's rate limits on
+ * purpose. Responses 429 and 5xx and broken connections are retried with
+ * exponential backoff and jitter, honouring Retry-After.
+ */
+public class AIBatchDispatcher {
+
+    private static final Logger logger = System.getLogger(AIBatchDispatcher.class.getName());
+
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(20))
+            .build();
+
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private static final long BASE_DELAY = 1000;
+    private static final long MAX_DELAY = 60_000;
+
+    /**
+     * Provider specific request and answer format
+     */
+    public interface Exchange {
+        HttpRequest request(PromptBatch batch);
+
+        List<AlignmentPair> parse(PromptBatch batch, String body) throws IOException;
+
+        /**
+         * Whether the answer is read line by line while it arrives, with
+         * {@link #read}
+         */
+        default boolean streaming() {
+            return false;
+        }
+
+        /**
+         * Called right before each attempt is sent, once the request got
+         * through the rate limits
+         */
+        default void sending(int attempt) {
+        }
+
+        default List<AlignmentPair> read(PromptBatch batch, Stream<String> lines) throws IOException {
+            return parse(batch, lines.collect(Collectors.joining("\n")));
+        }
+    }
+
+    /**
+     * Reads the body of a successful streamed response
+     */
+    public interface LineReader<T> {
+        T read(Stream<String> lines) throws IOException;
+    }
+
+    private interface BodyReader<B, T> {
+        T read(B body) throws IOException;
+    }
+
+    /**
+     * Called once per batch, from the thread that finished it; error is null
+     * on success
+     */
+    public interface Progress {
+        void batchDone(int done, int total, PromptBatch batch, Exception error);
+    }
+
+    /**
+     * Answers of all batches that succeeded, with document indices
+     */
+    public record Outcome(List<AlignmentPair> pairs, int batches, int failed, String error) {
+    }
+
+    private final double requestsPerMinute;
+    private final double tokensPerMinute;
+    private final int maxAttempts;
+    private final Semaphore inFlight;
+
+    private double requests;
+    private double tokens;
+    private long refilled;
+
+    public AIBatchDispatcher(int requestsPerMinute, int tokensPerMinute, int maxConcurrent, int maxAttempts) {
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        this.maxAttempts = maxAttempts;
+        this.inFlight = new Semaphore(maxConcurrent);
+        this.requests = requestsPerMinute;
+        this.tokens = tokensPerMinute;
+        this.refilled = System.nanoTime();
+    }
+
+    public static AIBatchDispatcher fromConfiguration() {
+        Configuration config = Configuration.getInstance();
+        return new AIBatchDispatcher(config.getRequestsPerMinute(), config.getTokensPerMinute(),
+                config.getMaxConcurrentRequests(), config.getMaxAttempts());
+    }
+
+    public static HttpClient client() {
+        return CLIENT;
+    }
+
+    /**
+     * Send one batch without blocking, on a virtual thread. Cancelling the
+     * returned future interrupts the request and closes its stream.
+     */
+    public CompletableFuture<List<AlignmentPair>> submit(PromptBatch batch, Exchange exchange) {
+        CompletableFuture<List<AlignmentPair>> future = new CompletableFuture<>();
+        Future<?> task = EXECUTOR.submit(() -> {
+            try {
+                HttpRequest request = exchange.request(batch);
+                future.complete(exchange.streaming()
+                        ? stream(request, batch.getInputTokens(), exchange::sending,
+                                lines -> exchange.read(batch, lines))
+                        : exchange.parse(batch, send(request, batch.getInputTokens(), exchange::sending)));
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        future.whenComplete((pairs, error) -> {
+            if (future.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Start all batches and wait for them. Failed batches are reported through
+     * progress and counted in the outcome; the others still count.
+     */
+    public static Outcome dispatch(List<PromptBatch> batches,
+            Function<PromptBatch, CompletableFuture<List<AlignmentPair>>> sender, Progress progress)
+            throws IOException {
+        List<CompletableFuture<List<AlignmentPair>>> futures = new ArrayList<>();
+        AtomicInteger done = new AtomicInteger();
+        for (PromptBatch batch : batches) {
+            futures.add(sender.apply(batch).whenComplete((pairs, error) -> progress
+                    .batchDone(done.incrementAndGet(), batches.size(), batch, error == null ? null : cause(error))));
+        }
+        List<AlignmentPair> pairs = new ArrayList<>();
+        int failed = 0;
+        String error = null;
+        for (CompletableFuture<List<AlignmentPair>> future : futures) {
+            try {
+                pairs.addAll(future.get());
+            } catch (ExecutionException e) {
+                failed++;
+                error = cause(e).getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("AI review interrupted", e);
+            }
+        }
+        return new Outcome(pairs, batches.size(), failed, error);
+    }
+
+    /**
+     * The exception that made a future fail
+     */
+    static Exception cause(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof Exception e ? e : new IOException(error);
+    }
+
+    /**
+     * Send one request within the rate limits, retrying when the provider is
+     * busy, and return the body of the successful response
+     */
+    public String send(HttpRequest request, int inputTokens) throws IOException {
+        return send(request, inputTokens, attempt -> {
+        });
+    }
+
+    private String send(HttpRequest request, int inputTokens, IntConsumer sending) throws IOException {
+        return call(request, inputTokens, sending, HttpResponse.BodyHandlers.ofString(), body -> body, body -> body);
+    }
+
+    /**
+     * Send one request like {@link #send} and hand the lines of the
+     * successful response to the reader while they arrive. A response that
+     * breaks off after it started is not retried, as the reader may have
+     * acted on part of it.
+     */
+    public <T> T stream(HttpRequest request, int inputTokens, LineReader<T> reader) throws IOException {
+        return stream(request, inputTokens, attempt -> {
+        }, reader);
+    }
+
+    private <T> T stream(HttpRequest request, int inputTokens, IntConsumer sending, LineReader<T> reader)
+            throws IOException {
+        return call(request, inputTokens, sending, HttpResponse.BodyHandlers.ofLines(), lines -> {
+            try (lines) {
+                return lines.collect(Collectors.joining("\n"));
+            }
+        }, lines -> {
+            try (lines) {
+                return reader.read(lines);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    private <B, T> T call(HttpRequest request, int inputTokens, IntConsumer sending,
+            HttpResponse.BodyHandler<B> handler, BodyReader<B, String> error, BodyReader<B, T> reader)
+            throws IOException {
+        try {
+            inFlight.acquire();
+            try {
+                for (int attempt = 1;; attempt++) {
+                    reserve(inputTokens);
+                    sending.accept(attempt);
+                    HttpResponse<B> response;
+                    try {
+                        response = CLIENT.send(request, handler);
+                    } catch (IOException e) {
+                        if (attempt >= maxAttempts) {
+                            throw e;
+                        }
+                        backoff(attempt, null, e.getMessage());
+                        continue;
+                    }
+                    int code = response.statusCode();
+                    if (code == 200) {
+                        return reader.read(response.body());
+                    }
+                    String body = error.read(response.body());
+                    if (!retryable(code) || attempt >= maxAttempts) {
+                        throw new IOException("AI service returned error " + code + ": " + body);
+                    }
+                    backoff(attempt, response.headers().firstValue("retry-after").orElse(null), "status " + code);
+                }
+            } finally {
+                inFlight.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("AI request interrupted", e);
+        }
+    }
+
+    static boolean retryable(int code) {
+        // 529 is Anthropic's "overloaded"
+        return code == 429 || code == 500 || code == 502 || code == 503 || code == 504 || code == 529;
+    }
+
+    /**
+     * Wait 1, 2, 4 ... seconds, up to a minute, with half of it random; a
+     * longer Retry-After wins
+     */
+    private static void backoff(int attempt, String retryAfter, String reason) throws InterruptedException {
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(attempt - 1, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        if (retryAfter != null) {
+            try {
+                delay = Math.max(delay, (long) (Double.parseDouble(retryAfter) * 1000));
+            } catch (NumberFormatException e) {
+                // an HTTP date, keep the computed delay
+            }
+        }
+        logger.log(Level.WARNING, "AI request failed ({0}), retrying in {1} ms", reason, delay);
+        Thread.sleep(delay);
+    }
+
+    /**
+     * Take one request and the input tokens from the buckets, waiting until
+     * both are available. A request larger than the whole token budget waits
+     * for a full bucket.
+     */
+    private void reserve(int inputTokens) throws InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                double minutes = (now - refilled) / 60e9;
+                refilled = now;
+                requests = Math.min(requestsPerMinute, requests + minutes * requestsPerMinute);
+                tokens = Math.min(tokensPerMinute, tokens + minutes * tokensPerMinute);
+                double needed = Math.min(inputTokens, tokensPerMinute);
+                if (requests >= 1 && tokens >= needed) {
+                    requests -= 1;
+                    tokens -= needed;
+                    return;
+                }
+                double requestWait = requests >= 1 ? 0 : (1 - requests) / requestsPerMinute;
+                double tokenWait = tokens >= needed ? 0 : (needed - tokens) / tokensPerMinute;
+                wait = (long) Math.ceil(Math.max(requestWait, tokenWait) * 60_000);
+            }
+            Thread.sleep(Math.max(1, wait));
+        }
+    }
+}
@@ -12,8 +12,14 @@
 
 package com.norjordet.bunghole.ai;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
 import org.json.JSONObject;
 
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
 /**
  * Interface for AI service providers (Claude, OpenAI, etc.)
  */
@@ -59,6 +65,40 @@ public interface AIProvider {
         String targetLang
     ) throws Exception;
 
+    /**
+     * Improve the uncertain pairs of one prompt batch without blocking.
+     * Improved pairs, with document indices, are passed to fixes as soon as
+     * they are read, and the future completes with all of them.
+     * @param batch segments and uncertain pairs to send
+     * @param fixes called once for each improved pair, possibly from another thread
+     * @return future list of improved pairs
+     */
+    default CompletableFuture<List<AlignmentPair>> improveAlignment(PromptBatch batch,
+            Consumer<AlignmentPair> fixes) {
+        return improveAlignment(batch, fixes, () -> {
+        });
+    }
+
+    /**
+     * Improve the uncertain pairs of one prompt batch like
+     * {@link #improveAlignment(PromptBatch, Consumer)}, reporting each
+     * request that is actually sent for it
+     * @param batch segments and uncertain pairs to send
+     * @param fixes called once for each improved pair, possibly from another thread
+     * @param sent called when a request for the batch is sent to a provider,
+     *             after waiting for the rate limits; not called for answers
+     *             from the cache
+     * @return future list of improved pairs; cancelling it stops the request
+     */
+    CompletableFuture<List<AlignmentPair>> improveAlignment(PromptBatch batch, Consumer<AlignmentPair> fixes,
+            Runnable sent);
+
+    /**
+     * Check that the provider accepts requests with the configured key
+     * @return true if a request succeeded
+     */
+    boolean testConnection();
+
     /**
      * Estimate the cost of analyzing alignment
      * @param totalSegments number of segment pairs
@@ -86,11 +86,42 @@ public class AIProviderFactory {
                 if (claudeKey == null || claudeKey.isEmpty()) {
                     claudeKey = System.getenv("CLAUDE_API_KEY");
                 }
+                if (claudeKey == null || claudeKey.isEmpty()) {
+                    claudeKey = System.getenv("ANTHROPIC_API_KEY");
+                }
                 String claudeModel = config.getModelName();
                 return new ClaudeAIServiceAdapter(claudeKey, claudeModel);
         }
     }
 
+    /**
+     * Get the provider used for alignment reviews: the configured one, hedged
+     * with the provider in ai.hedgeProvider when that one is configured too
+     * @return AI provider instance
+     */
+    public static AIProvider getReviewProvider() {
+        return withHedging(getProvider());
+    }
+
+    /**
+     * Wrap a provider with the configured hedge provider, if any
+     * @param primary the provider asked first
+     * @return the hedged provider, or primary when hedging is not configured
+     */
+    public static AIProvider withHedging(AIProvider primary) {
+        Configuration config = Configuration.getInstance();
+        String hedge = config.getHedgeProvider();
+        if (hedge.isEmpty()) {
+            return primary;
+        }
+        AIProvider secondary = getProvider(Provider.fromString(hedge));
+        if (!secondary.isConfigured() || secondary.getProviderName().equals(primary.getProviderName())) {
+            return primary;
+        }
+        return new HedgedAIProvider(primary, secondary, config.getHedgePercentile(),
+            config.getHedgeDelay() * 1000L);
+    }
+
     /**
      * Get all available providers
      * @return array of providers
@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.norjordet.bunghole.Configuration;
+
+/**
+ * Answers of AI providers kept on disk, so prompts that were already sent
+ * are not paid for again.
+ *
+ * The key is a SHA-256 of provider, model and the exact prompt. Prompts are
+ * built from windows numbered from zero, so a window keeps its key when
+ * unrelated rows are edited. Each answer is one file named after its key;
+ * the least recently used files are removed when the total size goes over
+ * the limit.
+ */
+public class AIResponseCache {
+
+    private static final Logger logger = System.getLogger(AIResponseCache.class.getName());
+    private static final String EXTENSION = ".json";
+
+    private static AIResponseCache instance;
+
+    private final Path folder;
+    private final long maxBytes;
+    // key -> size, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private int hits;
+    private int misses;
+
+    public AIResponseCache(Path folder, long maxBytes) {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+        if (maxBytes > 0) {
+            load();
+        }
+    }
+
+    /**
+     * Cache in the configured folder, shared by all providers
+     */
+    public static synchronized AIResponseCache getInstance() {
+        if (instance == null) {
+            Configuration config = Configuration.getInstance();
+            instance = new AIResponseCache(Path.of(config.getAICacheFolder()), config.getAICacheSize() * 1024L * 1024L);
+        }
+        return instance;
+    }
+
+    private void load() {
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+        List<Object[]> found = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                found.add(new Object[] { name.substring(0, name.length() - EXTENSION.length()),
+                        Files.getLastModifiedTime(file), Files.size(file) });
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "AI cache not read: " + e.getMessage());
+            return;
+        }
+        // last use is kept as the modification time
+        found.sort((a, b) -> ((FileTime) a[1]).compareTo((FileTime) b[1]));
+        for (Object[] entry : found) {
+            entries.put((String) entry[0], (Long) entry[2]);
+            bytes += (Long) entry[2];
+        }
+        evict();
+    }
+
+    public static String key(String provider, String model, String prompt) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(provider.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(prompt.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Stored answer for the prompt, or null
+     */
+    public synchronized String get(String provider, String model, String prompt) {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        String key = key(provider, model, prompt);
+        if (entries.get(key) == null) {
+            misses++;
+            return null;
+        }
+        Path file = folder.resolve(key + EXTENSION);
+        try {
+            String body = Files.readString(file, StandardCharsets.UTF_8);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits++;
+            return body;
+        } catch (IOException e) {
+            bytes -= entries.remove(key);
+            misses++;
+            return null;
+        }
+    }
+
+    public synchronized void put(String provider, String model, String prompt, String body) {
+        if (maxBytes <= 0) {
+            return;
+        }
+        String key = key(provider, model, prompt);
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.createDirectories(folder);
+            Path target = folder.resolve(key + EXTENSION);
+            Path tmp = Files.createTempFile(folder, key, ".tmp");
+            try {
+                Files.write(tmp, data);
+                try {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            // the answer is still used, it just is not kept
+            logger.log(Level.WARNING, "AI answer not cached: " + e.getMessage());
+            return;
+        }
+        Long old = entries.put(key, (long) data.length);
+        bytes += data.length - (old == null ? 0 : old);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> oldest = it.next();
+            try {
+                Files.deleteIfExists(folder.resolve(oldest.getKey() + EXTENSION));
+            } catch (NoSuchFileException e) {
+                // already gone
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "AI cache entry not removed: " + e.getMessage());
+            }
+            bytes -= oldest.getValue();
+            it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+}
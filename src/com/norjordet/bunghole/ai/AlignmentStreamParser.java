@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
+/**
+ * Finds the entries of the "alignments" array in an answer that arrives in
+ * pieces.
+ *
+ * Text before the array, such as a markdown fence, is skipped. Every object
+ * of the array is handed over as soon as its closing brace arrives, without
+ * waiting for the rest of the answer.
+ */
+public class AlignmentStreamParser {
+
+    private static final Logger logger = System.getLogger(AlignmentStreamParser.class.getName());
+    private static final String KEY = "\"alignments\"";
+
+    private final Consumer<JSONObject> consumer;
+    private final StringBuilder text = new StringBuilder();
+
+    private boolean inArray;
+    private boolean done;
+    private int position;
+    private int depth;
+    private int objectStart;
+    private boolean inString;
+    private boolean escaped;
+    private int count;
+
+    public AlignmentStreamParser(Consumer<JSONObject> consumer) {
+        this.consumer = consumer;
+    }
+
+    public void append(CharSequence chunk) {
+        if (done) {
+            return;
+        }
+        text.append(chunk);
+        if (!inArray) {
+            int key = text.indexOf(KEY);
+            if (key == -1) {
+                // keep enough for a key split between pieces
+                text.delete(0, Math.max(0, text.length() - KEY.length()));
+                return;
+            }
+            int open = text.indexOf("[", key + KEY.length());
+            if (open == -1) {
+                text.delete(0, key);
+                return;
+            }
+            inArray = true;
+            position = open + 1;
+        }
+        for (; position < text.length() && !done; position++) {
+            char c = text.charAt(position);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                }
+                continue;
+            }
+            switch (c) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                    if (depth++ == 0) {
+                        objectStart = position;
+                    }
+                    break;
+                case '}':
+                    if (--depth == 0) {
+                        emit(text.substring(objectStart, position + 1));
+                    }
+                    break;
+                case ']':
+                    if (depth == 0) {
+                        done = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (depth == 0 && position > 0) {
+            // what was read is no longer needed
+            text.delete(0, position);
+            position = 0;
+        }
+    }
+
+    private void emit(String object) {
+        try {
+            JSONObject json = new JSONObject(object);
+            count++;
+            consumer.accept(json);
+        } catch (JSONException e) {
+            logger.log(Level.WARNING, "Skipping malformed alignment: " + object);
+        }
+    }
+
+    /**
+     * Pair for one entry of the "alignments" array, marked as AI reviewed
+     */
+    public static AlignmentPair toPair(JSONObject align) {
+        List<Integer> sourceIndices = toList(align.getJSONArray("source"));
+        List<Integer> targetIndices = toList(align.getJSONArray("target"));
+        double confidence = align.getDouble("confidence");
+        String note = align.optString("note", "AI-improved");
+
+        AlignmentPair pair = new AlignmentPair(sourceIndices, targetIndices, confidence, note);
+        pair.setAiReviewed(true);
+        return pair;
+    }
+
+    private static List<Integer> toList(JSONArray array) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            list.add(array.getInt(i));
+        }
+        return list;
+    }
+
+    /**
+     * Number of objects handed over
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * True when the closing bracket of the array was read
+     */
+    public boolean isComplete() {
+        return done;
+    }
+}
@@ -12,21 +12,25 @@
 
 package com.norjordet.bunghole.ai;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.norjordet.bunghole.Configuration;
 import com.norjordet.bunghole.alignment.AlignmentPair;
 
 /**
@@ -38,9 +42,17 @@ public class ClaudeAIService {
     private static final Logger logger = System.getLogger(ClaudeAIService.class.getName());
     private static final String CLAUDE_API_URL = "https://api.anthropic.com/v1/messages";
     private static final String API_VERSION = "2023-06-01";
+    private static final String PROVIDER = "Claude";
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
 
     private String apiKey;
     private String model;
+    private AIBatchDispatcher dispatcher;
+    private AIResponseCache cache;
+    private UsageLedger ledger;
+    private double inputTokenPrice;
+    private double outputTokenPrice;
 
     public ClaudeAIService(String apiKey) {
         this(apiKey, "claude-sonnet-4-20250514");
@@ -49,6 +61,12 @@ public class ClaudeAIService {
     public ClaudeAIService(String apiKey, String model) {
         this.apiKey = apiKey;
         this.model = model;
+        this.dispatcher = AIBatchDispatcher.fromConfiguration();
+        this.cache = AIResponseCache.getInstance();
+        this.ledger = UsageLedger.getInstance();
+        Configuration config = Configuration.getInstance();
+        this.inputTokenPrice = config.getInputTokenPrice();
+        this.outputTokenPrice = config.getOutputTokenPrice();
     }
 
     /**
@@ -59,100 +77,206 @@ public class ClaudeAIService {
         List<String> targetSegments,
         List<AlignmentPair> uncertainPairs
     ) throws IOException {
+        return improveAlignment(sourceSegments, targetSegments, uncertainPairs, (done, total, batch, error) -> {
+            // logged by the dispatcher call below
+        }, pair -> {
+            // applied by the caller from the returned list
+        });
+    }
+
+    /**
+     * Improve uncertain alignments, reporting each finished prompt and each
+     * improved pair as soon as it is read from the streamed answer. Prompts
+     * are sent concurrently; if some of them fail the answers of the others
+     * are still returned. Both callbacks may be called from several threads.
+     */
+    public List<AlignmentPair> improveAlignment(
+        List<String> sourceSegments,
+        List<String> targetSegments,
+        List<AlignmentPair> uncertainPairs,
+        AIBatchDispatcher.Progress progress,
+        Consumer<AlignmentPair> fixes
+    ) throws IOException {
 
         if (uncertainPairs.isEmpty()) {
             return new ArrayList<>();
         }
 
-        logger.log(Level.INFO, "Sending {0} uncertain alignments to Claude AI", uncertainPairs.size());
-
-        // Build prompt
-        String prompt = PromptBuilder.buildAlignmentPrompt(
-            sourceSegments,
-            targetSegments,
-            uncertainPairs
-        );
-
-        // Call Claude API
-        JSONObject response = callClaudeAPI(prompt);
-
-        // Parse response
-        List<AlignmentPair> improvedPairs = parseClaudeResponse(response);
+        // Only windows around the uncertain pairs are sent, in prompts that
+        // fit the token budget
+        List<PromptBatch> batches = PromptBatcher.fromConfiguration().batches(sourceSegments, targetSegments,
+            uncertainPairs);
+        logger.log(Level.INFO, "Sending {0} uncertain alignments to Claude AI in {1} prompts",
+            uncertainPairs.size(), batches.size());
+
+        AIBatchDispatcher.Outcome outcome = AIBatchDispatcher.dispatch(batches,
+            batch -> improveAlignment(batch, fixes, () -> {
+            }), (done, total, batch, error) -> {
+                if (error != null) {
+                    logger.log(Level.WARNING, "Prompt {0} of {1} failed: {2}", done, total, error.getMessage());
+                } else {
+                    logger.log(Level.INFO, "Prompt {0} of {1} answered", done, total);
+                }
+                progress.batchDone(done, total, batch, error);
+            });
+        if (outcome.failed() == outcome.batches()) {
+            throw new IOException(outcome.error());
+        }
 
-        logger.log(Level.INFO, "Received {0} improved alignments from Claude", improvedPairs.size());
+        logger.log(Level.INFO, "Received {0} improved alignments from Claude", outcome.pairs().size());
 
-        return improvedPairs;
+        return outcome.pairs();
     }
 
     /**
-     * Call Claude API with a prompt
+     * Improve the uncertain pairs of one prompt without blocking. A prompt
+     * answered before is served from the cache; the usage of the others is
+     * recorded in the ledger.
      */
-    private JSONObject callClaudeAPI(String prompt) throws IOException {
-        URL url = new URL(CLAUDE_API_URL);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    public CompletableFuture<List<AlignmentPair>> improveAlignment(PromptBatch batch, Consumer<AlignmentPair> fixes,
+        Runnable sent) {
+        String prompt = batch.buildPrompt();
+        String cached = cache.get(PROVIDER, model, prompt);
+        List<AlignmentPair> answer = cached == null ? List.of() : parseClaudeResponse(new JSONObject(cached));
+        if (!answer.isEmpty()) {
+            List<AlignmentPair> pairs = batch.toGlobal(answer);
+            pairs.forEach(fixes);
+            return CompletableFuture.completedFuture(pairs);
+        }
+        int maxTokens = Configuration.getInstance().getMaxOutputTokens();
+        UsageLedger.Meter meter = new UsageLedger.Meter();
+        CompletableFuture<List<AlignmentPair>> future = dispatcher.submit(batch, new AIBatchDispatcher.Exchange() {
+            @Override
+            public HttpRequest request(PromptBatch batch) {
+                return buildRequest(prompt, maxTokens, true);
+            }
 
-        try {
-            // Set request properties
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("x-api-key", apiKey);
-            conn.setRequestProperty("anthropic-version", API_VERSION);
-            conn.setDoOutput(true);
-
-            // Build request body
-            JSONObject requestBody = new JSONObject();
-            requestBody.put("model", model);
-            requestBody.put("max_tokens", 4000);
-
-            JSONArray messages = new JSONArray();
-            JSONObject message = new JSONObject();
-            message.put("role", "user");
-            message.put("content", prompt);
-            messages.put(message);
-            requestBody.put("messages", messages);
-
-            // Send request
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+            @Override
+            public List<AlignmentPair> parse(PromptBatch batch, String body) {
+                JSONObject response = new JSONObject(body);
+                meter.read(response.optJSONObject("usage"));
+                List<AlignmentPair> answer = parseClaudeResponse(response);
+                if (!answer.isEmpty()) {
+                    cache.put(PROVIDER, model, prompt, body);
+                }
+                List<AlignmentPair> pairs = batch.toGlobal(answer);
+                pairs.forEach(fixes);
+                return pairs;
             }
 
-            // Read response
-            int responseCode = conn.getResponseCode();
-            if (responseCode != 200) {
-                // Read error response
-                String errorMsg = readErrorStream(conn);
-                throw new IOException("Claude API returned error " + responseCode + ": " + errorMsg);
+            @Override
+            public boolean streaming() {
+                return true;
             }
 
-            StringBuilder response = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    response.append(line);
+            @Override
+            public void sending(int attempt) {
+                meter.start();
+                if (attempt == 1) {
+                    sent.run();
                 }
             }
 
-            return new JSONObject(response.toString());
+            @Override
+            public List<AlignmentPair> read(PromptBatch batch, Stream<String> lines) throws IOException {
+                return readStream(batch, prompt, lines, fixes, meter);
+            }
+        });
+        // failed and cancelled requests are recorded too, as their tokens may be billed
+        future.whenComplete((pairs, error) -> ledger.record(meter, PROVIDER, model, batch, prompt.length(),
+            inputTokenPrice, outputTokenPrice, error != null));
+        return future;
+    }
 
-        } finally {
-            conn.disconnect();
+    private HttpRequest buildRequest(String prompt, int maxTokens, boolean stream) {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("model", model);
+        requestBody.put("max_tokens", maxTokens);
+        if (stream) {
+            requestBody.put("stream", true);
         }
+
+        JSONArray messages = new JSONArray();
+        JSONObject message = new JSONObject();
+        message.put("role", "user");
+        message.put("content", prompt);
+        messages.put(message);
+        requestBody.put("messages", messages);
+
+        return HttpRequest.newBuilder(URI.create(CLAUDE_API_URL))
+            .timeout(REQUEST_TIMEOUT)
+            .header("Content-Type", "application/json")
+            .header("x-api-key", apiKey)
+            .header("anthropic-version", API_VERSION)
+            .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+            .build();
     }
 
-    private String readErrorStream(HttpURLConnection conn) {
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8))) {
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
+    /**
+     * Read the server-sent events of a streamed answer. Each pair is handed
+     * to fixes as soon as its JSON object is complete; a complete answer is
+     * cached in the same form as an answer that was not streamed. Token
+     * usage is taken from the message_start and message_delta events.
+     */
+    private List<AlignmentPair> readStream(PromptBatch batch, String prompt, Stream<String> lines,
+            Consumer<AlignmentPair> fixes, UsageLedger.Meter meter) throws IOException {
+        List<AlignmentPair> pairs = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        AlignmentStreamParser parser = new AlignmentStreamParser(align -> {
+            try {
+                for (AlignmentPair pair : batch.toGlobal(List.of(AlignmentStreamParser.toPair(align)))) {
+                    pairs.add(pair);
+                    fixes.accept(pair);
+                }
+            } catch (JSONException e) {
+                logger.log(Level.WARNING, "Skipping alignment without indices: " + align);
             }
-            return sb.toString();
-        } catch (Exception e) {
-            return "Unknown error";
+        });
+        boolean complete = false;
+        Iterator<String> it = lines.iterator();
+        while (it.hasNext()) {
+            String line = it.next();
+            if (!line.startsWith("data:")) {
+                // event names, comments and the blank lines between events
+                continue;
+            }
+            JSONObject data = new JSONObject(line.substring(5).trim());
+            switch (data.optString("type")) {
+                case "message_start":
+                    JSONObject message = data.optJSONObject("message");
+                    meter.read(message == null ? null : message.optJSONObject("usage"));
+                    break;
+                case "message_delta":
+                    meter.read(data.optJSONObject("usage"));
+                    break;
+                case "content_block_delta":
+                    JSONObject delta = data.getJSONObject("delta");
+                    if ("text_delta".equals(delta.optString("type"))) {
+                        String chunk = delta.getString("text");
+                        text.append(chunk);
+                        parser.append(chunk);
+                    }
+                    break;
+                case "message_stop":
+                    complete = true;
+                    break;
+                case "error":
+                    throw new IOException("AI service error: " + data.getJSONObject("error").optString("message"));
+                default:
+                    break;
+            }
+        }
+        if (!complete) {
+            logger.log(Level.WARNING, "AI answer ended early after {0} alignments", pairs.size());
+        } else if (parser.getCount() > 0) {
+            JSONObject content = new JSONObject();
+            content.put("type", "text");
+            content.put("text", text.toString());
+            JSONObject body = new JSONObject();
+            body.put("content", new JSONArray().put(content));
+            cache.put(PROVIDER, model, prompt, body.toString());
         }
+        return pairs;
     }
 
     /**
@@ -172,16 +296,7 @@ public class ClaudeAIService {
             JSONArray alignments = alignmentData.getJSONArray("alignments");
 
             for (int i = 0; i < alignments.length(); i++) {
-                JSONObject align = alignments.getJSONObject(i);
-
-                List<Integer> sourceIndices = jsonArrayToList(align.getJSONArray("source"));
-                List<Integer> targetIndices = jsonArrayToList(align.getJSONArray("target"));
-                double confidence = align.getDouble("confidence");
-                String note = align.optString("note", "AI-improved");
-
-                AlignmentPair pair = new AlignmentPair(sourceIndices, targetIndices, confidence, note);
-                pair.setAiReviewed(true); // Mark as AI-reviewed
-                pairs.add(pair);
+                pairs.add(AlignmentStreamParser.toPair(alignments.getJSONObject(i)));
             }
 
         } catch (Exception e) {
@@ -216,26 +331,13 @@ public class ClaudeAIService {
         return text;
     }
 
-    private List<Integer> jsonArrayToList(JSONArray array) {
-        List<Integer> list = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-            list.add(array.getInt(i));
-        }
-        return list;
-    }
-
     /**
-     * Test API connection
+     * Test API connection with the smallest possible request, bypassing the
+     * cache
      */
     public boolean testConnection() {
         try {
-            List<String> testSource = List.of("Hello");
-            List<String> testTarget = List.of("Hei");
-            List<AlignmentPair> testPairs = List.of(
-                new AlignmentPair(List.of(0), List.of(0), 0.5, "test")
-            );
-
-            improveAlignment(testSource, testTarget, testPairs);
+            dispatcher.send(buildRequest("Hello", 1, false), 1);
             return true;
         } catch (Exception e) {
             logger.log(Level.ERROR, "API connection test failed", e);
@@ -15,6 +15,8 @@ package com.norjordet.bunghole.ai;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -28,6 +30,7 @@ import com.norjordet.bunghole.alignment.AlignmentPair;
 public class ClaudeAIServiceAdapter implements AIProvider {
 
     private ClaudeAIService claudeService;
+    private String apiKey;
     private String model;
     private double inputTokenPrice;
     private double outputTokenPrice;
@@ -42,6 +45,7 @@ public class ClaudeAIServiceAdapter implements AIProvider {
         this.inputTokenPrice = config.getInputTokenPrice();
         this.outputTokenPrice = config.getOutputTokenPrice();
 
+        this.apiKey = apiKey;
         this.claudeService = new ClaudeAIService(apiKey, this.model);
     }
 
@@ -57,12 +61,12 @@ public class ClaudeAIServiceAdapter implements AIProvider {
 
     @Override
     public boolean isConfigured() {
-        // ClaudeAIService doesn't have an isConfigured method, so check if service exists
-        return claudeService != null;
+        return apiKey != null && !apiKey.trim().isEmpty();
     }
 
     @Override
     public void setApiKey(String apiKey) {
+        this.apiKey = apiKey;
         this.claudeService = new ClaudeAIService(apiKey, this.model);
     }
 
@@ -124,6 +128,17 @@ public class ClaudeAIServiceAdapter implements AIProvider {
         return result;
     }
 
+    @Override
+    public CompletableFuture<List<AlignmentPair>> improveAlignment(PromptBatch batch, Consumer<AlignmentPair> fixes,
+            Runnable sent) {
+        return claudeService.improveAlignment(batch, fixes, sent);
+    }
+
+    @Override
+    public boolean testConnection() {
+        return claudeService.testConnection();
+    }
+
     @Override
     public CostEstimate estimateCost(int totalSegments, int uncertainSegments) {
         // Estimate tokens based on segment count
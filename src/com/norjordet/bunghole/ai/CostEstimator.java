@@ -16,54 +16,76 @@ import java.util.List;
 import com.norjordet.bunghole.alignment.AlignmentPair;
 
 /**
- * Utility for estimating Claude API costs
+ * Utility for estimating AI review costs
+ *
+ * Token counts start from rough averages and are calibrated per language
+ * pair from the usage the providers reported, kept in the UsageLedger.
  */
 public class CostEstimator {
 
-    // Claude Sonnet 3.5 pricing (per million tokens)
-    private static final double INPUT_COST_PER_MILLION = 3.0;
-    private static final double OUTPUT_COST_PER_MILLION = 15.0;
-
     // Average tokens per character (rough estimate)
-    private static final double TOKENS_PER_CHAR = 0.25;
+    static final double TOKENS_PER_CHAR = 0.25;
 
     // Average expected output size
-    private static final int AVG_OUTPUT_TOKENS_PER_PAIR = 50;
+    static final int AVG_OUTPUT_TOKENS_PER_PAIR = 50;
+
+    // Measured prompts needed before their ratios replace the averages
+    static final int MIN_SAMPLES = 5;
+
+    /**
+     * Tokens per prompt character and per answered pair
+     *
+     * @param samples measured prompts the ratios come from; 0 for the
+     *                averages
+     */
+    public record Ratios(double tokensPerChar, double outputTokensPerPair, int samples) {
+        public static final Ratios DEFAULT = new Ratios(TOKENS_PER_CHAR, AVG_OUTPUT_TOKENS_PER_PAIR, 0);
+    }
+
+    /**
+     * Key of a language pair, such as "en-US/nb-NO"
+     */
+    public static String languages(String sourceLang, String targetLang) {
+        return sourceLang + "/" + targetLang;
+    }
 
     /**
-     * Estimate cost for improving alignments
+     * Ratios measured for a language pair, or the averages while there are
+     * too few measurements
+     */
+    public static Ratios ratios(String languages) {
+        Ratios measured = UsageLedger.getInstance().ratios(languages);
+        return measured != null && measured.samples() >= MIN_SAMPLES ? measured : Ratios.DEFAULT;
+    }
+
+    /**
+     * Estimate cost for improving alignments, sent as the windowed prompts
+     * of the configured PromptBatcher
+     *
+     * @param languages   language pair, as given by {@link #languages}
+     * @param inputPrice  USD per million input tokens
+     * @param outputPrice USD per million output tokens
      */
     public static CostEstimate estimateCost(
         List<String> sourceSegments,
         List<String> targetSegments,
-        List<AlignmentPair> uncertainPairs
+        List<AlignmentPair> uncertainPairs,
+        String languages,
+        double inputPrice,
+        double outputPrice
     ) {
-        // Calculate prompt size
-        int promptChars = 0;
-
-        // System prompt and instructions (fixed overhead)
-        promptChars += 1000;
-
-        // Source segments
-        for (String seg : sourceSegments) {
-            promptChars += seg.length() + 10; // +10 for formatting
-        }
-
-        // Target segments
-        for (String seg : targetSegments) {
-            promptChars += seg.length() + 10;
+        List<PromptBatch> batches = PromptBatcher.fromConfiguration(languages).batches(sourceSegments,
+            targetSegments, uncertainPairs);
+        int inputTokens = 0;
+        int outputTokens = 0;
+        for (PromptBatch batch : batches) {
+            inputTokens += batch.getInputTokens();
+            outputTokens += batch.getOutputTokens();
         }
 
-        // Uncertain pairs description
-        promptChars += uncertainPairs.size() * 50;
-
-        // Convert to tokens
-        int inputTokens = (int) (promptChars * TOKENS_PER_CHAR);
-        int outputTokens = uncertainPairs.size() * AVG_OUTPUT_TOKENS_PER_PAIR;
-
         // Calculate cost
-        double inputCost = (inputTokens / 1_000_000.0) * INPUT_COST_PER_MILLION;
-        double outputCost = (outputTokens / 1_000_000.0) * OUTPUT_COST_PER_MILLION;
+        double inputCost = (inputTokens / 1_000_000.0) * inputPrice;
+        double outputCost = (outputTokens / 1_000_000.0) * outputPrice;
         double totalCost = inputCost + outputCost;
 
         return new CostEstimate(
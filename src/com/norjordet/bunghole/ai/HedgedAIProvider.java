@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.json.JSONObject;
+
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
+/**
+ * Sends each prompt to a primary provider and, when the answer takes longer
+ * than the primary usually needs, sends it to a secondary provider too.
+ *
+ * The delay is a percentile of the primary's recent answer times. The first
+ * provider to deliver a pair owns the prompt: only its pairs are applied, so
+ * a fix is never applied twice. A primary that fails before delivering
+ * anything also hands the prompt to the secondary. The request that loses
+ * the race is cancelled, so a hedged prompt is not paid for twice in full.
+ */
+public class HedgedAIProvider implements AIProvider {
+
+    private static final Logger logger = System.getLogger(HedgedAIProvider.class.getName());
+
+    // answer times kept, and needed before the percentile is trusted
+    private static final int SAMPLES = 100;
+    private static final int MIN_SAMPLES = 10;
+
+    private final AIProvider primary;
+    private final AIProvider secondary;
+    private final int percentile;
+    private final long initialDelay;
+
+    private final long[] latencies = new long[SAMPLES];
+    private int recorded;
+    private final AtomicInteger hedged = new AtomicInteger();
+
+    /**
+     * @param percentile   percentile of the primary's answer times after which the secondary is asked
+     * @param initialDelay delay in milliseconds used until enough answer times are known
+     */
+    public HedgedAIProvider(AIProvider primary, AIProvider secondary, int percentile, long initialDelay) {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.percentile = Math.max(1, Math.min(100, percentile));
+        this.initialDelay = initialDelay;
+    }
+
+    @Override
+    public CompletableFuture<List<AlignmentPair>> improveAlignment(PromptBatch batch, Consumer<AlignmentPair> fixes,
+            Runnable sent) {
+        Race race = new Race(batch, fixes, sent);
+        race.start(primary);
+        return race.result;
+    }
+
+    /**
+     * One prompt sent to one or both providers. The primary is timed from
+     * the moment its request is sent, so time spent waiting for the rate
+     * limits does not count as slowness; an answer from the cache is not
+     * timed at all. Once a provider owns the prompt the other one is
+     * cancelled.
+     */
+    private final class Race {
+        final PromptBatch batch;
+        final Consumer<AlignmentPair> fixes;
+        final Runnable sent;
+        final CompletableFuture<List<AlignmentPair>> result = new CompletableFuture<>();
+        final Map<AIProvider, CompletableFuture<List<AlignmentPair>>> futures = new HashMap<>();
+        volatile long sentAt;
+        AIProvider owner;
+        boolean secondaryStarted;
+        int running;
+
+        Race(PromptBatch batch, Consumer<AlignmentPair> fixes, Runnable sent) {
+            this.batch = batch;
+            this.fixes = fixes;
+            this.sent = sent;
+        }
+
+        void start(AIProvider provider) {
+            synchronized (this) {
+                running++;
+            }
+            CompletableFuture<List<AlignmentPair>> future = provider.improveAlignment(batch, pair -> {
+                if (claim(provider)) {
+                    fixes.accept(pair);
+                }
+            }, () -> sending(provider));
+            boolean lost;
+            synchronized (this) {
+                futures.put(provider, future);
+                lost = owner != null && owner != provider;
+            }
+            if (lost) {
+                future.cancel(true);
+            }
+            future.whenComplete((pairs, error) -> done(provider, pairs, error));
+        }
+
+        void sending(AIProvider provider) {
+            sent.run();
+            if (provider == primary) {
+                sentAt = System.nanoTime();
+                CompletableFuture.delayedExecutor(hedgeDelay(), TimeUnit.MILLISECONDS).execute(this::hedge);
+            }
+        }
+
+        boolean claim(AIProvider provider) {
+            CompletableFuture<List<AlignmentPair>> loser;
+            synchronized (this) {
+                if (owner != null) {
+                    return owner == provider;
+                }
+                owner = provider;
+                loser = futures.get(provider == primary ? secondary : primary);
+            }
+            if (loser != null) {
+                loser.cancel(true);
+            }
+            return true;
+        }
+
+        void hedge() {
+            synchronized (this) {
+                // a primary that is delivering pairs is not stalled
+                if (result.isDone() || owner != null || secondaryStarted) {
+                    return;
+                }
+                secondaryStarted = true;
+            }
+            hedged.incrementAndGet();
+            logger.log(Level.INFO, "{0} is slow, also asking {1}", primary.getProviderName(),
+                    secondary.getProviderName());
+            start(secondary);
+        }
+
+        void done(AIProvider provider, List<AlignmentPair> pairs, Throwable error) {
+            if (provider == primary && error == null && sentAt != 0) {
+                record((System.nanoTime() - sentAt) / 1_000_000);
+            }
+            boolean fallback = false;
+            boolean won = error == null && claim(provider);
+            synchronized (this) {
+                running--;
+                if (error == null) {
+                    if (won) {
+                        result.complete(pairs);
+                    }
+                } else if (owner == provider) {
+                    result.completeExceptionally(error);
+                } else if (!secondaryStarted) {
+                    secondaryStarted = true;
+                    fallback = true;
+                } else if (running == 0) {
+                    result.completeExceptionally(error);
+                }
+            }
+            if (fallback) {
+                logger.log(Level.WARNING, "{0} failed, asking {1}", primary.getProviderName(),
+                        secondary.getProviderName());
+                start(secondary);
+            }
+        }
+    }
+
+    private synchronized void record(long millis) {
+        latencies[recorded++ % SAMPLES] = millis;
+    }
+
+    /**
+     * Milliseconds to wait for the primary before asking the secondary
+     */
+    synchronized long hedgeDelay() {
+        int count = Math.min(recorded, SAMPLES);
+        if (count < MIN_SAMPLES) {
+            return initialDelay;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * Number of prompts also sent to the secondary provider
+     */
+    public int getHedgedCount() {
+        return hedged.get();
+    }
+
+    @Override
+    public String getProviderName() {
+        return primary.getProviderName();
+    }
+
+    @Override
+    public String getModelName() {
+        return primary.getModelName();
+    }
+
+    @Override
+    public boolean isConfigured() {
+        return primary.isConfigured();
+    }
+
+    @Override
+    public void setApiKey(String apiKey) {
+        primary.setApiKey(apiKey);
+    }
+
+    @Override
+    public JSONObject analyzeAlignment(String[] sourceSegments, String[] targetSegments, String sourceLang,
+            String targetLang) throws Exception {
+        return primary.analyzeAlignment(sourceSegments, targetSegments, sourceLang, targetLang);
+    }
+
+    @Override
+    public boolean testConnection() {
+        return primary.testConnection();
+    }
+
+    @Override
+    public CostEstimate estimateCost(int totalSegments, int uncertainSegments) {
+        return primary.estimateCost(totalSegments, uncertainSegments);
+    }
+
+    @Override
+    public double getInputTokenPrice() {
+        return primary.getInputTokenPrice();
+    }
+
+    @Override
+    public double getOutputTokenPrice() {
+        return primary.getOutputTokenPrice();
+    }
+}
@@ -12,20 +12,26 @@
 
 package com.norjordet.bunghole.ai;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpRequest;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.norjordet.bunghole.Configuration;
+import com.norjordet.bunghole.alignment.AlignmentPair;
 
 /**
  * Service for communicating with OpenAI API (ChatGPT)
@@ -39,6 +45,9 @@ public class OpenAIService implements AIProvider {
     private String model;
     private double inputTokenPrice;   // per million tokens
     private double outputTokenPrice;  // per million tokens
+    private final AIBatchDispatcher dispatcher = AIBatchDispatcher.fromConfiguration();
+    private final AIResponseCache cache = AIResponseCache.getInstance();
+    private final UsageLedger ledger = UsageLedger.getInstance();
 
     public OpenAIService(String apiKey) {
         this(apiKey, null);
@@ -123,69 +132,202 @@ public class OpenAIService implements AIProvider {
         request.put("messages", messages);
 
         // Make API call
-        String apiUrl = Configuration.getInstance().getOpenAIApiUrl();
+        HttpRequest httpRequest = buildRequest(request);
+
+        String response = cache.get(getProviderName(), model, prompt);
+        boolean cached = response != null;
+        if (!cached) {
+            try {
+                response = dispatcher.send(httpRequest, PromptBatcher.tokens(prompt.length()));
+            } catch (IOException e) {
+                logger.log(Level.ERROR, "OpenAI API error: " + e.getMessage());
+                throw new Exception("OpenAI API error: " + e.getMessage(), e);
+            }
+        }
 
-        URL url = new URL(apiUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        JSONObject jsonResponse = new JSONObject(response);
 
-        try {
-            // Set request headers
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setRequestProperty("Authorization", "Bearer " + apiKey);
-            conn.setDoOutput(true);
-
-            // Send request
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = request.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+        // Extract the assistant's message
+        JSONArray choices = jsonResponse.getJSONArray("choices");
+        if (choices.length() > 0) {
+            JSONObject firstChoice = choices.getJSONObject(0);
+            JSONObject message = firstChoice.getJSONObject("message");
+            String content = message.getString("content");
+
+            // Parse the JSON response from the assistant
+            JSONObject result = parseAIResponse(content);
+            if (!cached) {
+                cache.put(getProviderName(), model, prompt, response);
             }
+            return result;
+        }
 
-            // Read response
-            int responseCode = conn.getResponseCode();
-
-            if (responseCode == 200) {
-                StringBuilder response = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        response.append(line);
-                    }
-                }
+        throw new Exception("No response from OpenAI API");
+    }
+
+    @Override
+    public CompletableFuture<List<AlignmentPair>> improveAlignment(PromptBatch batch, Consumer<AlignmentPair> fixes,
+            Runnable sent) {
+        String prompt = batch.buildPrompt();
+        String cached = cache.get(getProviderName(), model, prompt);
+        if (cached != null) {
+            List<AlignmentPair> pairs = new ArrayList<>();
+            readAlignments(batch, messageContent(new JSONObject(cached)), pairs::add);
+            if (!pairs.isEmpty()) {
+                pairs.forEach(fixes);
+                return CompletableFuture.completedFuture(pairs);
+            }
+        }
+        JSONObject request = new JSONObject();
+        request.put("model", model);
+        request.put("max_tokens", Configuration.getInstance().getMaxOutputTokens());
+        request.put("stream", true);
+        // the last event then carries the token usage
+        request.put("stream_options", new JSONObject().put("include_usage", true));
+        JSONArray messages = new JSONArray();
+        messages.put(new JSONObject().put("role", "user").put("content", prompt));
+        request.put("messages", messages);
+        HttpRequest httpRequest = buildRequest(request);
+        UsageLedger.Meter meter = new UsageLedger.Meter();
 
-                JSONObject jsonResponse = new JSONObject(response.toString());
+        CompletableFuture<List<AlignmentPair>> future = dispatcher.submit(batch, new AIBatchDispatcher.Exchange() {
+            @Override
+            public HttpRequest request(PromptBatch batch) {
+                return httpRequest;
+            }
 
-                // Extract the assistant's message
-                JSONArray choices = jsonResponse.getJSONArray("choices");
-                if (choices.length() > 0) {
-                    JSONObject firstChoice = choices.getJSONObject(0);
-                    JSONObject message = firstChoice.getJSONObject("message");
-                    String content = message.getString("content");
+            @Override
+            public List<AlignmentPair> parse(PromptBatch batch, String body) {
+                List<AlignmentPair> pairs = new ArrayList<>();
+                JSONObject response = new JSONObject(body);
+                meter.read(response.optJSONObject("usage"));
+                readAlignments(batch, messageContent(response), pair -> {
+                    pairs.add(pair);
+                    fixes.accept(pair);
+                });
+                return pairs;
+            }
 
-                    // Parse the JSON response from the assistant
-                    return parseAIResponse(content);
-                }
+            @Override
+            public boolean streaming() {
+                return true;
+            }
 
-                throw new Exception("No response from OpenAI API");
-
-            } else {
-                // Read error response
-                StringBuilder errorResponse = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(conn.getErrorStream(), StandardCharsets.UTF_8))) {
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        errorResponse.append(line);
-                    }
+            @Override
+            public void sending(int attempt) {
+                meter.start();
+                if (attempt == 1) {
+                    sent.run();
                 }
+            }
 
-                logger.log(Level.ERROR, "OpenAI API error: " + errorResponse.toString());
-                throw new Exception("OpenAI API error: " + responseCode + " - " + errorResponse.toString());
+            @Override
+            public List<AlignmentPair> read(PromptBatch batch, Stream<String> lines) throws IOException {
+                return readStream(batch, prompt, lines, fixes, meter);
             }
+        });
+        // failed and cancelled requests are recorded too, as their tokens may be billed
+        future.whenComplete((pairs, error) -> ledger.record(meter, getProviderName(), model, batch,
+            prompt.length(), inputTokenPrice, outputTokenPrice, error != null));
+        return future;
+    }
 
-        } finally {
-            conn.disconnect();
+    /**
+     * Read the server-sent events of a streamed chat completion, handing each
+     * pair to fixes as soon as it is complete
+     */
+    private List<AlignmentPair> readStream(PromptBatch batch, String prompt, Stream<String> lines,
+            Consumer<AlignmentPair> fixes, UsageLedger.Meter meter) throws IOException {
+        List<AlignmentPair> pairs = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        AlignmentStreamParser parser = alignmentParser(batch, pair -> {
+            pairs.add(pair);
+            fixes.accept(pair);
+        });
+        boolean complete = false;
+        Iterator<String> it = lines.iterator();
+        while (it.hasNext()) {
+            String line = it.next();
+            if (!line.startsWith("data:")) {
+                continue;
+            }
+            String data = line.substring(5).trim();
+            if ("[DONE]".equals(data)) {
+                complete = true;
+                break;
+            }
+            JSONObject event = new JSONObject(data);
+            if (event.has("error")) {
+                throw new IOException("OpenAI API error: " + event.getJSONObject("error").optString("message"));
+            }
+            meter.read(event.optJSONObject("usage"));
+            JSONArray choices = event.optJSONArray("choices");
+            if (choices != null && choices.length() > 0) {
+                JSONObject delta = choices.getJSONObject(0).optJSONObject("delta");
+                String chunk = delta == null ? "" : delta.optString("content", "");
+                text.append(chunk);
+                parser.append(chunk);
+            }
+        }
+        if (!complete) {
+            logger.log(Level.WARNING, "OpenAI answer ended early after {0} alignments", pairs.size());
+        } else if (parser.getCount() > 0) {
+            // kept in the form of an answer that was not streamed
+            JSONObject message = new JSONObject().put("role", "assistant").put("content", text.toString());
+            JSONObject body = new JSONObject().put("choices",
+                new JSONArray().put(new JSONObject().put("message", message)));
+            cache.put(getProviderName(), model, prompt, body.toString());
+        }
+        return pairs;
+    }
+
+    private static void readAlignments(PromptBatch batch, String text, Consumer<AlignmentPair> consumer) {
+        alignmentParser(batch, consumer).append(text);
+    }
+
+    private static AlignmentStreamParser alignmentParser(PromptBatch batch, Consumer<AlignmentPair> consumer) {
+        return new AlignmentStreamParser(align -> {
+            try {
+                batch.toGlobal(List.of(AlignmentStreamParser.toPair(align))).forEach(consumer);
+            } catch (JSONException e) {
+                logger.log(Level.WARNING, "Skipping alignment without indices: " + align);
+            }
+        });
+    }
+
+    private static String messageContent(JSONObject response) {
+        JSONArray choices = response.optJSONArray("choices");
+        if (choices == null || choices.length() == 0) {
+            return "";
+        }
+        JSONObject message = choices.getJSONObject(0).optJSONObject("message");
+        return message == null ? "" : message.optString("content", "");
+    }
+
+    private HttpRequest buildRequest(JSONObject request) {
+        String apiUrl = Configuration.getInstance().getOpenAIApiUrl();
+        return HttpRequest.newBuilder(URI.create(apiUrl))
+            .timeout(Duration.ofMinutes(5))
+            .header("Content-Type", "application/json")
+            .header("Authorization", "Bearer " + apiKey)
+            .POST(HttpRequest.BodyPublishers.ofString(request.toString(), StandardCharsets.UTF_8))
+            .build();
+    }
+
+    @Override
+    public boolean testConnection() {
+        JSONObject request = new JSONObject();
+        request.put("model", model);
+        request.put("max_tokens", 1);
+        JSONArray messages = new JSONArray();
+        messages.put(new JSONObject().put("role", "user").put("content", "Hello"));
+        request.put("messages", messages);
+        try {
+            dispatcher.send(buildRequest(request), 1);
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.ERROR, "OpenAI connection test failed", e);
+            return false;
         }
     }
 
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
+/**
+ * The segments and uncertain pairs sent in one prompt.
+ *
+ * Segments are numbered from zero within the batch; the row arrays give the
+ * document index of each of them, so answers can be mapped back.
+ */
+public class PromptBatch {
+
+    private final int[] sourceRows;
+    private final int[] targetRows;
+    private final List<String> sources;
+    private final List<String> targets;
+    private final List<AlignmentPair> pairs;
+    private final int inputTokens;
+    private final int outputTokens;
+    private final String languages;
+
+    PromptBatch(int[] sourceRows, int[] targetRows, List<String> sources, List<String> targets,
+            List<AlignmentPair> pairs, int inputTokens, int outputTokens, String languages) {
+        this.sourceRows = sourceRows;
+        this.targetRows = targetRows;
+        this.sources = sources;
+        this.targets = targets;
+        this.pairs = pairs;
+        this.inputTokens = inputTokens;
+        this.outputTokens = outputTokens;
+        this.languages = languages;
+    }
+
+    /**
+     * Uncertain pairs of this batch, with document indices
+     */
+    public List<AlignmentPair> getPairs() {
+        return pairs;
+    }
+
+    public int getInputTokens() {
+        return inputTokens;
+    }
+
+    public int getOutputTokens() {
+        return outputTokens;
+    }
+
+    /**
+     * Language pair of the segments, empty when not known
+     */
+    public String getLanguages() {
+        return languages;
+    }
+
+    public String buildPrompt() {
+        List<AlignmentPair> local = new ArrayList<>();
+        for (AlignmentPair pair : pairs) {
+            local.add(new AlignmentPair(toLocal(pair.getSourceIndices(), sourceRows),
+                    toLocal(pair.getTargetIndices(), targetRows), pair.getConfidence(), pair.getNote()));
+        }
+        return PromptBuilder.buildAlignmentPrompt(sources, targets, local);
+    }
+
+    /**
+     * Answer pairs with document indices; pairs that refer to segments
+     * outside the batch are dropped
+     */
+    public List<AlignmentPair> toGlobal(List<AlignmentPair> answer) {
+        List<AlignmentPair> result = new ArrayList<>();
+        for (AlignmentPair pair : answer) {
+            List<Integer> srcIndices = toGlobal(pair.getSourceIndices(), sourceRows);
+            List<Integer> tgtIndices = toGlobal(pair.getTargetIndices(), targetRows);
+            if (srcIndices == null || tgtIndices == null) {
+                continue;
+            }
+            AlignmentPair global = new AlignmentPair(srcIndices, tgtIndices, pair.getConfidence(), pair.getNote());
+            global.setAiReviewed(pair.isAiReviewed());
+            result.add(global);
+        }
+        return result;
+    }
+
+    private static List<Integer> toLocal(List<Integer> indices, int[] rows) {
+        List<Integer> result = new ArrayList<>();
+        for (int index : indices) {
+            int local = Arrays.binarySearch(rows, index);
+            if (local >= 0) {
+                result.add(local);
+            }
+        }
+        return result;
+    }
+
+    private static List<Integer> toGlobal(List<Integer> indices, int[] rows) {
+        List<Integer> result = new ArrayList<>();
+        for (int index : indices) {
+            if (index < 0 || index >= rows.length) {
+                return null;
+            }
+            result.add(rows[index]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PromptBatch[pairs=%d, sources=%d, targets=%d, tokens=%d+%d]", pairs.size(),
+                sources.size(), targets.size(), inputTokens, outputTokens);
+    }
+}
@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.norjordet.bunghole.Configuration;
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
+/**
+ * Splits the review of uncertain pairs into prompts that fit a token budget.
+ *
+ * Each uncertain pair is shown with the segments within "context" rows of
+ * it on both sides. Windows that overlap are merged, merged windows that are
+ * too large are split, and small windows are packed together until a prompt
+ * reaches the budget. The rest of the document is never sent.
+ */
+public class PromptBatcher {
+
+    // Characters for listing one uncertain pair
+    private static final int PAIR_LINE_CHARS = 80;
+
+    private final int context;
+    private final int tokenBudget;
+    private final int maxOutputTokens;
+    private final String languages;
+    private final CostEstimator.Ratios ratios;
+    private final int overhead;
+    private final int pairLineTokens;
+
+    public PromptBatcher(int context, int tokenBudget, int maxOutputTokens) {
+        this(context, tokenBudget, maxOutputTokens, "", CostEstimator.Ratios.DEFAULT);
+    }
+
+    /**
+     * @param languages language pair of the segments, as given by
+     *                  {@link CostEstimator#languages}
+     * @param ratios    tokens per character and per answered pair used for
+     *                  the estimates
+     */
+    public PromptBatcher(int context, int tokenBudget, int maxOutputTokens, String languages,
+            CostEstimator.Ratios ratios) {
+        this.context = context;
+        this.tokenBudget = tokenBudget;
+        this.maxOutputTokens = maxOutputTokens;
+        this.languages = languages;
+        this.ratios = ratios;
+        this.overhead = estimate(PromptBuilder.buildAlignmentPrompt(List.of(), List.of(), List.of()).length());
+        this.pairLineTokens = estimate(PAIR_LINE_CHARS);
+    }
+
+    /**
+     * Batcher with the window size and budgets from the configuration
+     */
+    public static PromptBatcher fromConfiguration() {
+        return fromConfiguration("");
+    }
+
+    /**
+     * Batcher for a language pair, with token ratios calibrated from the
+     * usage measured for it
+     */
+    public static PromptBatcher fromConfiguration(String languages) {
+        Configuration config = Configuration.getInstance();
+        return new PromptBatcher(config.getPromptContext(), config.getPromptTokenBudget(),
+                config.getMaxOutputTokens(), languages, CostEstimator.ratios(languages));
+    }
+
+    public int getMaxOutputTokens() {
+        return maxOutputTokens;
+    }
+
+    static int tokens(int chars) {
+        return (int) Math.ceil(chars * CostEstimator.TOKENS_PER_CHAR);
+    }
+
+    private int estimate(int chars) {
+        return (int) Math.ceil(chars * ratios.tokensPerChar());
+    }
+
+    private int outputTokens(int pairs) {
+        return (int) Math.ceil(pairs * ratios.outputTokensPerPair());
+    }
+
+    /**
+     * Rows shown for one or more pairs: [srcFrom, srcTo) and [tgtFrom, tgtTo)
+     */
+    private static final class Window {
+        int srcFrom;
+        int srcTo;
+        int tgtFrom;
+        int tgtTo;
+        final List<AlignmentPair> pairs = new ArrayList<>();
+
+        Window(int srcFrom, int srcTo, int tgtFrom, int tgtTo) {
+            this.srcFrom = srcFrom;
+            this.srcTo = srcTo;
+            this.tgtFrom = tgtFrom;
+            this.tgtTo = tgtTo;
+        }
+
+        boolean overlaps(Window other) {
+            return other.srcFrom < srcTo || other.tgtFrom < tgtTo && other.tgtTo > tgtFrom;
+        }
+
+        void add(Window other) {
+            srcFrom = Math.min(srcFrom, other.srcFrom);
+            srcTo = Math.max(srcTo, other.srcTo);
+            tgtFrom = Math.min(tgtFrom, other.tgtFrom);
+            tgtTo = Math.max(tgtTo, other.tgtTo);
+            pairs.addAll(other.pairs);
+        }
+    }
+
+    public List<PromptBatch> batches(List<String> sources, List<String> targets, List<AlignmentPair> uncertain) {
+        int[] srcCost = rowCosts(sources);
+        int[] tgtCost = rowCosts(targets);
+
+        List<Window> windows = new ArrayList<>();
+        for (AlignmentPair pair : uncertain) {
+            Window window = window(pair, sources.size(), targets.size());
+            if (window != null) {
+                windows.add(window);
+            }
+        }
+        windows.sort(Comparator.comparingInt((Window w) -> w.srcFrom).thenComparingInt(w -> w.tgtFrom));
+
+        // merge overlapping windows, then split the ones over budget
+        List<Window> merged = new ArrayList<>();
+        for (Window window : windows) {
+            Window last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last.overlaps(window)) {
+                last.add(window);
+            } else {
+                merged.add(window);
+            }
+        }
+        List<Window> pieces = new ArrayList<>();
+        for (Window window : merged) {
+            if (cost(window, srcCost, tgtCost) + overhead <= tokenBudget && fitsOutput(window.pairs.size())) {
+                pieces.add(window);
+                continue;
+            }
+            Window piece = null;
+            for (AlignmentPair pair : window.pairs) {
+                Window single = window(pair, sources.size(), targets.size());
+                if (piece != null) {
+                    Window grown = copy(piece);
+                    grown.add(single);
+                    if (cost(grown, srcCost, tgtCost) + overhead <= tokenBudget
+                            && fitsOutput(grown.pairs.size())) {
+                        piece = grown;
+                        continue;
+                    }
+                    pieces.add(piece);
+                }
+                // a single pair is sent even when its window alone is over budget
+                piece = single;
+            }
+            if (piece != null) {
+                pieces.add(piece);
+            }
+        }
+
+        // pack consecutive pieces into prompts
+        List<PromptBatch> batches = new ArrayList<>();
+        List<Window> current = new ArrayList<>();
+        int currentCost = 0;
+        int currentPairs = 0;
+        for (Window piece : pieces) {
+            int pieceCost = cost(piece, srcCost, tgtCost);
+            if (!current.isEmpty() && (currentCost + pieceCost + overhead > tokenBudget
+                    || !fitsOutput(currentPairs + piece.pairs.size()))) {
+                batches.add(batch(current, sources, targets, srcCost, tgtCost));
+                current = new ArrayList<>();
+                currentCost = 0;
+                currentPairs = 0;
+            }
+            current.add(piece);
+            currentCost += pieceCost;
+            currentPairs += piece.pairs.size();
+        }
+        if (!current.isEmpty()) {
+            batches.add(batch(current, sources, targets, srcCost, tgtCost));
+        }
+        return batches;
+    }
+
+    private boolean fitsOutput(int pairs) {
+        return outputTokens(pairs) <= maxOutputTokens;
+    }
+
+    /**
+     * Window around a pair; a side without segments uses the rows of the
+     * other side
+     */
+    private Window window(AlignmentPair pair, int srcSize, int tgtSize) {
+        List<Integer> src = pair.getSourceIndices();
+        List<Integer> tgt = pair.getTargetIndices();
+        if (src.isEmpty() && tgt.isEmpty()) {
+            return null;
+        }
+        List<Integer> srcCenter = src.isEmpty() ? tgt : src;
+        List<Integer> tgtCenter = tgt.isEmpty() ? src : tgt;
+        Window window = new Window(
+                clamp(min(srcCenter) - context, srcSize), clamp(max(srcCenter) + context + 1, srcSize),
+                clamp(min(tgtCenter) - context, tgtSize), clamp(max(tgtCenter) + context + 1, tgtSize));
+        window.pairs.add(pair);
+        return window;
+    }
+
+    private static Window copy(Window window) {
+        Window copy = new Window(window.srcFrom, window.srcTo, window.tgtFrom, window.tgtTo);
+        copy.pairs.addAll(window.pairs);
+        return copy;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size, value));
+    }
+
+    private static int min(List<Integer> list) {
+        int result = Integer.MAX_VALUE;
+        for (int i : list) {
+            result = Math.min(result, i);
+        }
+        return result;
+    }
+
+    private static int max(List<Integer> list) {
+        int result = Integer.MIN_VALUE;
+        for (int i : list) {
+            result = Math.max(result, i);
+        }
+        return result;
+    }
+
+    /**
+     * Tokens for each listed segment, as prefix sums
+     */
+    private int[] rowCosts(List<String> segments) {
+        int[] costs = new int[segments.size() + 1];
+        for (int i = 0; i < segments.size(); i++) {
+            // "S123: " prefix and line break
+            costs[i + 1] = costs[i] + estimate(segments.get(i).length() + 8);
+        }
+        return costs;
+    }
+
+    private int cost(Window window, int[] srcCost, int[] tgtCost) {
+        return srcCost[window.srcTo] - srcCost[window.srcFrom] + tgtCost[window.tgtTo] - tgtCost[window.tgtFrom]
+                + window.pairs.size() * pairLineTokens;
+    }
+
+    private PromptBatch batch(List<Window> windows, List<String> sources, List<String> targets, int[] srcCost,
+            int[] tgtCost) {
+        TreeSet<Integer> srcRows = new TreeSet<>();
+        TreeSet<Integer> tgtRows = new TreeSet<>();
+        List<AlignmentPair> pairs = new ArrayList<>();
+        for (Window window : windows) {
+            for (int i = window.srcFrom; i < window.srcTo; i++) {
+                srcRows.add(i);
+            }
+            for (int j = window.tgtFrom; j < window.tgtTo; j++) {
+                tgtRows.add(j);
+            }
+            pairs.addAll(window.pairs);
+        }
+        int[] sourceRows = srcRows.stream().mapToInt(Integer::intValue).toArray();
+        int[] targetRows = tgtRows.stream().mapToInt(Integer::intValue).toArray();
+        List<String> sourceTexts = new ArrayList<>();
+        int inputTokens = overhead + pairs.size() * pairLineTokens;
+        for (int i : sourceRows) {
+            sourceTexts.add(sources.get(i));
+            inputTokens += srcCost[i + 1] - srcCost[i];
+        }
+        List<String> targetTexts = new ArrayList<>();
+        for (int j : targetRows) {
+            targetTexts.add(targets.get(j));
+            inputTokens += tgtCost[j + 1] - tgtCost[j];
+        }
+        return new PromptBatch(sourceRows, targetRows, sourceTexts, targetTexts, pairs, inputTokens,
+                outputTokens(pairs.size()), languages);
+    }
+}
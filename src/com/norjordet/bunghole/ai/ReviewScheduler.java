@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import com.norjordet.bunghole.alignment.AlignmentPair;
+
+/**
+ * Runs an AI review within a spending budget and a deadline.
+ *
+ * Prompts are sent in order of expected benefit: pairs with low confidence
+ * and pairs with a missing side count most. Each prompt is charged its
+ * estimated cost before it is sent and refunded when no request went out
+ * for it, as when it was answered from the cache. Every further request for
+ * the same prompt, a hedge or a fallback to another provider, is charged
+ * again, so only prompts already in flight can take the spend past the
+ * budget. Once the next prompt would go over the budget, cheaper ones are
+ * still tried. After the deadline no prompt is started; prompts already sent
+ * are allowed to finish. The report lists the pairs that were not reviewed.
+ */
+public class ReviewScheduler {
+
+    private static final Logger logger = System.getLogger(ReviewScheduler.class.getName());
+
+    public static final String BUDGET = "budget";
+    public static final String DEADLINE = "deadline";
+
+    private final double budget;
+    private final long deadline;
+    private final double inputPrice;
+    private final double outputPrice;
+    private final int maxConcurrent;
+
+    /**
+     * Sends one prompt
+     */
+    public interface Sender {
+        /**
+         * @param sent to be called for each request actually sent for the
+         *             batch, see {@link AIProvider#improveAlignment(PromptBatch,
+         *             java.util.function.Consumer, Runnable)}
+         */
+        CompletableFuture<List<AlignmentPair>> send(PromptBatch batch, Runnable sent);
+    }
+
+    /**
+     * Result of a scheduled review
+     *
+     * @param pairs       improved pairs of the prompts that were answered
+     * @param batches     prompts sent
+     * @param failed      prompts that failed
+     * @param error       message of the last failure
+     * @param notReviewed uncertain pairs of the prompts not sent
+     * @param spent       estimated cost of the requests sent, in USD
+     * @param stopReason  BUDGET, DEADLINE or an empty string when all prompts
+     *                    were sent
+     */
+    public record Report(List<AlignmentPair> pairs, int batches, int failed, String error,
+            List<AlignmentPair> notReviewed, double spent, String stopReason) {
+    }
+
+    /**
+     * @param budget        maximum estimated cost in USD; 0 for no limit
+     * @param deadline      time in milliseconds (as System.currentTimeMillis)
+     *                      after which no prompt is started; 0 for no limit
+     * @param inputPrice    USD per million input tokens
+     * @param outputPrice   USD per million output tokens
+     * @param maxConcurrent prompts in flight at the same time
+     */
+    public ReviewScheduler(double budget, long deadline, double inputPrice, double outputPrice, int maxConcurrent) {
+        this.budget = budget;
+        this.deadline = deadline;
+        this.inputPrice = inputPrice;
+        this.outputPrice = outputPrice;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    public double getBudget() {
+        return budget;
+    }
+
+    public double getInputPrice() {
+        return inputPrice;
+    }
+
+    public double getOutputPrice() {
+        return outputPrice;
+    }
+
+    /**
+     * Expected gain of reviewing a pair
+     */
+    public static double benefit(AlignmentPair pair) {
+        double benefit = 1.0 - pair.getConfidence();
+        if (pair.getSourceIndices().isEmpty() || pair.getTargetIndices().isEmpty()) {
+            benefit += 0.5;
+        }
+        return benefit;
+    }
+
+    public static double benefit(PromptBatch batch) {
+        double benefit = 0;
+        for (AlignmentPair pair : batch.getPairs()) {
+            benefit += benefit(pair);
+        }
+        return benefit;
+    }
+
+    /**
+     * Estimated cost of a prompt in USD
+     */
+    public double cost(PromptBatch batch) {
+        return batch.getInputTokens() / 1_000_000.0 * inputPrice
+                + batch.getOutputTokens() / 1_000_000.0 * outputPrice;
+    }
+
+    private static List<PromptBatch> byBenefit(List<PromptBatch> batches) {
+        List<PromptBatch> ordered = new ArrayList<>(batches);
+        ordered.sort(Comparator.comparingDouble((PromptBatch batch) -> benefit(batch)).reversed());
+        return ordered;
+    }
+
+    /**
+     * Prompts that fit the budget, in the order they would be sent; the
+     * deadline is not taken into account
+     */
+    public List<PromptBatch> plan(List<PromptBatch> batches) {
+        List<PromptBatch> planned = new ArrayList<>();
+        double spent = 0;
+        for (PromptBatch batch : byBenefit(batches)) {
+            double cost = cost(batch);
+            if (budget > 0 && spent + cost > budget) {
+                continue;
+            }
+            spent += cost;
+            planned.add(batch);
+        }
+        return planned;
+    }
+
+    /**
+     * Send prompts in order of benefit until the budget or the deadline is
+     * reached, and wait for the ones sent. The total passed to progress is
+     * the number of prompts the budget allows, and the number actually sent
+     * once all of them were started.
+     */
+    public Report run(List<PromptBatch> batches, Sender sender, AIBatchDispatcher.Progress progress)
+            throws IOException {
+        List<PromptBatch> ordered = byBenefit(batches);
+        List<CompletableFuture<List<AlignmentPair>>> futures = new ArrayList<>();
+        List<AlignmentPair> notReviewed = new ArrayList<>();
+        Semaphore slots = new Semaphore(maxConcurrent);
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger total = new AtomicInteger(plan(batches).size());
+        DoubleAdder spent = new DoubleAdder();
+        String stopReason = "";
+        try {
+            for (int i = 0; i < ordered.size(); i++) {
+                PromptBatch batch = ordered.get(i);
+                double cost = cost(batch);
+                if (budget > 0 && spent.sum() + cost > budget) {
+                    notReviewed.addAll(batch.getPairs());
+                    stopReason = BUDGET;
+                    continue;
+                }
+                if (!acquire(slots)) {
+                    for (PromptBatch late : ordered.subList(i, ordered.size())) {
+                        notReviewed.addAll(late.getPairs());
+                    }
+                    stopReason = DEADLINE;
+                    break;
+                }
+                // the first request is charged up front, so prompts waiting
+                // for the rate limits count against the budget
+                spent.add(cost);
+                AtomicInteger sends = new AtomicInteger();
+                CompletableFuture<List<AlignmentPair>> future = sender.send(batch, () -> {
+                    if (sends.incrementAndGet() > 1) {
+                        spent.add(cost);
+                    }
+                });
+                futures.add(future.whenComplete((pairs, error) -> {
+                    if (sends.get() == 0) {
+                        // answered from the cache, or failed before sending
+                        spent.add(-cost);
+                    }
+                    slots.release();
+                    progress.batchDone(done.incrementAndGet(), total.get(), batch,
+                            error == null ? null : AIBatchDispatcher.cause(error));
+                }));
+            }
+            total.set(futures.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("AI review interrupted", e);
+        }
+
+        List<AlignmentPair> pairs = new ArrayList<>();
+        int failed = 0;
+        String error = null;
+        for (CompletableFuture<List<AlignmentPair>> future : futures) {
+            try {
+                pairs.addAll(future.get());
+            } catch (ExecutionException e) {
+                failed++;
+                error = AIBatchDispatcher.cause(e).getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("AI review interrupted", e);
+            }
+        }
+        if (!stopReason.isEmpty()) {
+            logger.log(Level.INFO, "AI review stopped by {0}: {1} pairs not reviewed", stopReason,
+                    notReviewed.size());
+        }
+        return new Report(pairs, futures.size(), failed, error, notReviewed, spent.sum(), stopReason);
+    }
+
+    /**
+     * Wait for a free slot; false when the deadline passes first
+     */
+    private boolean acquire(Semaphore slots) throws InterruptedException {
+        if (deadline <= 0) {
+            slots.acquire();
+            return true;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        return remaining > 0 && slots.tryAcquire(remaining, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.ai;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.norjordet.bunghole.Configuration;
+
+/**
+ * Token usage, answer time and cost of every AI request, as reported by the
+ * providers. Requests that failed or were cancelled after they were sent are
+ * recorded with the usage read until then, as it may have been billed.
+ *
+ * Each request is appended to a JSON Lines file, so the history survives a
+ * restart and can be read by other tools. The most recent requests of each
+ * language pair give the CostEstimator its ratios of tokens per character
+ * and per answered pair.
+ */
+public class UsageLedger {
+
+    private static final Logger logger = System.getLogger(UsageLedger.class.getName());
+
+    // measured requests per language pair used for the ratios
+    private static final int WINDOW = 200;
+    // answer times per model kept for the percentiles
+    private static final int LATENCIES = 1000;
+
+    private static UsageLedger instance;
+
+    /**
+     * One answered request
+     *
+     * @param time                  end of the request, in milliseconds
+     * @param languages             language pair, empty when not known
+     * @param promptChars           characters of the prompt sent
+     * @param pairs                 uncertain pairs in the prompt
+     * @param estimatedInputTokens  input tokens expected before sending
+     * @param estimatedOutputTokens output tokens expected before sending
+     * @param inputTokens           input tokens reported; 0 when the answer
+     *                              had no usage
+     * @param outputTokens          output tokens reported
+     * @param latency               answer time in milliseconds
+     * @param cost                  cost of the reported tokens in USD
+     * @param failed                whether the request failed or was
+     *                              cancelled before its answer was complete
+     */
+    public record Entry(long time, String provider, String model, String languages, int promptChars, int pairs,
+            int estimatedInputTokens, int estimatedOutputTokens, int inputTokens, int outputTokens, long latency,
+            double cost, boolean failed) {
+
+        /**
+         * Whether the entry is a complete answer with its usage, fit for the
+         * ratios
+         */
+        boolean measured() {
+            return inputTokens > 0 && !failed;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("time", time);
+            json.put("provider", provider);
+            json.put("model", model);
+            json.put("languages", languages);
+            json.put("promptChars", promptChars);
+            json.put("pairs", pairs);
+            json.put("estimatedInputTokens", estimatedInputTokens);
+            json.put("estimatedOutputTokens", estimatedOutputTokens);
+            json.put("inputTokens", inputTokens);
+            json.put("outputTokens", outputTokens);
+            json.put("latency", latency);
+            json.put("cost", cost);
+            json.put("failed", failed);
+            return json;
+        }
+
+        static Entry fromJSON(JSONObject json) {
+            return new Entry(json.getLong("time"), json.getString("provider"), json.getString("model"),
+                    json.optString("languages"), json.getInt("promptChars"), json.getInt("pairs"),
+                    json.getInt("estimatedInputTokens"), json.getInt("estimatedOutputTokens"),
+                    json.getInt("inputTokens"), json.getInt("outputTokens"), json.getLong("latency"),
+                    json.getDouble("cost"), json.optBoolean("failed"));
+        }
+    }
+
+    /**
+     * Usage of one request, filled in while its answer is read
+     */
+    public static final class Meter {
+        private volatile long start;
+        private volatile int inputTokens;
+        private volatile int outputTokens;
+
+        /**
+         * Mark the moment an attempt is sent, after any wait for the rate
+         * limits; the answer time is measured from the last one
+         */
+        public void start() {
+            start = System.nanoTime();
+        }
+
+        /**
+         * Whether a request was sent at all
+         */
+        public boolean started() {
+            return start != 0;
+        }
+
+        /**
+         * Read a "usage" object in the format of Anthropic or OpenAI; values
+         * missing from it are kept
+         */
+        public void read(JSONObject usage) {
+            if (usage == null) {
+                return;
+            }
+            if (usage.has("input_tokens") || usage.has("prompt_tokens")) {
+                inputTokens = usage.optInt("input_tokens", usage.optInt("prompt_tokens"));
+            }
+            if (usage.has("output_tokens") || usage.has("completion_tokens")) {
+                outputTokens = usage.optInt("output_tokens", usage.optInt("completion_tokens"));
+            }
+        }
+
+        long elapsed() {
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+    }
+
+    /**
+     * Totals of one provider and model
+     */
+    private static final class ModelUsage {
+        int requests;
+        int answered;
+        long inputTokens;
+        long outputTokens;
+        double cost;
+        long latencyTotal;
+        final long[] latencies = new long[LATENCIES];
+        int recorded;
+    }
+
+    private final Path file;
+    private final Map<String, ModelUsage> models = new TreeMap<>();
+    private final Map<String, ArrayDeque<Entry>> recent = new TreeMap<>();
+    private int requests;
+    private long inputTokens;
+    private long outputTokens;
+    private double cost;
+    private long since;
+
+    /**
+     * @param file JSON Lines file with the history, created when missing; null
+     *             keeps the ledger in memory only
+     */
+    public UsageLedger(Path file) {
+        this.file = file;
+        if (file != null) {
+            load();
+        }
+    }
+
+    /**
+     * Ledger in the configured file, shared by all providers
+     */
+    public static synchronized UsageLedger getInstance() {
+        if (instance == null) {
+            String file = Configuration.getInstance().getAIUsageLedger();
+            instance = new UsageLedger(file.isEmpty() ? null : Path.of(file));
+        }
+        return instance;
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        int skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    add(Entry.fromJSON(new JSONObject(line)));
+                } catch (JSONException e) {
+                    skipped++;
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "AI usage not read: " + e.getMessage());
+        }
+        if (skipped > 0) {
+            logger.log(Level.WARNING, "Skipped {0} malformed lines of {1}", skipped, file);
+        }
+    }
+
+    /**
+     * Record a request that was sent, whether it was answered or not
+     *
+     * @param promptChars characters of the prompt sent
+     * @param inputPrice  USD per million input tokens
+     * @param outputPrice USD per million output tokens
+     * @param failed      whether the request failed or was cancelled
+     * @return the entry, or null when no request was sent
+     */
+    public Entry record(Meter meter, String provider, String model, PromptBatch batch, int promptChars,
+            double inputPrice, double outputPrice, boolean failed) {
+        if (!meter.started()) {
+            return null;
+        }
+        int input = meter.inputTokens;
+        int output = meter.outputTokens;
+        double spent = input / 1_000_000.0 * inputPrice + output / 1_000_000.0 * outputPrice;
+        Entry entry = new Entry(System.currentTimeMillis(), provider, model, batch.getLanguages(), promptChars,
+                batch.getPairs().size(), batch.getInputTokens(), batch.getOutputTokens(), input, output,
+                meter.elapsed(), spent, failed);
+        if (!failed && input == 0) {
+            logger.log(Level.WARNING, "{0} answer without token usage", provider);
+        }
+        synchronized (this) {
+            add(entry);
+            append(entry);
+        }
+        return entry;
+    }
+
+    private void add(Entry entry) {
+        if (requests == 0) {
+            since = entry.time();
+        }
+        requests++;
+        inputTokens += entry.inputTokens();
+        outputTokens += entry.outputTokens();
+        cost += entry.cost();
+
+        ModelUsage usage = models.computeIfAbsent(entry.provider() + "/" + entry.model(), k -> new ModelUsage());
+        usage.requests++;
+        usage.inputTokens += entry.inputTokens();
+        usage.outputTokens += entry.outputTokens();
+        usage.cost += entry.cost();
+        if (!entry.failed()) {
+            usage.answered++;
+            usage.latencyTotal += entry.latency();
+            usage.latencies[usage.recorded++ % LATENCIES] = entry.latency();
+        }
+
+        if (entry.measured()) {
+            ArrayDeque<Entry> window = recent.computeIfAbsent(entry.languages(), k -> new ArrayDeque<>());
+            window.addLast(entry);
+            if (window.size() > WINDOW) {
+                window.removeFirst();
+            }
+        }
+    }
+
+    private void append(Entry entry) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            Files.writeString(file, entry.toJSON().toString() + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // the usage still counts for this session
+            logger.log(Level.WARNING, "AI usage not recorded: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ratios measured in the recent requests of a language pair, or null
+     * when there are none
+     */
+    public synchronized CostEstimator.Ratios ratios(String languages) {
+        ArrayDeque<Entry> window = recent.get(languages);
+        if (window == null || window.isEmpty()) {
+            return null;
+        }
+        long chars = 0;
+        long input = 0;
+        long pairs = 0;
+        long output = 0;
+        for (Entry entry : window) {
+            chars += entry.promptChars();
+            input += entry.inputTokens();
+            pairs += entry.pairs();
+            output += entry.outputTokens();
+        }
+        if (chars == 0 || pairs == 0) {
+            return null;
+        }
+        return new CostEstimator.Ratios((double) input / chars, (double) output / pairs, window.size());
+    }
+
+    /**
+     * Totals, usage and answer times per model, and the measured ratios and
+     * estimate errors per language pair
+     */
+    public synchronized JSONObject statistics() {
+        JSONObject result = new JSONObject();
+        result.put("requests", requests);
+        result.put("inputTokens", inputTokens);
+        result.put("outputTokens", outputTokens);
+        result.put("cost", cost);
+        result.put("since", since);
+
+        JSONArray modelList = new JSONArray();
+        for (Map.Entry<String, ModelUsage> e : models.entrySet()) {
+            ModelUsage usage = e.getValue();
+            String[] key = e.getKey().split("/", 2);
+            JSONObject json = new JSONObject();
+            json.put("provider", key[0]);
+            json.put("model", key[1]);
+            json.put("requests", usage.requests);
+            json.put("failed", usage.requests - usage.answered);
+            json.put("inputTokens", usage.inputTokens);
+            json.put("outputTokens", usage.outputTokens);
+            json.put("cost", usage.cost);
+            json.put("meanLatency", usage.answered == 0 ? 0 : usage.latencyTotal / usage.answered);
+            long[] sorted = Arrays.copyOf(usage.latencies, Math.min(usage.recorded, LATENCIES));
+            Arrays.sort(sorted);
+            json.put("p50Latency", percentile(sorted, 50));
+            json.put("p95Latency", percentile(sorted, 95));
+            json.put("outputTokensPerSecond",
+                    usage.latencyTotal == 0 ? 0.0 : usage.outputTokens * 1000.0 / usage.latencyTotal);
+            modelList.put(json);
+        }
+        result.put("models", modelList);
+
+        JSONArray languageList = new JSONArray();
+        for (Map.Entry<String, ArrayDeque<Entry>> e : recent.entrySet()) {
+            CostEstimator.Ratios ratios = ratios(e.getKey());
+            if (ratios == null) {
+                continue;
+            }
+            double inputError = 0;
+            double outputError = 0;
+            int answered = 0;
+            for (Entry entry : e.getValue()) {
+                inputError += Math.abs(entry.estimatedInputTokens() - entry.inputTokens())
+                        / (double) entry.inputTokens();
+                if (entry.outputTokens() > 0) {
+                    outputError += Math.abs(entry.estimatedOutputTokens() - entry.outputTokens())
+                            / (double) entry.outputTokens();
+                    answered++;
+                }
+            }
+            JSONObject json = new JSONObject();
+            json.put("languages", e.getKey());
+            json.put("samples", ratios.samples());
+            json.put("calibrated", ratios.samples() >= CostEstimator.MIN_SAMPLES);
+            json.put("tokensPerChar", ratios.tokensPerChar());
+            json.put("outputTokensPerPair", ratios.outputTokensPerPair());
+            // mean relative error of the estimates made before sending
+            json.put("inputEstimateError", inputError / e.getValue().size());
+            json.put("outputEstimateError", answered == 0 ? 0.0 : outputError / answered);
+            languageList.put(json);
+        }
+        result.put("languages", languageList);
+        return result;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -54,6 +54,14 @@ public class AlignmentEngine {
      * Uses two-pass hybrid strategy for optimal quality
      */
     public AlignmentResult performAlignment(List<Element> sources, List<Element> targets) {
+        return performAlignment(sources, targets, null);
+    }
+
+    /**
+     * Perform alignment, keeping the pairs that a translation memory confirms
+     * as fixed anchors; Gale-Church only runs between them
+     */
+    public AlignmentResult performAlignment(List<Element> sources, List<Element> targets, TranslationMemory memory) {
         // Convert elements to strings
         List<String> sourceStrings = sources.stream()
             .map(this::extractText)
@@ -65,7 +73,8 @@ public class AlignmentEngine {
 
         // PASS 1: Run Gale-Church on all segments (fast baseline)
         logger.log(Level.INFO, "Pass 1: Running Gale-Church alignment on all segments...");
-        List<AlignmentPair> galeChurchPairs = galeChurch.align(sourceStrings, targetStrings);
+        List<AlignmentPair> galeChurchPairs = memory == null ? galeChurch.align(sourceStrings, targetStrings)
+                : alignBetweenAnchors(sourceStrings, targetStrings, memory.anchors(sourceStrings, targetStrings));
 
         // If Hunalign not available, return Gale-Church results
         if (!useHunalign) {
@@ -89,7 +98,10 @@ public class AlignmentEngine {
                 AlignmentPair haPair = hunalignPairs.get(i);
 
                 // Check if both algorithms agree
-                if (pairsMatch(gcPair, haPair)) {
+                if (TranslationMemory.METHOD.equals(gcPair.getNote())) {
+                    // Confirmed by the translation memory, nothing to compare
+                    finalPairs.add(gcPair);
+                } else if (pairsMatch(gcPair, haPair)) {
                     agreedCount++;
                     // Both agree - boost confidence and note agreement
                     AlignmentPair boostedPair = new AlignmentPair(
@@ -132,6 +144,62 @@ public class AlignmentEngine {
         return createResult(finalPairs, "Hybrid (Gale-Church + Hunalign)");
     }
 
+    /**
+     * Gale-Church on the stretches between anchors, which are kept as 1:1
+     * pairs with full confidence. Rows are not moved, so only anchors whose
+     * source and target share a row confirm it; a confirmed pair that sits
+     * on different rows is left to Gale-Church like its neighbours.
+     */
+    private List<AlignmentPair> alignBetweenAnchors(List<String> sourceStrings, List<String> targetStrings,
+            int[][] anchors) {
+        List<int[]> rows = new ArrayList<>();
+        for (int[] anchor : anchors) {
+            if (anchor[0] == anchor[1]) {
+                rows.add(anchor);
+            }
+        }
+        logger.log(Level.INFO, "Translation memory confirms {0} of {1} segments, {2} of them on shifted rows",
+            anchors.length, sourceStrings.size(), anchors.length - rows.size());
+        List<AlignmentPair> pairs = new ArrayList<>();
+        int srcStart = 0;
+        int tgtStart = 0;
+        for (int[] anchor : rows) {
+            alignGap(sourceStrings, targetStrings, srcStart, anchor[0], tgtStart, anchor[1], pairs);
+            pairs.add(new AlignmentPair(List.of(anchor[0]), List.of(anchor[1]), 1.0, TranslationMemory.METHOD));
+            srcStart = anchor[0] + 1;
+            tgtStart = anchor[1] + 1;
+        }
+        alignGap(sourceStrings, targetStrings, srcStart, sourceStrings.size(), tgtStart, targetStrings.size(), pairs);
+        return pairs;
+    }
+
+    private void alignGap(List<String> sourceStrings, List<String> targetStrings, int srcStart, int srcEnd,
+            int tgtStart, int tgtEnd, List<AlignmentPair> pairs) {
+        // Gale-Church leaves a stretch with only one side unaligned
+        if (srcStart == srcEnd || tgtStart == tgtEnd) {
+            for (int i = srcStart; i < srcEnd; i++) {
+                pairs.add(new AlignmentPair(List.of(i), List.of(), 0.5, "Deletion (no target)"));
+            }
+            for (int j = tgtStart; j < tgtEnd; j++) {
+                pairs.add(new AlignmentPair(List.of(), List.of(j), 0.5, "Insertion (no source)"));
+            }
+            return;
+        }
+        List<AlignmentPair> gap = galeChurch.align(sourceStrings.subList(srcStart, srcEnd),
+            targetStrings.subList(tgtStart, tgtEnd));
+        for (AlignmentPair pair : gap) {
+            List<Integer> srcIndices = new ArrayList<>();
+            for (int i : pair.getSourceIndices()) {
+                srcIndices.add(i + srcStart);
+            }
+            List<Integer> tgtIndices = new ArrayList<>();
+            for (int j : pair.getTargetIndices()) {
+                tgtIndices.add(j + tgtStart);
+            }
+            pairs.add(new AlignmentPair(srcIndices, tgtIndices, pair.getConfidence(), pair.getNote()));
+        }
+    }
+
     /**
      * Check if two alignment pairs match (same source/target indices)
      */
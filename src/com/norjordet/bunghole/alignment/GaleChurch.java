@@ -191,6 +191,34 @@ public class GaleChurch {
     private double calculateConfidence(int alignType, List<Integer> srcIndices,
                                        List<Integer> tgtIndices,
                                        List<String> source, List<String> target) {
+        int srcLen = 0;
+        for (int idx : srcIndices) {
+            if (idx < source.size()) srcLen += source.get(idx).length();
+        }
+
+        int tgtLen = 0;
+        for (int idx : tgtIndices) {
+            if (idx < target.size()) tgtLen += target.get(idx).length();
+        }
+
+        return calculateConfidence(alignType, !srcIndices.isEmpty() && !tgtIndices.isEmpty(), srcLen, tgtLen);
+    }
+
+    /**
+     * Confidence of a pair that is already aligned one to one, for example a
+     * translation unit read from a TMX file
+     */
+    public double score(String source, String target) {
+        if (target.isEmpty()) {
+            return calculateConfidence(4, false, source.length(), 0);
+        }
+        if (source.isEmpty()) {
+            return calculateConfidence(5, false, 0, target.length());
+        }
+        return calculateConfidence(0, true, source.length(), target.length());
+    }
+
+    private double calculateConfidence(int alignType, boolean bothSides, int srcLen, int tgtLen) {
         double baseConfidence;
         switch (alignType) {
             case 0: baseConfidence = 0.95; break; // 1:1 - high confidence
@@ -203,17 +231,7 @@ public class GaleChurch {
         }
 
         // Adjust confidence based on length similarity
-        if (!srcIndices.isEmpty() && !tgtIndices.isEmpty()) {
-            int srcLen = 0;
-            for (int idx : srcIndices) {
-                if (idx < source.size()) srcLen += source.get(idx).length();
-            }
-
-            int tgtLen = 0;
-            for (int idx : tgtIndices) {
-                if (idx < target.size()) tgtLen += target.get(idx).length();
-            }
-
+        if (bothSides) {
             double ratio = (double) Math.max(srcLen, tgtLen) / Math.max(1, Math.min(srcLen, tgtLen));
             if (ratio > 3.0) {
                 baseConfidence *= 0.8; // Penalize very different lengths
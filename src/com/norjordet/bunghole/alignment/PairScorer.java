@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.alignment;
+
+import java.io.IOException;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.TextNode;
+import com.maxprograms.xml.XMLNode;
+
+/**
+ * Scores a source and a target segment without calling any service, so pairs
+ * that are clearly right need no AI review.
+ *
+ * Each feature gives a value between 0 and 1: length ratio, numbers and
+ * dates, inline tags, punctuation, cognates and dictionary entries. Features
+ * that have nothing to compare, such as numbers in a pair without digits,
+ * are left out of the weighted mean. Length and punctuation fit almost any
+ * two sentences, so a pair is only confirmed when at least one of the other
+ * features could be compared.
+ */
+public class PairScorer {
+
+    private static final Logger logger = System.getLogger(PairScorer.class.getName());
+
+    public static final String METHOD = "Local check";
+
+    private static final double LENGTH_WEIGHT = 1.0;
+    private static final double NUMBER_WEIGHT = 2.0;
+    private static final double TAG_WEIGHT = 1.5;
+    private static final double PUNCTUATION_WEIGHT = 0.5;
+    private static final double COGNATE_WEIGHT = 1.0;
+    private static final double DICTIONARY_WEIGHT = 1.5;
+
+    // Gale-Church: target characters per source character and their variance
+    private static final double MEAN_RATIO = 1.0;
+    private static final double VARIANCE = 6.8;
+
+    private static final Pattern NUMBER = Pattern.compile("\\d+(?:[.,\u00A0\u202F ]\\d+)*");
+    private static final String PUNCTUATION = "?!:;()\"«»";
+
+    // words in both directions, lower case
+    private final Map<String, Set<String>> dictionary;
+
+    /**
+     * Score of a pair
+     *
+     * @param value   weighted mean of the features, between 0 and 1
+     * @param content whether numbers, tags, cognates or dictionary entries
+     *                were compared
+     */
+    public record Score(double value, boolean content) {
+
+        /**
+         * Whether the pair is right without AI review
+         */
+        public boolean confirms(double threshold) {
+            return content && value >= threshold;
+        }
+    }
+
+    private static final Score NONE = new Score(0.0, false);
+
+    public PairScorer(Map<String, Set<String>> dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Scorer with the entries of all Hunalign dictionaries (*.dic) in a
+     * folder; lines read "word @ translation" or "word @ translation @ weight"
+     */
+    public static PairScorer load(Path folder) {
+        Map<String, Set<String>> dictionary = new HashMap<>();
+        if (Files.isDirectory(folder)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*.dic")) {
+                for (Path file : stream) {
+                    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                        if (line.startsWith("#")) {
+                            continue;
+                        }
+                        String[] parts = line.split("@");
+                        if (parts.length < 2) {
+                            continue;
+                        }
+                        String a = parts[0].trim().toLowerCase(Locale.ROOT);
+                        String b = parts[1].trim().toLowerCase(Locale.ROOT);
+                        if (!a.isEmpty() && !b.isEmpty()) {
+                            dictionary.computeIfAbsent(a, k -> new HashSet<>()).add(b);
+                            dictionary.computeIfAbsent(b, k -> new HashSet<>()).add(a);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Dictionaries not read: " + e.getMessage());
+            }
+        }
+        return new PairScorer(dictionary);
+    }
+
+    /**
+     * Scores of the pairs in the given rows, computed in parallel; a row
+     * with a missing side scores 0
+     */
+    public Score[] score(List<Element> sources, List<Element> targets, int[] rows) {
+        Score[] scores = new Score[rows.length];
+        IntStream.range(0, rows.length).parallel().forEach(k -> {
+            int row = rows[k];
+            scores[k] = row < sources.size() && row < targets.size() ? score(sources.get(row), targets.get(row))
+                    : NONE;
+        });
+        return scores;
+    }
+
+    public Score score(Element source, Element target) {
+        Segment src = new Segment(source);
+        Segment tgt = new Segment(target);
+        if (src.text.isBlank() || tgt.text.isBlank()) {
+            return NONE;
+        }
+        double sum = LENGTH_WEIGHT * length(src.text.length(), tgt.text.length());
+        double weights = LENGTH_WEIGHT;
+
+        List<String> srcNumbers = numbers(src.text);
+        List<String> tgtNumbers = numbers(tgt.text);
+        if (!srcNumbers.isEmpty() || !tgtNumbers.isEmpty()) {
+            sum += NUMBER_WEIGHT * overlap(srcNumbers, tgtNumbers);
+            weights += NUMBER_WEIGHT;
+        }
+        if (!src.tags.isEmpty() || !tgt.tags.isEmpty()) {
+            sum += TAG_WEIGHT * overlap(src.tags, tgt.tags);
+            weights += TAG_WEIGHT;
+        }
+        sum += PUNCTUATION_WEIGHT * punctuation(src.text, tgt.text);
+        weights += PUNCTUATION_WEIGHT;
+
+        List<String> srcWords = words(src.text);
+        List<String> tgtWords = words(tgt.text);
+        double cognates = cognates(srcWords, tgtWords);
+        if (cognates >= 0) {
+            sum += COGNATE_WEIGHT * cognates;
+            weights += COGNATE_WEIGHT;
+        }
+        double hits = dictionary(srcWords, tgtWords);
+        if (hits >= 0) {
+            sum += DICTIONARY_WEIGHT * hits;
+            weights += DICTIONARY_WEIGHT;
+        }
+        boolean content = weights > LENGTH_WEIGHT + PUNCTUATION_WEIGHT;
+        return new Score(sum / weights, content);
+    }
+
+    /**
+     * Text of a segment, with the content of g elements, and the names of
+     * its inline elements in order
+     */
+    private static final class Segment {
+        final String text;
+        final List<String> tags = new ArrayList<>();
+
+        Segment(Element element) {
+            StringBuilder builder = new StringBuilder();
+            collect(element, builder);
+            text = builder.toString();
+        }
+
+        private void collect(Element element, StringBuilder text) {
+            for (XMLNode node : element.getContent()) {
+                if (node.getNodeType() == XMLNode.TEXT_NODE) {
+                    text.append(((TextNode) node).getText());
+                } else if (node.getNodeType() == XMLNode.ELEMENT_NODE) {
+                    Element e = (Element) node;
+                    tags.add(e.getName());
+                    if ("g".equals(e.getName())) {
+                        collect(e, text);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gale-Church probability that the lengths belong to translations of
+     * each other
+     */
+    static double length(int srcLen, int tgtLen) {
+        double delta = (tgtLen - srcLen * MEAN_RATIO) / Math.sqrt(Math.max(1, srcLen) * VARIANCE);
+        return 2 * (1 - normal(Math.abs(delta)));
+    }
+
+    /**
+     * Standard normal distribution (Abramowitz and Stegun 26.2.17)
+     */
+    private static double normal(double z) {
+        double t = 1 / (1 + 0.2316419 * z);
+        double d = 0.3989422804014327 * Math.exp(-z * z / 2);
+        return 1 - d * t * (0.319381530 + t * (-0.356563782 + t * (1.781477937 + t * (-1.821255978
+                + t * 1.330274429))));
+    }
+
+    /**
+     * Digit groups with separators removed, so 1,000, 1 000 and 1.000 match
+     */
+    static List<String> numbers(CharSequence text) {
+        List<String> result = new ArrayList<>();
+        Matcher matcher = NUMBER.matcher(text);
+        while (matcher.find()) {
+            result.add(matcher.group().replaceAll("\\D", ""));
+        }
+        return result;
+    }
+
+    /**
+     * Shared items of two lists counted with multiplicity, over the longer
+     */
+    static double overlap(List<String> a, List<String> b) {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (String s : a) {
+            counts.merge(s, 1, Integer::sum);
+        }
+        int shared = 0;
+        for (String s : b) {
+            Integer count = counts.get(s);
+            if (count != null && count > 0) {
+                counts.put(s, count - 1);
+                shared++;
+            }
+        }
+        return (double) shared / Math.max(a.size(), b.size());
+    }
+
+    static double punctuation(CharSequence src, CharSequence tgt) {
+        double ending = endOf(src) == endOf(tgt) ? 1.0 : 0.0;
+        int differ = 0;
+        int total = 0;
+        for (int i = 0; i < PUNCTUATION.length(); i++) {
+            int a = count(src, PUNCTUATION.charAt(i));
+            int b = count(tgt, PUNCTUATION.charAt(i));
+            differ += Math.abs(a - b);
+            total += a + b;
+        }
+        double profile = total == 0 ? 1.0 : 1.0 - (double) differ / total;
+        return (ending + profile) / 2;
+    }
+
+    private static char endOf(CharSequence text) {
+        for (int i = text.length() - 1; i >= 0; i--) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c) && c != '"' && c != '\u201D' && c != '\u00BB' && c != ')') {
+                return ".?!:;…".indexOf(c) != -1 ? c : ' ';
+            }
+        }
+        return ' ';
+    }
+
+    private static int count(CharSequence text, char c) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    static List<String> words(CharSequence text) {
+        List<String> result = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetter(text.charAt(i));
+            if (letter && start == -1) {
+                start = i;
+            } else if (!letter && start != -1) {
+                result.add(text.subSequence(start, i).toString().toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Share of the longer source words that look like a target word: same
+     * first four letters or few edits apart. -1 when the sides are written
+     * in different scripts or there are too few long words.
+     */
+    static double cognates(List<String> src, List<String> tgt) {
+        List<String> longSrc = src.stream().filter(w -> w.length() >= 4).toList();
+        List<String> longTgt = tgt.stream().filter(w -> w.length() >= 4).toList();
+        if (longSrc.size() < 2 || longTgt.isEmpty()
+                || Character.UnicodeScript.of(longSrc.get(0).codePointAt(0)) != Character.UnicodeScript
+                        .of(longTgt.get(0).codePointAt(0))) {
+            return -1;
+        }
+        int found = 0;
+        for (String s : longSrc) {
+            for (String t : longTgt) {
+                if (s.regionMatches(0, t, 0, 4) || similar(s, t)) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return (double) found / longSrc.size();
+    }
+
+    private static boolean similar(String a, String b) {
+        int longest = Math.max(a.length(), b.length());
+        if (Math.abs(a.length() - b.length()) * 10 > longest * 3) {
+            return false;
+        }
+        return distance(a, b) * 10 <= longest * 3;
+    }
+
+    /**
+     * Levenshtein distance
+     */
+    static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * Share of the source words in the dictionary whose translation is in
+     * the target; -1 when no source word is in the dictionary
+     */
+    double dictionary(List<String> src, List<String> tgt) {
+        if (dictionary.isEmpty()) {
+            return -1;
+        }
+        Set<String> targets = new HashSet<>(tgt);
+        int known = 0;
+        int found = 0;
+        for (String word : src) {
+            Set<String> translations = dictionary.get(word);
+            if (translations == null) {
+                continue;
+            }
+            known++;
+            for (String translation : translations) {
+                if (targets.contains(translation)) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return known == 0 ? -1 : (double) found / known;
+    }
+}
@@ -0,0 +1,478 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.alignment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.System.Logger;
+import java.lang.System.Logger.Level;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.norjordet.bunghole.models.NearDuplicates;
+
+/**
+ * Exact match index of reference TMX files, used to find anchors before
+ * running Gale-Church.
+ *
+ * Only 64 bit hashes of the normalized source and target texts are kept,
+ * sorted by source, so a memory with millions of units takes 16 bytes per
+ * unit. The index of each TMX file and language pair is built once and saved
+ * next to the TMX; it is rebuilt when the TMX changes.
+ */
+public final class TranslationMemory {
+
+    private static final Logger logger = System.getLogger(TranslationMemory.class.getName());
+
+    public static final String EXTENSION = ".idx";
+    public static final String METHOD = "Translation memory match";
+
+    private static final long MAGIC = 0x414C474E544D4958L; // "ALGNTMIX"
+    // 2: hashes are NearDuplicates fingerprints
+    private static final int FORMAT = 2;
+
+    private final long[] keys;
+    private final long[] values;
+
+    private TranslationMemory(long[] keys, long[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * Index of several TMX files for one language pair
+     */
+    public static TranslationMemory load(List<String> tmxFiles, String srcLang, String tgtLang)
+            throws IOException, SAXException, ParserConfigurationException {
+        List<TranslationMemory> memories = new ArrayList<>();
+        int size = 0;
+        for (String file : tmxFiles) {
+            TranslationMemory memory = open(Path.of(file), srcLang, tgtLang);
+            memories.add(memory);
+            size += memory.size();
+        }
+        if (memories.size() == 1) {
+            return memories.get(0);
+        }
+        long[] keys = new long[size];
+        long[] values = new long[size];
+        int pos = 0;
+        for (TranslationMemory memory : memories) {
+            System.arraycopy(memory.keys, 0, keys, pos, memory.size());
+            System.arraycopy(memory.values, 0, values, pos, memory.size());
+            pos += memory.size();
+        }
+        return sorted(keys, values, size);
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+
+    /**
+     * Rows confirmed by the memory that can all be kept, as {source, target}
+     * pairs with both indexes increasing. Only texts that occur once on their
+     * side of the document are used, so repeated short segments like "Yes"
+     * never become anchors.
+     */
+    public int[][] anchors(List<String> sources, List<String> targets) {
+        long[] sourceHashes = unique(sources);
+        long[] targetHashes = unique(targets);
+        Map<Long, Integer> targetRows = new HashMap<>();
+        for (int j = 0; j < targetHashes.length; j++) {
+            if (targetHashes[j] != 0) {
+                targetRows.put(targetHashes[j], j);
+            }
+        }
+        // candidates by source row, target rows decreasing within a row so
+        // that the longest increasing run takes at most one of them
+        List<int[]> candidates = new ArrayList<>();
+        for (int i = 0; i < sourceHashes.length; i++) {
+            if (sourceHashes[i] == 0) {
+                continue;
+            }
+            int k = Arrays.binarySearch(keys, sourceHashes[i]);
+            if (k < 0) {
+                continue;
+            }
+            while (k > 0 && keys[k - 1] == sourceHashes[i]) {
+                k--;
+            }
+            int first = candidates.size();
+            for (; k < keys.length && keys[k] == sourceHashes[i]; k++) {
+                Integer j = targetRows.get(values[k]);
+                if (j != null) {
+                    candidates.add(new int[] { i, j });
+                }
+            }
+            candidates.subList(first, candidates.size()).sort((a, b) -> Integer.compare(b[1], a[1]));
+        }
+        return increasing(candidates);
+    }
+
+    /**
+     * Longest run of candidates with increasing target rows
+     */
+    private static int[][] increasing(List<int[]> candidates) {
+        int n = candidates.size();
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int c = 0; c < n; c++) {
+            int j = candidates.get(c)[1];
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (candidates.get(tails[mid])[1] < j) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[c] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = c;
+            if (low == length) {
+                length++;
+            }
+        }
+        int[][] result = new int[length][];
+        for (int c = length > 0 ? tails[length - 1] : -1, k = length - 1; c >= 0; c = previous[c], k--) {
+            result[k] = candidates.get(c);
+        }
+        return result;
+    }
+
+    /**
+     * Hash of each text that occurs once, 0 for empty and repeated texts
+     */
+    private static long[] unique(List<String> texts) {
+        long[] hashes = new long[texts.size()];
+        Map<Long, Integer> seen = new HashMap<>();
+        for (int i = 0; i < hashes.length; i++) {
+            String text = normalize(texts.get(i));
+            if (text.isEmpty()) {
+                continue;
+            }
+            hashes[i] = hash(text);
+            Integer other = seen.putIfAbsent(hashes[i], i);
+            if (other != null) {
+                hashes[i] = 0;
+                hashes[other] = 0;
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Case and white space are ignored
+     */
+    static String normalize(String text) {
+        StringBuilder result = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+                space = result.length() > 0;
+                continue;
+            }
+            if (space) {
+                result.append(' ');
+                space = false;
+            }
+            result.append(c);
+        }
+        return result.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Fingerprint of a normalized text; never 0, which marks unused rows
+     */
+    static long hash(String text) {
+        long h = NearDuplicates.fingerprint(text);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Language codes match when their primary subtags do, so an en-GB memory
+     * also confirms en-US documents
+     */
+    public static boolean sameLanguage(String a, String b) {
+        return primary(a).equals(primary(b));
+    }
+
+    private static String primary(String code) {
+        int dash = code.indexOf('-');
+        return (dash == -1 ? code : code.substring(0, dash)).toLowerCase(Locale.ROOT);
+    }
+
+    public static Path indexPath(Path tmx, String srcLang, String tgtLang) {
+        return Path.of(tmx + "." + primary(srcLang) + "-" + primary(tgtLang) + EXTENSION);
+    }
+
+    private static TranslationMemory open(Path tmx, String srcLang, String tgtLang)
+            throws IOException, SAXException, ParserConfigurationException {
+        Path index = indexPath(tmx, srcLang, tgtLang);
+        long tmxSize = Files.size(tmx);
+        if (Files.exists(index) && Files.getLastModifiedTime(index).compareTo(Files.getLastModifiedTime(tmx)) >= 0) {
+            TranslationMemory memory = read(index, tmxSize);
+            if (memory != null) {
+                return memory;
+            }
+        }
+        TranslationMemory memory = build(tmx, srcLang, tgtLang);
+        try {
+            memory.write(index, tmxSize);
+        } catch (IOException e) {
+            // a read-only folder only costs a rebuild next time
+            logger.log(Level.WARNING, "Index of " + tmx + " not saved: " + e.getMessage());
+        }
+        return memory;
+    }
+
+    private static TranslationMemory read(Path index, long tmxSize) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index), 1 << 16))) {
+            if (in.readLong() != MAGIC || in.readInt() != FORMAT || in.readLong() != tmxSize) {
+                return null;
+            }
+            int size = in.readInt();
+            long[] keys = new long[size];
+            long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = in.readLong();
+                values[i] = in.readLong();
+            }
+            return new TranslationMemory(keys, values);
+        }
+    }
+
+    private void write(Path index, long tmxSize) throws IOException {
+        Path target = index.toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeLong(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(tmxSize);
+                out.writeInt(keys.length);
+                for (int i = 0; i < keys.length; i++) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(values[i]);
+                }
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static TranslationMemory build(Path tmx, String srcLang, String tgtLang)
+            throws IOException, SAXException, ParserConfigurationException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        // as for imported TMX files, a DOCTYPE is accepted but nothing
+        // outside the file is read
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        UnitHandler handler = new UnitHandler(srcLang, tgtLang);
+        InputStream stream = new BufferedInputStream(Files.newInputStream(tmx), 1 << 16);
+        if (tmx.toString().toLowerCase(Locale.ROOT).endsWith(".gz")) {
+            stream = new GZIPInputStream(stream, 1 << 16);
+        }
+        try (InputStream in = stream) {
+            factory.newSAXParser().parse(in, handler);
+        }
+        logger.log(Level.INFO, "Indexed {0} units of {1}", handler.size, tmx);
+        return sorted(handler.keys, handler.values, handler.size);
+    }
+
+    /**
+     * Sorted by key and value, without duplicates
+     */
+    private static TranslationMemory sorted(long[] keys, long[] values, int size) {
+        sort(keys, values, size);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (count == 0 || keys[i] != keys[count - 1] || values[i] != values[count - 1]) {
+                keys[count] = keys[i];
+                values[count] = values[i];
+                count++;
+            }
+        }
+        return new TranslationMemory(Arrays.copyOf(keys, count), Arrays.copyOf(values, count));
+    }
+
+    /**
+     * Heap sort of the pairs, in place and without boxing
+     */
+    private static void sort(long[] keys, long[] values, int size) {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(keys, values, i, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(keys, values, 0, end);
+            siftDown(keys, values, 0, end);
+        }
+    }
+
+    private static void siftDown(long[] keys, long[] values, int i, int size) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && greater(keys, values, child + 1, child)) {
+                child++;
+            }
+            if (!greater(keys, values, child, i)) {
+                return;
+            }
+            swap(keys, values, i, child);
+            i = child;
+        }
+    }
+
+    private static boolean greater(long[] keys, long[] values, int a, int b) {
+        return keys[a] != keys[b] ? keys[a] > keys[b] : values[a] > values[b];
+    }
+
+    private static void swap(long[] keys, long[] values, int a, int b) {
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        long value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+    /**
+     * Hashes the text of the source and target segments of each unit. Inline
+     * codes are left out, the text of hi elements is kept.
+     */
+    private static final class UnitHandler extends DefaultHandler {
+
+        private final String srcLang;
+        private final String tgtLang;
+        private final StringBuilder text = new StringBuilder();
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        private int size;
+        private String lang;
+        private String source;
+        private String target;
+        private boolean inSeg;
+        private int code;
+
+        UnitHandler(String srcLang, String tgtLang) {
+            this.srcLang = srcLang;
+            this.tgtLang = tgtLang;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (inSeg) {
+                if (code > 0 || isCode(localName)) {
+                    code++;
+                }
+                return;
+            }
+            switch (localName) {
+                case "tu":
+                    source = null;
+                    target = null;
+                    break;
+                case "tuv":
+                    lang = attributes.getValue("xml:lang");
+                    if (lang == null) {
+                        lang = attributes.getValue("lang");
+                    }
+                    break;
+                case "seg":
+                    inSeg = true;
+                    text.setLength(0);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (code > 0) {
+                code--;
+                return;
+            }
+            if ("seg".equals(localName)) {
+                inSeg = false;
+                if (lang == null) {
+                    return;
+                }
+                if (source == null && sameLanguage(lang, srcLang)) {
+                    source = normalize(text.toString());
+                } else if (target == null && sameLanguage(lang, tgtLang)) {
+                    target = normalize(text.toString());
+                }
+            } else if ("tu".equals(localName) && source != null && target != null && !source.isEmpty()
+                    && !target.isEmpty()) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                keys[size] = hash(source);
+                values[size] = hash(target);
+                size++;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inSeg && code == 0) {
+                text.append(ch, start, length);
+            }
+        }
+
+        private static boolean isCode(String name) {
+            return "bpt".equals(name) || "ept".equals(name) || "ph".equals(name) || "it".equals(name)
+                    || "ut".equals(name);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.excel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads the visible sheets of a workbook row by row.
+ *
+ * Parts are parsed with an event parser straight from the zip file; nothing is
+ * extracted and no DOM is built. Only the shared strings are kept in memory,
+ * rows are handed over as soon as they are complete.
+ */
+public class ExcelStreamReader {
+
+    private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    /**
+     * Receives the rows of each sheet in document order
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+
+        /**
+         * Called before the first row of a sheet
+         */
+        default void startSheet(String name) throws IOException {
+            // nothing to do by default
+        }
+
+        /**
+         * @param row   zero based row index
+         * @param cells values by zero based column index, null for empty cells;
+         *              the array ends at the last cell with a value
+         */
+        void row(int row, String[] cells) throws IOException;
+    }
+
+    private final SAXParserFactory factory;
+
+    public ExcelStreamReader() {
+        factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (ParserConfigurationException | SAXException e) {
+            // parser without the feature, spreadsheet parts have no DOCTYPE anyway
+        }
+    }
+
+    public void read(String file, RowHandler handler) throws IOException, SAXException, ParserConfigurationException {
+        try (ZipFile zip = new ZipFile(file)) {
+            String workbook = null;
+            for (String[] relationship : relationships(zip, "")) {
+                if (relationship[1].endsWith("/officeDocument")) {
+                    workbook = resolve("", relationship[2]);
+                }
+            }
+            if (workbook == null) {
+                throw new IOException("Workbook not found");
+            }
+            List<String[]> parts = relationships(zip, workbook);
+            List<String> strings = new ArrayList<>();
+            for (String[] relationship : parts) {
+                if (relationship[1].endsWith("/sharedStrings")) {
+                    parse(zip, resolve(workbook, relationship[2]), new StringsHandler(strings));
+                }
+            }
+            List<String[]> sheets = new ArrayList<>();
+            parse(zip, workbook, new DefaultHandler() {
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    if ("sheet".equals(localName) && !"hidden".equals(attributes.getValue("state"))) {
+                        sheets.add(new String[] { attributes.getValue("name"), attributes.getValue(RELATIONSHIPS, "id") });
+                    }
+                }
+            });
+            for (String[] sheet : sheets) {
+                for (String[] relationship : parts) {
+                    if (relationship[0].equals(sheet[1])) {
+                        handler.startSheet(sheet[0]);
+                        parse(zip, resolve(workbook, relationship[2]), new SheetHandler(strings, handler));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Id, type and target of the relationships of a part
+     */
+    private List<String[]> relationships(ZipFile zip, String part)
+            throws IOException, SAXException, ParserConfigurationException {
+        int slash = part.lastIndexOf('/');
+        String rels = part.substring(0, slash + 1) + "_rels/" + part.substring(slash + 1) + ".rels";
+        List<String[]> result = new ArrayList<>();
+        if (zip.getEntry(rels) == null) {
+            return result;
+        }
+        parse(zip, rels, new DefaultHandler() {
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if ("Relationship".equals(localName)) {
+                    result.add(new String[] { attributes.getValue("Id"), attributes.getValue("Type"),
+                            attributes.getValue("Target") });
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Zip entry name of a relationship target
+     */
+    private static String resolve(String part, String target) {
+        if (target.startsWith("/")) {
+            return target.substring(1);
+        }
+        List<String> path = new ArrayList<>(Arrays.asList(part.split("/")));
+        path.remove(path.size() - 1);
+        for (String step : target.split("/")) {
+            if ("..".equals(step)) {
+                if (!path.isEmpty()) {
+                    path.remove(path.size() - 1);
+                }
+            } else if (!step.isEmpty() && !".".equals(step)) {
+                path.add(step);
+            }
+        }
+        return String.join("/", path);
+    }
+
+    private void parse(ZipFile zip, String name, DefaultHandler handler)
+            throws IOException, SAXException, ParserConfigurationException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("Missing part " + name);
+        }
+        SAXParser parser = factory.newSAXParser();
+        try (InputStream in = zip.getInputStream(entry)) {
+            parser.parse(in, handler);
+        } catch (SAXException e) {
+            if (e.getException() instanceof IOException io) {
+                throw io;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Zero based column of a cell reference like "AB12"
+     */
+    static int column(String reference) {
+        int column = 0;
+        for (int i = 0; i < reference.length(); i++) {
+            char c = reference.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            column = column * 26 + (c - 'A' + 1);
+        }
+        return column - 1;
+    }
+
+    /**
+     * Collects the text of "t" elements, leaving out phonetic runs
+     */
+    private abstract static class TextHandler extends DefaultHandler {
+
+        protected final StringBuilder text = new StringBuilder();
+        private boolean inText;
+        private int phonetic;
+
+        protected void startText(String localName) {
+            if ("rPh".equals(localName)) {
+                phonetic++;
+            } else if ("t".equals(localName) && phonetic == 0) {
+                inText = true;
+            }
+        }
+
+        protected void endText(String localName) {
+            if ("rPh".equals(localName)) {
+                phonetic--;
+            } else if ("t".equals(localName)) {
+                inText = false;
+            }
+        }
+
+        protected boolean inText() {
+            return inText;
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText()) {
+                text.append(ch, start, length);
+            }
+        }
+    }
+
+    private static class StringsHandler extends TextHandler {
+
+        private final List<String> strings;
+
+        StringsHandler(List<String> strings) {
+            this.strings = strings;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if ("si".equals(localName)) {
+                text.setLength(0);
+            }
+            startText(localName);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            endText(localName);
+            if ("si".equals(localName)) {
+                strings.add(text.toString());
+            }
+        }
+    }
+
+    private static class SheetHandler extends TextHandler {
+
+        private final List<String> strings;
+        private final RowHandler handler;
+        private String[] cells = new String[16];
+        private int width;
+        private int row = -1;
+        private int column;
+        private String type;
+        private boolean inValue;
+
+        SheetHandler(List<String> strings, RowHandler handler) {
+            this.strings = strings;
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    String r = attributes.getValue("r");
+                    row = r != null ? Integer.parseInt(r) - 1 : row + 1;
+                    width = 0;
+                    column = -1;
+                    break;
+                case "c":
+                    String reference = attributes.getValue("r");
+                    column = reference != null ? column(reference) : column + 1;
+                    type = attributes.getValue("t");
+                    text.setLength(0);
+                    break;
+                case "v":
+                    inValue = true;
+                    break;
+                default:
+                    startText(localName);
+            }
+        }
+
+        @Override
+        protected boolean inText() {
+            return inValue || super.inText();
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            switch (localName) {
+                case "v":
+                    inValue = false;
+                    break;
+                case "c":
+                    set(value());
+                    break;
+                case "row":
+                    try {
+                        handler.row(row, Arrays.copyOf(cells, width));
+                    } catch (IOException e) {
+                        throw new SAXException(e);
+                    }
+                    Arrays.fill(cells, 0, width, null);
+                    break;
+                default:
+                    endText(localName);
+            }
+        }
+
+        private String value() {
+            if (text.isEmpty()) {
+                return null;
+            }
+            if ("s".equals(type)) {
+                return strings.get(Integer.parseInt(text.toString().trim()));
+            }
+            return text.toString();
+        }
+
+        private void set(String value) {
+            if (value == null) {
+                return;
+            }
+            if (column >= cells.length) {
+                cells = Arrays.copyOf(cells, Math.max(column + 1, cells.length * 2));
+            }
+            cells[column] = value;
+            width = Math.max(width, column + 1);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.excel;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.maxprograms.xml.XMLUtils;
+
+/**
+ * Writes a single sheet workbook straight into the zip file.
+ *
+ * Parts of the template are copied as they are and rows go to the sheet as
+ * they are added. Cells hold their text inline, so no string table is kept
+ * until the end: nothing is extracted to disk, no DOM is built and memory
+ * does not grow with the document.
+ */
+public class ExcelStreamWriter implements Closeable {
+
+    private static final String SHEET = "xl/worksheets/sheet1.xml";
+    private static final String STRINGS = "xl/sharedStrings.xml";
+    private static final String WORKBOOK = "xl/workbook.xml";
+    private static final String MAIN = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+
+    private final ZipOutputStream zip;
+    private final Writer out;
+    private int rows;
+
+    public ExcelStreamWriter(String fileName, String sheetName) throws IOException {
+        zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(Path.of(fileName)), 1 << 16));
+        // only flushed, never closed: entries are closed on the zip stream
+        out = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        copyTemplate(sheetName);
+        zip.putNextEntry(new ZipEntry(SHEET));
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        out.write("<worksheet xmlns=\"" + MAIN + "\" "
+                + "xmlns:r=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships\">");
+        out.write("<sheetViews><sheetView tabSelected=\"1\" workbookViewId=\"0\"/></sheetViews>");
+        out.write("<sheetFormatPr baseColWidth=\"10\" defaultRowHeight=\"16\"/>");
+        out.write("<sheetData>");
+    }
+
+    private void copyTemplate(String sheetName) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(ExcelStreamWriter.class.getResourceAsStream("template.xlsx"))) {
+            ZipEntry entry = null;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (entry.isDirectory() || SHEET.equals(name) || STRINGS.equals(name)) {
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(name));
+                if (WORKBOOK.equals(name)) {
+                    String workbook = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    workbook = workbook.replace("name=\"template\"", "name=\"" + attribute(sheetName) + "\"");
+                    zip.write(workbook.getBytes(StandardCharsets.UTF_8));
+                } else {
+                    in.transferTo(zip);
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Add the next row; empty and null cells are left out
+     */
+    public void addRow(String... cells) throws IOException {
+        rows++;
+        out.write("<row r=\"");
+        out.write(Integer.toString(rows));
+        out.write("\" spans=\"1:");
+        out.write(Integer.toString(cells.length));
+        out.write("\">");
+        for (int col = 0; col < cells.length; col++) {
+            String cell = cells[col];
+            if (cell == null || cell.isEmpty()) {
+                continue;
+            }
+            out.write("<c r=\"");
+            out.write(columnName(col));
+            out.write(Integer.toString(rows));
+            // preserved always, as segments may start or end with spaces
+            out.write("\" t=\"inlineStr\"><is><t xml:space=\"preserve\">");
+            out.write(XMLUtils.cleanText(cell));
+            out.write("</t></is></c>");
+        }
+        out.write("</row>");
+    }
+
+    /**
+     * Spreadsheet column letters for a zero based index: A, B ... Z, AA ...
+     */
+    static String columnName(int index) {
+        StringBuilder name = new StringBuilder();
+        int n = index + 1;
+        while (n > 0) {
+            int rem = (n - 1) % 26;
+            name.insert(0, (char) ('A' + rem));
+            n = (n - 1) / 26;
+        }
+        return name.toString();
+    }
+
+    private static String attribute(String value) {
+        return XMLUtils.cleanText(value).replace("\"", "&quot;");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("</sheetData>");
+            out.write("<pageMargins left=\"0.75\" right=\"0.75\" top=\"1\" bottom=\"1\" header=\"0.5\" footer=\"0.5\"/>");
+            out.write("</worksheet>");
+            out.flush();
+            zip.closeEntry();
+
+            // the template's relationships name this part, so it stays, empty
+            zip.putNextEntry(new ZipEntry(STRINGS));
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+            out.write("<sst xmlns=\"" + MAIN + "\" count=\"0\" uniqueCount=\"0\"/>");
+            out.flush();
+            zip.closeEntry();
+        } finally {
+            zip.close();
+        }
+    }
+}
@@ -20,13 +20,14 @@ import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,15 +41,12 @@ import org.xml.sax.SAXException;
 import com.maxprograms.languages.Language;
 import com.maxprograms.languages.LanguageUtils;
 import com.norjordet.bunghole.Constants;
-import com.norjordet.bunghole.excel.ExcelWriter;
-import com.norjordet.bunghole.excel.Sheet;
+import com.norjordet.bunghole.excel.ExcelStreamWriter;
 import com.maxprograms.xml.Document;
 import com.maxprograms.xml.Element;
-import com.maxprograms.xml.Indenter;
 import com.maxprograms.xml.SAXBuilder;
 import com.maxprograms.xml.TextNode;
 import com.maxprograms.xml.XMLNode;
-import com.maxprograms.xml.XMLOutputter;
 import com.maxprograms.xml.XMLUtils;
 
 public class Alignment {
@@ -83,8 +81,15 @@ public class Alignment {
             this.method = method;
         }
 
+        public SegmentInfo(SegmentInfo other) {
+            this.confidence = other.confidence;
+            this.manuallyMarked = other.manuallyMarked;
+            this.aiReviewed = other.aiReviewed;
+            this.method = other.method;
+        }
+
         public boolean isUncertain() {
-            return confidence < 0.75 || manuallyMarked;
+            return confidence < SegmentTable.UNCERTAIN_THRESHOLD || manuallyMarked;
         }
 
         public String getConfidenceLevel() {
@@ -133,12 +138,65 @@ public class Alignment {
     private Language tgtLang;
 
     // Track confidence and manual markings for each segment pair
-    private Map<Integer, SegmentInfo> segmentInfo;
+    private SegmentTable segmentInfo;
+    private boolean infoChanged;
+
+    // State visible to readers. All changes are made by a single writer
+    // (see EditQueue), which calls publish() once a command is complete
+    private volatile AlignmentSnapshot published;
+    private long version;
+
+    // Matching rows of the last filtered view and of the last search
+    private volatile FilteredRows filtered;
+    private volatile FilteredRows searched;
+
+    // Built on the first search and brought up to date by later ones
+    private final SearchIndex searchIndex = new SearchIndex();
 
-    private static Pattern pattern;
-    private static String lastTarget;
+    // Recorded edits of the writer, grouped per command
+    private final EditHistory history = new EditHistory();
+
+    private static final class FilteredRows {
+        final String key;
+        final long version;
+        final int[] ids;
+
+        FilteredRows(String key, long version, int[] ids) {
+            this.key = key;
+            this.version = version;
+            this.ids = ids;
+        }
+    }
 
     public Alignment(String source, String target) throws IOException, SAXException, ParserConfigurationException {
+        createDocument(source, target);
+        segmentInfo = new SegmentTable();
+        publish();
+    }
+
+    public Alignment(String file) throws SAXException, IOException, ParserConfigurationException {
+        this.file = file;
+        // Large projects are read segment by segment when needed, from the
+        // binary snapshot if it is up to date or else from an index of the XML
+        BinarySegmentStore binary = BinarySegmentStore.open(Path.of(file));
+        SegmentStore store = binary != null ? binary : XmlSegmentStore.open(Path.of(file));
+        if (store != null) {
+            createDocument(store.getLanguage(SegmentStore.SOURCES), store.getLanguage(SegmentStore.TARGETS));
+            sources = new LazySegmentList(store, SegmentStore.SOURCES);
+            targets = new LazySegmentList(store, SegmentStore.TARGETS);
+        } else {
+            SAXBuilder builder = new SAXBuilder();
+            doc = builder.build(file);
+            sources = doc.getRootElement().getChild("sources").getChildren();
+            srcLang = LanguageUtils.getLanguage(doc.getRootElement().getChild("sources").getAttributeValue("xml:lang"));
+            targets = doc.getRootElement().getChild("targets").getChildren();
+            tgtLang = LanguageUtils.getLanguage(doc.getRootElement().getChild("targets").getAttributeValue("xml:lang"));
+        }
+        segmentInfo = binary != null ? binary.getSegmentTable() : new SegmentTable();
+        publish();
+    }
+
+    private void createDocument(String source, String target) throws IOException, SAXException, ParserConfigurationException {
         doc = new Document(null, "algnproject", null, null);
         srcLang = LanguageUtils.getLanguage(source);
         tgtLang = LanguageUtils.getLanguage(target);
@@ -153,98 +211,198 @@ public class Alignment {
         tgt.setAttribute("xml:lang", target);
         root.addContent(tgt);
         targets = tgt.getChildren();
-        segmentInfo = new HashMap<>();
     }
 
-    public Alignment(String file) throws SAXException, IOException, ParserConfigurationException {
+    public void setFile(String file) {
         this.file = file;
-        SAXBuilder builder = new SAXBuilder();
-        doc = builder.build(file);
-        sources = doc.getRootElement().getChild("sources").getChildren();
-        srcLang = LanguageUtils.getLanguage(doc.getRootElement().getChild("sources").getAttributeValue("xml:lang"));
-        targets = doc.getRootElement().getChild("targets").getChildren();
-        tgtLang = LanguageUtils.getLanguage(doc.getRootElement().getChild("targets").getAttributeValue("xml:lang"));
-        segmentInfo = new HashMap<>();
     }
 
-    public void setFile(String file) {
-        this.file = file;
+    /**
+     * Make the current state visible to readers. Called by the writer after
+     * each complete command so readers never see a half-applied edit.
+     */
+    public void publish() {
+        // the table is only copied when an edit changed it
+        SegmentTable info = infoChanged || published == null ? segmentInfo.copy() : published.getSegmentTable();
+        infoChanged = false;
+        history.seal();
+        published = new AlignmentSnapshot(++version, file, srcLang, tgtLang, sources, targets, info);
+    }
+
+    /**
+     * Put back the state of the last publication after a command failed, so
+     * its partial edits are never published
+     */
+    public void rollback() {
+        boolean unrecorded = history.unrecorded();
+        List<EditHistory.Edit> changes = history.rollback();
+        if (unrecorded) {
+            replaceRange(sources, 0, sources.size(), published.getSources());
+            replaceRange(targets, 0, targets.size(), published.getTargets());
+        } else {
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                replay(changes.get(i).inverse());
+            }
+        }
+        segmentInfo = published.getSegmentTable().copy();
+        infoChanged = false;
+        history.seal();
+    }
+
+    /**
+     * Latest published state; safe to use from any thread without locking
+     */
+    public AlignmentSnapshot snapshot() {
+        return published;
     }
 
     public List<Element> getSources() {
-        return sources;
+        return published.getSources();
     }
 
     public List<Element> getTargets() {
-        return targets;
+        return published.getTargets();
+    }
+
+    /**
+     * Source segments with the edits of the running command; only for the
+     * writer thread
+     */
+    public List<Element> getWorkingSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * Target segments with the edits of the running command; only for the
+     * writer thread
+     */
+    public List<Element> getWorkingTargets() {
+        return Collections.unmodifiableList(targets);
     }
 
     /**
      * Set confidence score for a segment pair
      */
     public void setConfidence(int segmentId, double confidence) {
-        segmentInfo.computeIfAbsent(segmentId, k -> new SegmentInfo()).confidence = confidence;
+        changeInfo(segmentId, () -> segmentInfo.setConfidence(segmentId, confidence));
     }
 
     /**
      * Set confidence and method for a segment pair
      */
     public void setConfidenceAndMethod(int segmentId, double confidence, String method) {
-        SegmentInfo info = segmentInfo.computeIfAbsent(segmentId, k -> new SegmentInfo());
-        info.confidence = confidence;
-        info.method = method;
+        changeInfo(segmentId, () -> {
+            segmentInfo.setConfidence(segmentId, confidence);
+            segmentInfo.setMethod(segmentId, method);
+        });
+    }
+
+    /**
+     * Whether any segment has a confidence score, for example one restored
+     * from the binary snapshot
+     */
+    public boolean isScored() {
+        return !published.getSegmentTable().isEmpty();
     }
 
     /**
      * Get confidence for a segment pair
      */
     public double getConfidence(int segmentId) {
-        SegmentInfo info = segmentInfo.get(segmentId);
-        return info != null ? info.confidence : 1.0;
+        return published.getSegmentTable().getConfidence(segmentId);
     }
 
     /**
      * Toggle manual uncertainty marking for a segment
      */
     public void toggleManualMark(int segmentId) {
-        SegmentInfo info = segmentInfo.computeIfAbsent(segmentId, k -> new SegmentInfo());
-        info.manuallyMarked = !info.manuallyMarked;
+        changeInfo(segmentId, () -> segmentInfo.setManual(segmentId, !segmentInfo.isManual(segmentId)));
     }
 
     /**
      * Set manual marking for a segment
      */
     public void setManualMark(int segmentId, boolean marked) {
-        segmentInfo.computeIfAbsent(segmentId, k -> new SegmentInfo()).manuallyMarked = marked;
+        changeInfo(segmentId, () -> segmentInfo.setManual(segmentId, marked));
     }
 
     /**
      * Mark segment as reviewed by AI
      */
     public void setAIReviewed(int segmentId, boolean reviewed) {
-        segmentInfo.computeIfAbsent(segmentId, k -> new SegmentInfo()).aiReviewed = reviewed;
+        changeInfo(segmentId, () -> segmentInfo.setAIReviewed(segmentId, reviewed));
+    }
+
+    /**
+     * Change the quality data of a row, recording it when the history asks
+     * for it
+     */
+    private void changeInfo(int segmentId, Runnable change) {
+        SegmentInfo before = history.recordsInfo() ? segmentInfo.get(segmentId) : null;
+        change.run();
+        infoChanged = true;
+        if (history.recordsInfo()) {
+            history.record(new EditHistory.InfoChange(segmentId, before, segmentInfo.get(segmentId)));
+        }
     }
 
     /**
      * Get segment info for display
      */
     public SegmentInfo getSegmentInfo(int segmentId) {
-        return segmentInfo.computeIfAbsent(segmentId, k -> new SegmentInfo());
+        return getSegmentInfo(published, segmentId);
+    }
+
+    private static SegmentInfo getSegmentInfo(AlignmentSnapshot view, int segmentId) {
+        SegmentInfo info = view.getSegmentTable().get(segmentId);
+        return info != null ? info : new SegmentInfo();
     }
 
     /**
      * Get all uncertain segment IDs (low confidence or manually marked)
      */
     public List<Integer> getUncertainSegmentIds() {
-        List<Integer> uncertain = new ArrayList<>();
-        int maxSegments = Math.max(sources.size(), targets.size());
-        for (int i = 0; i < maxSegments; i++) {
-            SegmentInfo info = segmentInfo.get(i);
-            if (info != null && info.isUncertain()) {
-                uncertain.add(i);
-            }
+        AlignmentSnapshot view = published;
+        int maxSegments = Math.max(view.getSources().size(), view.getTargets().size());
+        return view.getSegmentTable().getUncertain(maxSegments);
+    }
+
+    /**
+     * Find the uncertain segment after (or before) a given one, wrapping
+     * around at the end of the file
+     */
+    public JSONObject nextUncertain(JSONObject json) {
+        AlignmentSnapshot view = published;
+        SegmentTable table = view.getSegmentTable();
+        int maxSegments = Math.max(view.getSources().size(), view.getTargets().size());
+        int from = json.optInt("from", -1);
+        int id = json.optBoolean("backwards", false) ? table.previousUncertain(from, maxSegments)
+                : table.nextUncertain(from, maxSegments);
+        JSONObject result = new JSONObject();
+        result.put("id", id);
+        result.put("uncertain", table.countUncertain(maxSegments));
+        result.put("version", view.getVersion());
+        return result;
+    }
+
+    /**
+     * Counts of flagged rows and the confidence distribution
+     */
+    public JSONObject getSegmentStats() {
+        AlignmentSnapshot view = published;
+        SegmentTable table = view.getSegmentTable();
+        int maxSegments = Math.max(view.getSources().size(), view.getTargets().size());
+        JSONObject result = new JSONObject();
+        result.put("rows", maxSegments);
+        result.put("uncertain", table.countUncertain(maxSegments));
+        result.put("manual", table.countManual());
+        result.put("aiReviewed", table.countAIReviewed());
+        JSONArray histogram = new JSONArray();
+        for (int count : table.getHistogram()) {
+            histogram.put(count);
         }
-        return uncertain;
+        result.put("histogram", histogram);
+        return result;
     }
 
     public void setSources(List<Element> list) {
@@ -252,6 +410,7 @@ public class Alignment {
         content.addAll(list);
         doc.getRootElement().getChild("sources").setContent(content);
         sources = doc.getRootElement().getChild("sources").getChildren();
+        history.clear();
     }
 
     public void setTargets(List<Element> list) {
@@ -259,26 +418,21 @@ public class Alignment {
         content.addAll(list);
         doc.getRootElement().getChild("targets").setContent(content);
         targets = doc.getRootElement().getChild("targets").getChildren();
+        history.clear();
     }
 
     public void save() throws IOException {
-        setSources(sources);
-        setTargets(targets);
-        XMLOutputter outputter = new XMLOutputter();
-        outputter.preserveSpace(true);
-        Indenter.indent(doc.getRootElement(), 2);
-        try (FileOutputStream out = new FileOutputStream(file)) {
-            outputter.output(doc, out);
-        }
+        published.save();
     }
 
     public JSONObject getFileInfo() throws JSONException, SAXException, IOException, ParserConfigurationException {
+        AlignmentSnapshot view = published;
         JSONObject result = new JSONObject();
-        result.put("file", file);
-        result.put("srcLang", jsonLang(srcLang));
-        result.put("tgtLang", jsonLang(tgtLang));
-        result.put("srcRows", sources.size());
-        result.put("tgtRows", targets.size());
+        result.put("file", view.getFile());
+        result.put("srcLang", jsonLang(view.getSrcLang()));
+        result.put("tgtLang", jsonLang(view.getTgtLang()));
+        result.put("srcRows", view.getSources().size());
+        result.put("tgtRows", view.getTargets().size());
         return result;
     }
 
@@ -292,6 +446,9 @@ public class Alignment {
     }
 
     public JSONObject getRows(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
+        AlignmentSnapshot view = published;
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
         JSONObject result = new JSONObject();
         JSONArray rows = new JSONArray();
         int start = json.getInt("start");
@@ -301,84 +458,219 @@ public class Alignment {
             if (id >= sources.size() && id >= targets.size()) {
                 break;
             }
-            SegmentInfo info = getSegmentInfo(id);
-            String confidenceClass = "confidence-" + info.getConfidenceLevel();
-
-            StringBuilder row = new StringBuilder();
-            row.append("<tr id=\"");
-            row.append("" + id);
-            row.append("\" class=\"");
-            row.append(confidenceClass);
-            row.append("\" data-confidence=\"");
-            row.append(String.format("%.2f", info.confidence));
-            row.append("\"");
-            if (info.manuallyMarked) {
-                row.append(" data-manual=\"true\"");
-            }
-            if (info.aiReviewed) {
-                row.append(" data-ai-reviewed=\"true\"");
-            }
-            row.append("><td class='fixed initial'>");
-            row.append(id + 1);
-
-            // Add confidence indicator badge with gradient color
-            String badgeColor = getConfidenceColor(info.confidence);
-            row.append("<span class='confidence-badge ");
-            row.append(confidenceClass);
-            row.append("' style='background-color: ");
-            row.append(badgeColor);
-            row.append("; color: white; display: inline-block;' title='Confidence: ");
-            row.append(String.format("%.1f%%", info.confidence * 100));
-            if (info.method != null && !info.method.isEmpty()) {
-                row.append("&#10;Method: "); // &#10; is newline in HTML
-                row.append(info.method);
-            }
-            if (info.manuallyMarked) {
-                row.append("&#10;(Manually marked for review)");
-            }
-            if (info.aiReviewed) {
-                row.append("&#10;(AI reviewed)");
-            }
-            row.append("'>");
-            // Always show an indicator
-            if (info.manuallyMarked) {
-                row.append("!");
-            } else if (info.aiReviewed) {
-                row.append("✓");
-            } else if (info.confidence < 0.50) {
-                row.append("?"); // Low confidence
-            } else if (info.confidence < 0.75) {
-                row.append("~"); // Medium confidence
-            } else {
-                row.append("✓"); // High confidence
-            }
-            row.append("</span>");
-
-            row.append("</td><td");
-            if (srcLang.isBiDi()) {
-                row.append(" dir=\"rtl\"");
-            }
-            row.append(" class=\"cell initial\" lang=\"");
-            row.append(srcLang.getCode());
-            row.append("\">");
-            row.append(getContent(sources, id));
-            row.append("</td><td");
-            if (tgtLang.isBiDi()) {
-                row.append(" dir=\"rtl\"");
-            }
-            row.append(" class=\"cell\" lang=\"");
-            row.append(tgtLang.getCode());
-            row.append("\">");
-            row.append(getContent(targets, id));
-            row.append("</td></tr>");
-            rows.put(row.toString());
+            rows.put(renderRow(view, id));
         }
         result.put("rows", rows);
         result.put("srcRows", sources.size());
         result.put("tgtRows", targets.size());
+        result.put("version", view.getVersion());
+        return result;
+    }
+
+    /**
+     * Page through the rows that match a filter. The matching ids are kept
+     * for the last filter used, so further pages of the same view only
+     * render rows until the alignment changes.
+     */
+    public JSONObject getFilteredRows(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
+        AlignmentSnapshot view = published;
+        RowFilter filter = new RowFilter(json.optJSONObject("filter", new JSONObject()));
+        FilteredRows selection = filtered;
+        if (selection == null || selection.version != view.getVersion()
+                || !selection.key.equals(filter.getKey())) {
+            selection = new FilteredRows(filter.getKey(), view.getVersion(), filter.select(view));
+            filtered = selection;
+        }
+        int[] ids = selection.ids;
+        int start = Math.max(0, json.optInt("start", 0));
+        int end = (int) Math.min(ids.length, (long) start + json.optInt("count", 50));
+        JSONObject result = new JSONObject();
+        JSONArray rows = new JSONArray();
+        JSONArray pageIds = new JSONArray();
+        for (int i = start; i < end; i++) {
+            rows.put(renderRow(view, ids[i]));
+            pageIds.put(ids[i]);
+        }
+        result.put("rows", rows);
+        result.put("ids", pageIds);
+        result.put("total", ids.length);
+        result.put("srcRows", view.getSources().size());
+        result.put("tgtRows", view.getTargets().size());
+        result.put("version", view.getVersion());
+        return result;
+    }
+
+    /**
+     * Find segments containing a text or matching a regular expression. Plain
+     * text searches of three or more characters only check the rows that the
+     * trigram index reports; the matching ids are kept for the last search so
+     * paging does not repeat it.
+     */
+    public JSONObject search(JSONObject json) {
+        AlignmentSnapshot view = published;
+        String text = json.getString("text");
+        boolean regExp = json.optBoolean("regExp", false);
+        boolean caseSensitive = json.optBoolean("caseSensitive", false);
+        String in = json.optString("in", "both");
+        boolean inSource = !"target".equals(in);
+        boolean inTarget = !"source".equals(in);
+        int flags = caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        Pattern matcher = Pattern.compile(regExp ? text : Pattern.quote(text), flags);
+
+        String key = regExp + "|" + caseSensitive + "|" + in + "|" + text;
+        FilteredRows selection = searched;
+        if (selection == null || selection.version != view.getVersion() || !selection.key.equals(key)) {
+            BitSet found = new BitSet();
+            if (!text.isEmpty()) {
+                if (inSource) {
+                    searchSide(view, SegmentStore.SOURCES, text, regExp, matcher, found);
+                }
+                if (inTarget) {
+                    searchSide(view, SegmentStore.TARGETS, text, regExp, matcher, found);
+                }
+            }
+            selection = new FilteredRows(key, view.getVersion(), found.stream().toArray());
+            searched = selection;
+        }
+        int[] ids = selection.ids;
+        int start = Math.max(0, json.optInt("start", 0));
+        int end = (int) Math.min(ids.length, (long) start + json.optInt("count", 50));
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        JSONArray matches = new JSONArray();
+        for (int i = start; i < end; i++) {
+            int id = ids[i];
+            JSONObject match = new JSONObject();
+            match.put("id", id);
+            if (id < sources.size()) {
+                String source = getPureText(sources.get(id));
+                match.put("source", source);
+                match.put("sourceMatches", inSource ? highlights(matcher, source) : new JSONArray());
+            }
+            if (id < targets.size()) {
+                String target = getPureText(targets.get(id));
+                match.put("target", target);
+                match.put("targetMatches", inTarget ? highlights(matcher, target) : new JSONArray());
+            }
+            matches.put(match);
+        }
+        JSONObject result = new JSONObject();
+        result.put("matches", matches);
+        result.put("total", ids.length);
+        result.put("version", view.getVersion());
         return result;
     }
 
+    private void searchSide(AlignmentSnapshot view, int side, String text, boolean regExp, Pattern matcher,
+            BitSet found) {
+        List<Element> list = side == SegmentStore.SOURCES ? view.getSources() : view.getTargets();
+        int[] rows = regExp ? null : searchIndex.candidates(view, side, text);
+        int count = rows != null ? rows.length : list.size();
+        for (int r = 0; r < count; r++) {
+            int row = rows != null ? rows[r] : r;
+            if (!found.get(row) && matcher.matcher(getPureText(list.get(row))).find()) {
+                found.set(row);
+            }
+        }
+    }
+
+    /**
+     * Start and end offsets of every match in a text
+     */
+    private static JSONArray highlights(Pattern pattern, String text) {
+        JSONArray ranges = new JSONArray();
+        Matcher matcher = pattern.matcher(text);
+        while (matcher.find()) {
+            if (matcher.end() == matcher.start()) {
+                continue;
+            }
+            JSONArray range = new JSONArray();
+            range.put(matcher.start());
+            range.put(matcher.end());
+            ranges.put(range);
+        }
+        return ranges;
+    }
+
+    private String renderRow(AlignmentSnapshot view, int id)
+            throws SAXException, IOException, ParserConfigurationException {
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        Language srcLang = view.getSrcLang();
+        Language tgtLang = view.getTgtLang();
+        SegmentInfo info = getSegmentInfo(view, id);
+        String confidenceClass = "confidence-" + info.getConfidenceLevel();
+
+        StringBuilder row = new StringBuilder();
+        row.append("<tr id=\"");
+        row.append("" + id);
+        row.append("\" class=\"");
+        row.append(confidenceClass);
+        row.append("\" data-confidence=\"");
+        row.append(String.format("%.2f", info.confidence));
+        row.append("\"");
+        if (info.manuallyMarked) {
+            row.append(" data-manual=\"true\"");
+        }
+        if (info.aiReviewed) {
+            row.append(" data-ai-reviewed=\"true\"");
+        }
+        row.append("><td class='fixed initial'>");
+        row.append(id + 1);
+
+        // Add confidence indicator badge with gradient color
+        String badgeColor = getConfidenceColor(info.confidence);
+        row.append("<span class='confidence-badge ");
+        row.append(confidenceClass);
+        row.append("' style='background-color: ");
+        row.append(badgeColor);
+        row.append("; color: white; display: inline-block;' title='Confidence: ");
+        row.append(String.format("%.1f%%", info.confidence * 100));
+        if (info.method != null && !info.method.isEmpty()) {
+            row.append("&#10;Method: "); // &#10; is newline in HTML
+            row.append(info.method);
+        }
+        if (info.manuallyMarked) {
+            row.append("&#10;(Manually marked for review)");
+        }
+        if (info.aiReviewed) {
+            row.append("&#10;(AI reviewed)");
+        }
+        row.append("'>");
+        // Always show an indicator
+        if (info.manuallyMarked) {
+            row.append("!");
+        } else if (info.aiReviewed) {
+            row.append("✓");
+        } else if (info.confidence < 0.50) {
+            row.append("?"); // Low confidence
+        } else if (info.confidence < 0.75) {
+            row.append("~"); // Medium confidence
+        } else {
+            row.append("✓"); // High confidence
+        }
+        row.append("</span>");
+
+        row.append("</td><td");
+        if (srcLang.isBiDi()) {
+            row.append(" dir=\"rtl\"");
+        }
+        row.append(" class=\"cell initial\" lang=\"");
+        row.append(srcLang.getCode());
+        row.append("\">");
+        row.append(getContent(sources, id));
+        row.append("</td><td");
+        if (tgtLang.isBiDi()) {
+            row.append(" dir=\"rtl\"");
+        }
+        row.append(" class=\"cell\" lang=\"");
+        row.append(tgtLang.getCode());
+        row.append("\">");
+        row.append(getContent(targets, id));
+        row.append("</td></tr>");
+        return row.toString();
+    }
+
     private String getContent(List<Element> list, int row) {
         if (row < list.size()) {
             return pureText(list.get(row));
@@ -439,7 +731,7 @@ public class Alignment {
         return res;
     }
 
-    private String restoreAngles(String string) {
+    private static String restoreAngles(String string) {
         String res = string.replace("\u200b\u2039", "<");
         res = res.replace("\u200b\u203a", ">");
         return res;
@@ -460,62 +752,112 @@ public class Alignment {
                 + " x=\"6\" y=\"14\" fill=\"#ffffff\" fill-opacity=\"1\">" + tag + "</text></g></svg>";
     }
 
+    /**
+     * Remove pairs whose source and target both repeat an earlier pair. Pairs
+     * are fingerprinted in one pass and the lists are compacted once.
+     */
     public int removeDuplicates() {
-        int removed = 0;
-        for (int i = 0; i < sources.size() - 1; i++) {
+        int rows = Math.min(sources.size(), targets.size());
+        Map<Long, Integer> seen = new HashMap<>();
+        BitSet duplicates = new BitSet(rows);
+        for (int i = 0; i < rows; i++) {
             Element src = sources.get(i);
-            for (int h = i + 1; h < sources.size(); h++) {
-                Element next = sources.get(h);
-                if (src.equals(next) && h < targets.size()) {
-                    Element tgt = targets.get(i);
-                    Element tgtnext = targets.get(h);
-                    if (tgt.equals(tgtnext)) {
-                        sources.remove(h);
-                        targets.remove(h);
-                        removed++;
-                    }
+            Element tgt = targets.get(i);
+            long key = NearDuplicates.fingerprint(src.toString() + '\u0000' + tgt.toString());
+            Integer first = seen.putIfAbsent(key, i);
+            // a fingerprint collision keeps the row
+            if (first != null && src.equals(sources.get(first)) && tgt.equals(targets.get(first))) {
+                duplicates.set(i);
+            }
+        }
+        removeRows(duplicates);
+        return duplicates.cardinality();
+    }
+
+    /**
+     * Report clusters of near-duplicate pairs and, when asked, keep only the
+     * first pair of each cluster
+     */
+    public JSONObject findNearDuplicates(JSONObject json) {
+        double threshold = json.optDouble("threshold", 0.8);
+        List<int[]> clusters = NearDuplicates.find(sources, targets, threshold);
+        JSONArray array = new JSONArray();
+        BitSet extra = new BitSet();
+        for (int[] cluster : clusters) {
+            JSONArray ids = new JSONArray();
+            for (int i = 0; i < cluster.length; i++) {
+                ids.put(cluster[i]);
+                if (i > 0) {
+                    extra.set(cluster[i]);
                 }
             }
+            array.put(ids);
         }
-        return removed;
+        boolean remove = json.optBoolean("remove", false);
+        if (remove) {
+            removeRows(extra);
+        }
+        JSONObject result = new JSONObject();
+        result.put("clusters", array);
+        result.put("removed", remove ? extra.cardinality() : 0);
+        return result;
     }
 
-    private Element trimSpaces(Element e) throws SAXException, IOException, ParserConfigurationException {
-        SAXBuilder builder = new SAXBuilder();
-        String text = "<source>" + extractText(e).strip() + "</source>";
-        Element root1 = builder.build(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))).getRootElement();
-        e.setContent(root1.getContent());
-        return e;
+    private void removeRows(BitSet rows) {
+        if (!rows.isEmpty()) {
+            compact(sources, rows);
+            compact(targets, rows);
+            // quality data follows its rows
+            segmentInfo.removeRows(rows);
+            infoChanged = true;
+            history.clear();
+        }
     }
 
-    private static String extractText(Element e) {
-        StringBuilder result = new StringBuilder();
-        List<XMLNode> list = e.getContent();
-        Iterator<XMLNode> it = list.iterator();
-        while (it.hasNext()) {
-            XMLNode node = it.next();
-            if (node.getNodeType() == XMLNode.TEXT_NODE) {
-                result.append(node.toString());
-            }
-            if (node.getNodeType() == XMLNode.ELEMENT_NODE) {
-                result.append(((Element) node).toString());
+    private static void compact(List<Element> list, BitSet removed) {
+        if (list instanceof LazySegmentList lazy) {
+            lazy.removeRows(removed);
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (!removed.get(i)) {
+                if (kept != i) {
+                    list.set(kept, list.get(i));
+                }
+                kept++;
             }
         }
-        return result.toString();
+        list.subList(kept, list.size()).clear();
     }
 
     public void removeTags() {
-        for (int i = 0; i < sources.size(); i++) {
-            Element src = sources.get(i);
-            src.setText(getPureText(src));
-        }
-        for (int i = 0; i < targets.size(); i++) {
-            Element tgt = targets.get(i);
-            tgt.setText(getPureText(tgt));
+        removeTags(sources);
+        removeTags(targets);
+    }
+
+    private void removeTags(List<Element> list) {
+        for (int i = 0; i < list.size(); i++) {
+            Element e = list.get(i);
+            if (!e.getChildren().isEmpty()) {
+                Element copy = copyOf(e);
+                copy.setText(getPureText(e));
+                change(list, i, List.of(e), List.of(copy));
+            }
         }
     }
 
-    private static String getPureText(Element element) {
+    /**
+     * Elements placed in the segment lists are shared with snapshots and must
+     * not be modified; edits work on a deep copy that replaces the original.
+     */
+    static Element copyOf(Element e) {
+        Element copy = new Element();
+        copy.clone(e);
+        return copy;
+    }
+
+    static String getPureText(Element element) {
         StringBuilder result = new StringBuilder();
         List<XMLNode> nodes = element.getContent();
         Iterator<XMLNode> it = nodes.iterator();
@@ -535,117 +877,71 @@ public class Alignment {
         return result.toString();
     }
 
-    public void exportTMX(String tmxFile) throws IOException, SAXException, ParserConfigurationException {
-        Document tmx = new Document(null, "tmx", "-//LISA OSCAR:1998//DTD for Translation Memory eXchange//EN",
-                "tmx14.dtd");
-        Element root = tmx.getRootElement();
-        root.setAttribute("version", "1.4");
-        Element header = new Element("header");
-        header.setAttribute("creationtool", "Bunghole");
-        header.setAttribute("creationtoolversion", Constants.VERSION);
-        header.setAttribute("datatype", "unknown");
-        header.setAttribute("segtype", "block");
-        header.setAttribute("adminlang", "en");
-        header.setAttribute("srclang", "*all*");
-        header.setAttribute("o-tmf", "XLIFF");
-        root.addContent(header);
-        Element body = new Element("body");
-        root.addContent(body);
-
-        long tuid = System.currentTimeMillis();
-        int max = sources.size();
-        if (targets.size() < max) {
-            max = targets.size();
-        }
-        for (int i = 0; i < max; i++) {
-            Element tu = new Element("tu");
-            tu.setAttribute("tuid", "" + tuid++);
-            body.addContent(tu);
-
-            Element stuv = new Element("tuv");
-            stuv.setAttribute("xml:lang", srcLang.getCode());
-            Element sseg = new Element("seg");
-            sseg.setContent(getTmxContent(trimSpaces(sources.get(i))));
-            stuv.addContent(sseg);
-            tu.addContent(stuv);
-
-            Element ttuv = new Element("tuv");
-            ttuv.setAttribute("xml:lang", tgtLang.getCode());
-            Element tseg = new Element("seg");
-            tseg.setContent(getTmxContent(trimSpaces(targets.get(i))));
-            ttuv.addContent(tseg);
-            tu.addContent(ttuv);
-        }
-
-        XMLOutputter outputter = new XMLOutputter();
-        outputter.preserveSpace(true);
-        Indenter.indent(root, 2);
-        try (FileOutputStream output = new FileOutputStream(tmxFile)) {
-            outputter.output(tmx, output);
-        }
-    }
-
-    public void exportExcel(String excelFile) throws IOException, SAXException, ParserConfigurationException {
-        int max = sources.size();
-        if (targets.size() < max) {
-            max = targets.size();
-        }
-        List<String> languages = new ArrayList<>();
-        languages.add(srcLang.getCode());
-        languages.add(tgtLang.getCode());
-        Map<String, String> langsMap = new HashMap<>();
-        Set<String> cols = new TreeSet<>();
-        int i = 0;
-        Iterator<String> it = languages.iterator();
-        while (it.hasNext()) {
-            String lang = it.next();
-            char c = (char) (65 + i++);
-            cols.add("" + c);
-            langsMap.put(lang, "" + c);
-        }
-
-        List<Map<String, String>> rows = new ArrayList<>();
-
-        Map<String, String> firstRow = new HashMap<>();
-        firstRow.put(langsMap.get(srcLang.getCode()), srcLang.getCode());
-        firstRow.put(langsMap.get(tgtLang.getCode()), tgtLang.getCode());
-        rows.add(firstRow);
+    public void exportTMX(String tmxFile) throws IOException {
+        exportTMX(tmxFile, new JSONObject());
+    }
 
-        for (i = 0; i < max; i++) {
-            Map<String, String> rowMap = new HashMap<>();
-            rowMap.put(langsMap.get(srcLang.getCode()), getPureText(sources.get(i)).replace('\t', ' '));
-            rowMap.put(langsMap.get(tgtLang.getCode()), getPureText(targets.get(i)).replace('\t', ' '));
-            rows.add(rowMap);
+    /**
+     * Stream the aligned pairs to a TMX file. Options: minConfidence skips
+     * pairs scored below it, skipManual skips pairs flagged for review and
+     * gzip compresses the file (the default for names ending in .gz).
+     *
+     * @return the number of units written
+     */
+    public int exportTMX(String tmxFile, JSONObject options) throws IOException {
+        AlignmentSnapshot view = published;
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        SegmentTable table = view.getSegmentTable();
+        double minConfidence = options.optDouble("minConfidence", 0.0);
+        boolean skipManual = options.optBoolean("skipManual", false);
+        boolean gzip = options.optBoolean("gzip", tmxFile.endsWith(".gz"));
+        int max = Math.min(sources.size(), targets.size());
+        int written = 0;
+        try (TmxWriter writer = new TmxWriter(TmxWriter.open(Path.of(tmxFile), gzip),
+                view.getSrcLang().getCode(), view.getTgtLang().getCode())) {
+            for (int i = 0; i < max; i++) {
+                if (table.getConfidence(i) < minConfidence || (skipManual && table.isManual(i))) {
+                    continue;
+                }
+                writer.writeUnit(sources.get(i), targets.get(i));
+                written++;
+            }
         }
-        Sheet sheet = new Sheet("Sheet1", cols, rows);
-        ExcelWriter writer = new ExcelWriter();
-        writer.writeFile(excelFile, sheet);
+        return written;
     }
 
-    private List<XMLNode> getTmxContent(Element element) {
-        List<XMLNode> result = new ArrayList<>();
-        List<XMLNode> nodes = element.getContent();
-        Iterator<XMLNode> it = nodes.iterator();
-        while (it.hasNext()) {
-            XMLNode n = it.next();
-            if (n.getNodeType() == XMLNode.TEXT_NODE) {
-                result.add(n);
-            }
-            if (n.getNodeType() == XMLNode.ELEMENT_NODE) {
-                Element e = (Element) n;
-                if ("ph".equals(e.getName())) {
-                    e.setAttributes(new ArrayList<>());
-                    result.add(e);
-                }
-                if ("g".equals(e.getName())) {
-                    result.add(new TextNode(getPureText(e)));
-                }
+    /**
+     * Export to any of TMX ("tmx"), tab separated text ("tsv") and Excel
+     * ("excel") in one pass over the segments
+     *
+     * @return the number of rows exported
+     */
+    public int exportAll(JSONObject json) throws IOException {
+        return ExportPass.run(published, json.optString("tmx", null), json.optString("tsv", null),
+                json.optString("excel", null));
+    }
+
+    public void exportExcel(String excelFile) throws IOException {
+        AlignmentSnapshot view = published;
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        int max = Math.min(sources.size(), targets.size());
+        try (ExcelStreamWriter writer = new ExcelStreamWriter(excelFile, "Sheet1")) {
+            writer.addRow(view.getSrcLang().getCode(), view.getTgtLang().getCode());
+            for (int i = 0; i < max; i++) {
+                writer.addRow(getPureText(sources.get(i)).replace('\t', ' '),
+                        getPureText(targets.get(i)).replace('\t', ' '));
             }
         }
-        return result;
     }
 
     public void exportCSV(String csvFile) throws IOException {
+        AlignmentSnapshot view = published;
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        Language srcLang = view.getSrcLang();
+        Language tgtLang = view.getTgtLang();
         try (FileOutputStream stream = new FileOutputStream(csvFile);
                 OutputStreamWriter cout = new OutputStreamWriter(stream, StandardCharsets.UTF_16LE)) {
             byte[] feff = { -1, -2 };
@@ -687,7 +983,7 @@ public class Alignment {
             if (json.getString("lang").equals(tgtLang.getCode())) {
                 list = targets;
             }
-            list.remove(row);
+            change(list, row, List.of(list.get(row)), List.of());
         } catch (IndexOutOfBoundsException e) {
             Logger logger = System.getLogger(Alignment.class.getName());
             logger.log(Level.ERROR, e);
@@ -701,10 +997,7 @@ public class Alignment {
             if (json.getString("lang").equals(tgtLang.getCode())) {
                 list = targets;
             }
-            Element e = new Element("source");
-            e.clone(list.get(row + 1));
-            list.remove(row + 1);
-            list.add(row, e);
+            change(list, row, List.of(list.get(row), list.get(row + 1)), List.of(list.get(row + 1), list.get(row)));
         } catch (IndexOutOfBoundsException e) {
             // ignore
         }
@@ -717,10 +1010,7 @@ public class Alignment {
             if (json.getString("lang").equals(tgtLang.getCode())) {
                 list = targets;
             }
-            Element e = new Element("source");
-            e.clone(list.get(row - 1));
-            list.remove(row - 1);
-            list.add(row, e);
+            change(list, row - 1, List.of(list.get(row - 1), list.get(row)), List.of(list.get(row), list.get(row - 1)));
         } catch (IndexOutOfBoundsException e) {
             // ignore
         }
@@ -733,9 +1023,9 @@ public class Alignment {
             if (json.getString("lang").equals(tgtLang.getCode())) {
                 list = targets;
             }
-            Element next = list.get(row + 1);
-            list.get(row).addContent(next.getContent());
-            list.remove(row + 1);
+            Element first = list.get(row);
+            Element second = list.get(row + 1);
+            change(list, row, List.of(first, second), List.of(merged(first, second)));
         } catch (IndexOutOfBoundsException e) {
             // ignore
         }
@@ -747,13 +1037,21 @@ public class Alignment {
         if (json.getString("lang").equals(tgtLang.getCode())) {
             list = targets;
         }
-        String data = json.getString("data").replace("&nbsp;", "\u00A0");
-        data = restoreAngles(data);
+        Element old = list.get(row);
+        change(list, row, List.of(old), List.of(edited(old, json.getString("data"))));
+    }
+
+    /**
+     * Copy of a segment with new content, given as edited in the UI
+     */
+    static Element edited(Element original, String data) throws SAXException, IOException, ParserConfigurationException {
+        data = restoreAngles(data.replace("&nbsp;", "\u00A0"));
         if (data.indexOf("<") == -1) {
-            list.get(row).setText(data);
-        } else {
-            list.get(row).clone(rebuild(data));
+            Element copy = copyOf(original);
+            copy.setText(data);
+            return copy;
         }
+        return rebuild(data);
     }
 
     public void splitSegment(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
@@ -763,89 +1061,267 @@ public class Alignment {
             if (json.getString("lang").equals(tgtLang.getCode())) {
                 list = targets;
             }
-            String data = json.getString("start").replace("&nbsp;", "\u00A0");
-            data = restoreAngles(data);
-            if (data.indexOf("<") == -1) {
-                list.get(row).setText(data);
-            } else {
-                list.get(row).clone(rebuild(data));
-            }
-            data = json.getString("end").replace("&nbsp;", "\u00A0");
-            data = restoreAngles(data);
-            Element newSource = new Element("source");
-            if (data.indexOf("<") == -1) {
-                newSource.setText(data);
-            } else {
-                newSource.clone(rebuild(data));
-            }
-            list.add(row + 1, newSource);
+            Element old = list.get(row);
+            change(list, row, List.of(old),
+                    List.of(edited(old, json.getString("start")), created(json.getString("end"))));
         } catch (IndexOutOfBoundsException e) {
             // ignore
         }
     }
 
-    private Element rebuild(String e) throws SAXException, IOException, ParserConfigurationException {
+    /**
+     * New segment from content given as edited in the UI
+     */
+    static Element created(String data) throws SAXException, IOException, ParserConfigurationException {
+        data = restoreAngles(data.replace("&nbsp;", "\u00A0"));
+        Element newSource = new Element("source");
+        if (data.indexOf("<") == -1) {
+            newSource.setText(data);
+        } else {
+            newSource.clone(rebuild(data));
+        }
+        return newSource;
+    }
+
+    /**
+     * Segment with the content of two consecutive segments
+     */
+    static Element merged(Element first, Element second) {
+        Element merged = copyOf(first);
+        merged.addContent(copyOf(second).getContent());
+        return merged;
+    }
+
+    private static Element rebuild(String e) throws SAXException, IOException, ParserConfigurationException {
         SAXBuilder builder = new SAXBuilder();
         String text = "<source>" + e + "</source>";
         return builder.build(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))).getRootElement();
     }
 
-    public void replaceText(JSONObject json) {
+    /**
+     * Replace text in sources or targets. With dryRun the alignment is left
+     * unchanged and the result only reports what would change, so it can be
+     * called from any thread. Plain text searches only visit the rows that
+     * the search index reports.
+     */
+    public JSONObject replaceText(JSONObject json) {
         String search = json.getString("search");
-        String replace = json.getString("replace");
         boolean regExp = json.getBoolean("regExp");
-        List<Element> list = sources;
-        if (!json.getBoolean("inSource")) {
-            list = targets;
+        boolean dryRun = json.optBoolean("dryRun", false);
+        int previewLimit = json.optInt("previews", 100);
+        boolean inSource = json.getBoolean("inSource");
+        int side = inSource ? SegmentStore.SOURCES : SegmentStore.TARGETS;
+
+        // the live lists match the published state until this command changes them
+        AlignmentSnapshot view = published;
+        List<Element> current = inSource ? view.getSources() : view.getTargets();
+        List<ReplaceEngine.Change> changes = List.of();
+        if (!search.isEmpty()) {
+            ReplaceEngine engine = new ReplaceEngine(search, json.getString("replace"), regExp);
+            int[] rows = regExp ? null : searchIndex.candidates(view, side, search);
+            changes = engine.run(current, rows);
         }
-        Iterator<Element> st = list.iterator();
-        while (st.hasNext()) {
-            Element element = st.next();
-            List<XMLNode> newContent = new ArrayList<>();
-            List<XMLNode> content = element.getContent();
-            Iterator<XMLNode> it = content.iterator();
-            while (it.hasNext()) {
-                XMLNode node = it.next();
-                if (node.getNodeType() == XMLNode.TEXT_NODE) {
-                    TextNode text = (TextNode) node;
-                    text.setText(replaceAll(text.getText(), search, replace, regExp));
-                    newContent.add(text);
-                }
-                if (node.getNodeType() == XMLNode.ELEMENT_NODE) {
-                    Element e = (Element) node;
-                    String type = e.getName();
-                    if (type.equals("g")) {
-                        e.setText(replaceAll(e.getText(), search, replace, regExp));
-                    }
-                    newContent.add(node);
-                }
+        JSONObject result = new JSONObject();
+        JSONArray previews = new JSONArray();
+        int matches = 0;
+        for (ReplaceEngine.Change change : changes) {
+            matches += change.matches();
+            if (previews.length() < previewLimit) {
+                JSONObject preview = new JSONObject();
+                preview.put("id", change.row());
+                preview.put("matches", change.matches());
+                preview.put("before", getPureText(change.before()));
+                preview.put("after", getPureText(change.after()));
+                previews.put(preview);
+            }
+        }
+        if (!dryRun) {
+            List<Element> list = inSource ? sources : targets;
+            for (ReplaceEngine.Change change : changes) {
+                change(list, change.row(), List.of(change.before()), List.of(change.after()));
+            }
+        }
+        result.put("matches", matches);
+        result.put("segments", changes.size());
+        result.put("previews", previews);
+        result.put("dryRun", dryRun);
+        return result;
+    }
+
+    /**
+     * Apply an ordered batch of operations. The batch is checked against the
+     * row counts first and nothing changes if any operation is out of range.
+     * Operations run on a copy of the rows the batch touches, which is then
+     * written back in a single pass.
+     */
+    public JSONObject applyEdits(JSONObject json) throws SAXException, IOException, ParserConfigurationException {
+        JSONArray array = json.getJSONArray("operations");
+        List<EditOperation> operations = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            operations.add(new EditOperation(array.getJSONObject(i), tgtLang.getCode()));
+        }
+        List<List<Element>> lists = List.of(sources, targets);
+        int[] size = { sources.size(), targets.size() };
+        int[] low = { -1, -1 };
+        int[] high = { -1, -1 };
+        int[] shift = { 0, 0 };
+        for (int i = 0; i < operations.size(); i++) {
+            EditOperation operation = operations.get(i);
+            int side = operation.getSide();
+            int from = operation.from();
+            int to = operation.to();
+            if (from < 0 || to > size[side]) {
+                throw new IndexOutOfBoundsException("Operation " + i + " (" + operation + ") is out of range");
+            }
+            // rows past the window have only been shifted so far
+            if (low[side] == -1) {
+                low[side] = from;
+                high[side] = to - shift[side];
+            } else {
+                low[side] = Math.min(low[side], from);
+                high[side] = Math.max(high[side], to - shift[side]);
+            }
+            shift[side] += operation.delta();
+            size[side] += operation.delta();
+        }
+        List<List<Element>> originals = new ArrayList<>();
+        List<List<Element>> windows = new ArrayList<>();
+        for (int side = 0; side < 2; side++) {
+            List<Element> original = low[side] == -1 ? null
+                    : new ArrayList<>(lists.get(side).subList(low[side], high[side]));
+            originals.add(original);
+            windows.add(original == null ? null : new ArrayList<>(original));
+        }
+        for (EditOperation operation : operations) {
+            int side = operation.getSide();
+            operation.apply(windows.get(side), low[side]);
+        }
+        for (int side = 0; side < 2; side++) {
+            if (windows.get(side) != null) {
+                change(lists.get(side), low[side], originals.get(side), windows.get(side));
+            }
+        }
+        JSONObject result = new JSONObject();
+        result.put("applied", operations.size());
+        // the edit queue publishes the batch as the next version
+        result.put("version", version + 1);
+        result.put("srcRows", sources.size());
+        result.put("tgtRows", targets.size());
+        return result;
+    }
+
+    /**
+     * Replace the removed segments, starting at a row, with the inserted ones
+     * and record the change so it can be undone
+     */
+    private void change(List<Element> list, int from, List<Element> removed, List<Element> inserted) {
+        replaceRange(list, from, from + removed.size(), inserted);
+        history.record(new EditHistory.Change(list == sources ? SegmentStore.SOURCES : SegmentStore.TARGETS, from,
+                removed, inserted));
+    }
+
+    /**
+     * Revert the last recorded command
+     */
+    public JSONObject undo() {
+        List<EditHistory.Edit> group = history.undo();
+        if (group != null) {
+            for (int i = group.size() - 1; i >= 0; i--) {
+                replay(group.get(i).inverse());
             }
-            element.setContent(newContent);
         }
+        return historyResult(group);
     }
 
-    public static String replaceAll(String string, String target, String replacement, boolean regExp) {
-        String source = string;
-        if (regExp) {
-            if (pattern == null || !target.equals(lastTarget)) {
-                pattern = Pattern.compile(target);
-                lastTarget = target;
+    /**
+     * Apply the last undone command again
+     */
+    public JSONObject redo() {
+        List<EditHistory.Edit> group = history.redo();
+        if (group != null) {
+            for (EditHistory.Edit change : group) {
+                replay(change);
             }
-            Matcher matcher = pattern.matcher(string);
-            StringBuffer sb = new StringBuffer();
-            while (matcher.find()) {
-                matcher.appendReplacement(sb, replacement);
+        }
+        return historyResult(group);
+    }
+
+    private void replay(EditHistory.Edit edit) {
+        switch (edit) {
+            case EditHistory.Change change -> {
+                List<Element> list = change.side() == SegmentStore.SOURCES ? sources : targets;
+                replaceRange(list, change.from(), change.from() + change.removed().size(), change.inserted());
+            }
+            case EditHistory.InfoChange change -> {
+                segmentInfo.restore(change.row(), change.after());
+                infoChanged = true;
+            }
+        }
+    }
+
+    private JSONObject historyResult(List<EditHistory.Edit> group) {
+        JSONObject result = new JSONObject();
+        result.put("changed", group != null);
+        if (group != null) {
+            EditHistory.Edit first = group.get(0);
+            result.put("row", first.row());
+            result.put("inSource", !(first instanceof EditHistory.Change change)
+                    || change.side() == SegmentStore.SOURCES);
+        }
+        result.put("canUndo", history.canUndo());
+        result.put("canRedo", history.canRedo());
+        return result;
+    }
+
+    /**
+     * Replace rows from..to (exclusive) with the given segments
+     */
+    static void replaceRange(List<Element> list, int from, int to, List<Element> replacement) {
+        if (replacement.size() == to - from) {
+            for (int i = 0; i < replacement.size(); i++) {
+                list.set(from + i, replacement.get(i));
             }
-            matcher.appendTail(sb);
-            return sb.toString();
+            return;
         }
-        int start = source.indexOf(target);
-        while (start != -1) {
-            source = source.substring(0, start) + replacement + source.substring(start + target.length());
-            start += replacement.length();
-            start = source.indexOf(target, start);
+        if (list instanceof LazySegmentList lazy) {
+            lazy.replaceRange(from, to, replacement);
+            return;
         }
-        return source;
+        List<Element> range = list.subList(from, to);
+        range.clear();
+        range.addAll(replacement);
+    }
+
+    /**
+     * Start an undo group for a long running job; the commands that call
+     * {@link #joinEditGroup()} are undone together until it is closed
+     */
+    public void openEditGroup() {
+        history.openGroup();
+    }
+
+    /**
+     * Record the edits of the running command in the open undo group
+     */
+    public void joinEditGroup() {
+        history.joinGroup();
+    }
+
+    /**
+     * Close the open undo group; later commands are undone one by one again
+     */
+    public void closeEditGroup() {
+        history.closeGroup();
+    }
+
+    /**
+     * Swap two target segments, used when moving a translation up or down
+     */
+    public void swapTargets(int a, int b) {
+        Element first = targets.get(a);
+        Element second = targets.get(b);
+        change(targets, a, List.of(first), List.of(second));
+        change(targets, b, List.of(second), List.of(first));
     }
 
 }
\ No newline at end of file
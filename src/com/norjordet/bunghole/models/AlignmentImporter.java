@@ -0,0 +1,420 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.maxprograms.xml.Element;
+import com.norjordet.bunghole.alignment.GaleChurch;
+import com.norjordet.bunghole.alignment.TranslationMemory;
+import com.norjordet.bunghole.excel.ExcelStreamReader;
+
+/**
+ * Builds an alignment from bilingual files that are already aligned: TMX
+ * (optionally compressed with gzip), tab separated text as written by
+ * exportCSV and spreadsheets as written by exportExcel.
+ *
+ * Files are parsed as streams, one pair at a time, straight into the segment
+ * lists. Each pair is kept on one row, so scoring only has to rate the pairs
+ * and does not look for a new alignment.
+ */
+public final class AlignmentImporter {
+
+    public static final String METHOD = "Imported";
+
+    private static final int CHUNK = 4096;
+
+    private String srcLang;
+    private String tgtLang;
+    private final List<Element> sources = new ArrayList<>();
+    private final List<Element> targets = new ArrayList<>();
+
+    /**
+     * @param srcLang source language; may be empty to take it from the file
+     * @param tgtLang target language; may be empty to take it from the file
+     */
+    private AlignmentImporter(String srcLang, String tgtLang) {
+        this.srcLang = srcLang == null || srcLang.isEmpty() ? null : srcLang;
+        this.tgtLang = tgtLang == null || tgtLang.isEmpty() ? null : tgtLang;
+    }
+
+    /**
+     * Read a TMX, TSV or XLSX file, chosen by its extension. The alignment is
+     * published but not saved.
+     */
+    public static Alignment read(String file, String srcLang, String tgtLang)
+            throws IOException, SAXException, ParserConfigurationException {
+        AlignmentImporter importer = new AlignmentImporter(srcLang, tgtLang);
+        String name = file.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".tmx") || name.endsWith(".tmx.gz")) {
+            importer.readTmx(Path.of(file));
+        } else if (name.endsWith(".xlsx")) {
+            importer.readExcel(file);
+        } else if (name.endsWith(".tsv") || name.endsWith(".csv") || name.endsWith(".txt")) {
+            importer.readTsv(Path.of(file));
+        } else {
+            throw new IOException("Unsupported file type: " + file);
+        }
+        if (importer.srcLang == null || importer.tgtLang == null) {
+            throw new IOException("Languages not found in " + file);
+        }
+        Alignment alignment = new Alignment(importer.srcLang, importer.tgtLang);
+        alignment.setSources(importer.sources);
+        alignment.setTargets(importer.targets);
+        alignment.publish();
+        return alignment;
+    }
+
+    /**
+     * Confidence of every row, computed in parallel chunks
+     */
+    public static double[] score(AlignmentSnapshot view) {
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        int rows = Math.min(sources.size(), targets.size());
+        GaleChurch scorer = new GaleChurch();
+        double[] scores = new double[rows];
+        IntStream.range(0, (rows + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            int end = Math.min(rows, (chunk + 1) * CHUNK);
+            for (int i = chunk * CHUNK; i < end; i++) {
+                scores[i] = scorer.score(Alignment.getPureText(sources.get(i)).trim(),
+                        Alignment.getPureText(targets.get(i)).trim());
+            }
+        });
+        return scores;
+    }
+
+    private void add(Element source, Element target) {
+        sources.add(source);
+        targets.add(target);
+    }
+
+    private static Element segment(String text) {
+        Element segment = new Element("source");
+        segment.setText(text == null ? "" : text);
+        return segment;
+    }
+
+    /**
+     * The first row holds the languages, as in exported files. Columns named
+     * after the given languages are used; when only one language is given
+     * and the header names another one, that column holds the other
+     * language. A language that is not named takes the first other column,
+     * and when neither is named the first two columns are used. A language
+     * not given is taken from its column's header.
+     */
+    private int[] columns(String[] header) {
+        int source = find(header, srcLang);
+        int target = find(header, tgtLang);
+        if (source == -1 && target == -1) {
+            if (srcLang == null && tgtLang != null) {
+                source = named(header);
+            } else if (tgtLang == null && srcLang != null) {
+                target = named(header);
+            }
+        }
+        if (source == -1 && target == -1) {
+            source = 0;
+            target = 1;
+        } else if (source == -1) {
+            source = target == 0 ? 1 : 0;
+        } else if (target == -1 || target == source) {
+            target = source == 0 ? 1 : 0;
+        }
+        if (srcLang == null) {
+            srcLang = language(header, source);
+        }
+        if (tgtLang == null) {
+            tgtLang = language(header, target);
+        }
+        return new int[] { source, target };
+    }
+
+    private static int find(String[] header, String language) {
+        if (language != null) {
+            for (int i = 0; i < header.length; i++) {
+                if (header[i] != null && header[i].strip().equalsIgnoreCase(language)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * First column with a header, or -1
+     */
+    private static int named(String[] header) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i] != null && !header[i].isBlank()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String language(String[] header, int column) {
+        String cell = cell(header, column);
+        return cell == null || cell.isBlank() ? null : cell.strip();
+    }
+
+    private static String cell(String[] cells, int column) {
+        return column < cells.length ? cells[column] : null;
+    }
+
+    private void readTsv(Path file) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, charset(stream)),
+                    1 << 16)) {
+                String line = reader.readLine();
+                if (line == null) {
+                    return;
+                }
+                // leading empty cells keep the position of the named ones
+                int[] columns = columns(line.stripTrailing().split("\t"));
+                while ((line = reader.readLine()) != null) {
+                    if (line.endsWith("\r")) {
+                        line = line.substring(0, line.length() - 1);
+                    }
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    String[] cells = line.split("\t", -1);
+                    add(segment(cell(cells, columns[0])), segment(cell(cells, columns[1])));
+                }
+            }
+        }
+    }
+
+    /**
+     * Encoding from the byte order mark, which is skipped; UTF-8 without one
+     */
+    private static Charset charset(InputStream stream) throws IOException {
+        stream.mark(3);
+        int b0 = stream.read();
+        int b1 = stream.read();
+        if (b0 == 0xFF && b1 == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (b0 == 0xFE && b1 == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (b0 == 0xEF && b1 == 0xBB && stream.read() == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        stream.reset();
+        return StandardCharsets.UTF_8;
+    }
+
+    private void readExcel(String file) throws IOException, SAXException, ParserConfigurationException {
+        new ExcelStreamReader().read(file, new ExcelStreamReader.RowHandler() {
+
+            private int sheets;
+            private int[] columns;
+
+            @Override
+            public void startSheet(String name) {
+                sheets++;
+            }
+
+            @Override
+            public void row(int row, String[] cells) {
+                // only the first sheet holds the alignment
+                if (sheets > 1) {
+                    return;
+                }
+                if (columns == null) {
+                    columns = columns(cells);
+                    return;
+                }
+                if (cells.length > 0) {
+                    add(segment(cell(cells, columns[0])), segment(cell(cells, columns[1])));
+                }
+            }
+        });
+    }
+
+    private void readTmx(Path file) throws IOException, SAXException, ParserConfigurationException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        // TMX files usually declare the TMX DTD, so a DOCTYPE is accepted,
+        // but nothing outside the file is read and entity expansion is limited
+        factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+        factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+        InputStream stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+        if (file.toString().toLowerCase(Locale.ROOT).endsWith(".gz")) {
+            stream = new GZIPInputStream(stream, 1 << 16);
+        }
+        try (InputStream in = stream) {
+            factory.newSAXParser().parse(in, new TmxHandler());
+        }
+    }
+
+    /**
+     * Collects the segments of each unit. Inline codes become ph elements
+     * holding the original code, hi elements keep only their text. Languages
+     * match on their primary subtag, so "en" finds en-US variants.
+     */
+    private final class TmxHandler extends DefaultHandler {
+
+        private final List<String> langs = new ArrayList<>();
+        private final List<Element> segs = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private String lang;
+        private Element seg;
+        private Element code;
+        private int depth;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (seg != null) {
+                if (code != null) {
+                    depth++;
+                } else if (isCode(localName)) {
+                    flush(seg);
+                    code = new Element("ph");
+                }
+                return;
+            }
+            switch (localName) {
+                case "header":
+                    String header = attributes.getValue("srclang");
+                    if (srcLang == null && header != null && !"*all*".equals(header)) {
+                        srcLang = header;
+                    }
+                    break;
+                case "tu":
+                    langs.clear();
+                    segs.clear();
+                    break;
+                case "tuv":
+                    lang = attributes.getValue("xml:lang");
+                    if (lang == null) {
+                        // TMX 1.1 and older
+                        lang = attributes.getValue("lang");
+                    }
+                    break;
+                case "seg":
+                    seg = segment("");
+                    seg.setContent(new ArrayList<>());
+                    text.setLength(0);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (seg == null) {
+                if ("tu".equals(localName)) {
+                    endUnit();
+                }
+                return;
+            }
+            if (code != null) {
+                if (depth > 0) {
+                    depth--;
+                    return;
+                }
+                flush(code);
+                seg.addContent(code);
+                code = null;
+                return;
+            }
+            if ("seg".equals(localName)) {
+                flush(seg);
+                // a tuv without a language cannot be matched to a side
+                if (lang != null) {
+                    langs.add(lang);
+                    segs.add(seg);
+                }
+                seg = null;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (seg != null) {
+                text.append(ch, start, length);
+            }
+        }
+
+        private void flush(Element element) {
+            if (!text.isEmpty()) {
+                element.addContent(text.toString());
+                text.setLength(0);
+            }
+        }
+
+        private static boolean isCode(String name) {
+            return "bpt".equals(name) || "ept".equals(name) || "ph".equals(name) || "it".equals(name)
+                    || "ut".equals(name);
+        }
+
+        private void endUnit() {
+            if (segs.isEmpty()) {
+                return;
+            }
+            if (srcLang == null) {
+                srcLang = langs.get(0);
+            }
+            if (tgtLang == null) {
+                for (String candidate : langs) {
+                    if (!TranslationMemory.sameLanguage(candidate, srcLang)) {
+                        tgtLang = candidate;
+                        break;
+                    }
+                }
+                if (tgtLang == null) {
+                    return;
+                }
+            }
+            Element source = null;
+            Element target = null;
+            for (int i = 0; i < langs.size(); i++) {
+                if (source == null && TranslationMemory.sameLanguage(langs.get(i), srcLang)) {
+                    source = segs.get(i);
+                } else if (target == null && TranslationMemory.sameLanguage(langs.get(i), tgtLang)) {
+                    target = segs.get(i);
+                }
+            }
+            if (source != null || target != null) {
+                add(source != null ? source : segment(""), target != null ? target : segment(""));
+            }
+        }
+    }
+}
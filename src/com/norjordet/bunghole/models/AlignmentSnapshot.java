@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import com.maxprograms.languages.Language;
+import com.maxprograms.xml.Element;
+import com.norjordet.bunghole.Constants;
+
+/**
+ * Immutable view of an alignment at a point in time.
+ *
+ * Elements are shared with the live alignment, which never modifies an element
+ * after it has been placed in a segment list (edits replace the element
+ * instead), so taking a snapshot only copies the two lists of references.
+ * Segment quality data is a private copy of the writer's SegmentTable.
+ */
+public final class AlignmentSnapshot {
+
+    private static final byte[] INDENT = "\n    ".getBytes(StandardCharsets.UTF_8);
+
+    private final long version;
+    private final String file;
+    private final Language srcLang;
+    private final Language tgtLang;
+    private final List<Element> sources;
+    private final List<Element> targets;
+    private final SegmentTable segmentTable;
+
+    AlignmentSnapshot(long version, String file, Language srcLang, Language tgtLang, List<Element> sources,
+            List<Element> targets, SegmentTable segmentTable) {
+        this.version = version;
+        this.file = file;
+        this.srcLang = srcLang;
+        this.tgtLang = tgtLang;
+        this.sources = freeze(sources);
+        this.targets = freeze(targets);
+        this.segmentTable = segmentTable;
+    }
+
+    private static List<Element> freeze(List<Element> list) {
+        if (list instanceof LazySegmentList lazy) {
+            return lazy.frozenCopy();
+        }
+        return List.copyOf(list);
+    }
+
+    /**
+     * Number of the edit command that produced this state
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public Language getSrcLang() {
+        return srcLang;
+    }
+
+    public Language getTgtLang() {
+        return tgtLang;
+    }
+
+    public List<Element> getSources() {
+        return sources;
+    }
+
+    public List<Element> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Quality data of the segments; callers must not modify it
+     */
+    public SegmentTable getSegmentTable() {
+        return segmentTable;
+    }
+
+    /**
+     * Write the snapshot to its project file. Data goes to a temporary file in
+     * the same folder that replaces the project file with an atomic rename, so
+     * an interrupted save never leaves a truncated project behind.
+     */
+    public void save() throws IOException {
+        writeXml();
+        // Large projects also get a binary copy that reopens without parsing
+        Path xml = Path.of(file);
+        if (Files.size(xml) >= XmlSegmentStore.LAZY_THRESHOLD
+                || Files.exists(BinarySegmentStore.snapshotPath(file))) {
+            BinarySegmentStore.write(this);
+        }
+    }
+
+    private void writeXml() throws IOException {
+        Path target = Path.of(file).toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 65536)) {
+                write(out);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void write(OutputStream out) throws IOException {
+        out.write(("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<algnproject version=\"" + Constants.VERSION
+                + "\" build=\"" + Constants.BUILD + "\">").getBytes(StandardCharsets.UTF_8));
+        writeList(out, "sources", srcLang.getCode(), sources);
+        writeList(out, "targets", tgtLang.getCode(), targets);
+        out.write("\n</algnproject>\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeList(OutputStream out, String name, String lang, List<Element> list)
+            throws IOException {
+        out.write(("\n  <" + name + " xml:lang=\"" + lang + "\">").getBytes(StandardCharsets.UTF_8));
+        if (list instanceof LazySegmentList lazy) {
+            lazy.write(out, INDENT);
+        } else {
+            for (int i = 0; i < list.size(); i++) {
+                out.write(INDENT);
+                list.get(i).writeBytes(out, StandardCharsets.UTF_8);
+            }
+        }
+        out.write(("\n  </" + name + ">").getBytes(StandardCharsets.UTF_8));
+    }
+}
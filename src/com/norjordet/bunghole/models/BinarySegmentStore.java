@@ -0,0 +1,472 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.maxprograms.xml.Attribute;
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.TextNode;
+import com.maxprograms.xml.XMLNode;
+
+/**
+ * Binary copy of a project, kept next to the .algn file so large projects
+ * reopen without parsing XML.
+ *
+ * Each segment is stored as its text (the text nodes directly under the
+ * segment, UTF-8) plus a span table that says at which character offset each
+ * inline element goes and where its XML is. Segment elements themselves are
+ * kept once in a table of distinct start tags. Segments with comments or
+ * other unusual content are stored whole as XML. The segment table with
+ * confidences and flags is stored as well, so scores survive a reopen.
+ *
+ * Layout: header, text and tag data, index (offset arrays), segment table and
+ * a trailer pointing at the index. The file is read with positional reads for
+ * the same reason as XmlSegmentStore.
+ */
+public final class BinarySegmentStore implements SegmentStore {
+
+    public static final String EXTENSION = ".bin";
+
+    private static final long MAGIC = 0x414C474E42494E31L; // "ALGNBIN1"
+    private static final int FORMAT = 1;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final FileChannel channel;
+    private final String[] languages = new String[2];
+    private final int[] counts = new int[2];
+    private final long[][] textStarts = new long[2][];
+    private final int[][] heads = new int[2][];
+    private final int[][] spanStarts = new int[2][];
+    private final int[][] spanOffsets = new int[2][];
+    private final long[][] tagStarts = new long[2][];
+    private String[] headTags;
+    private SegmentTable segmentTable;
+
+    private BinarySegmentStore(FileChannel channel) {
+        this.channel = channel;
+        CLEANER.register(this, () -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        });
+    }
+
+    public static Path snapshotPath(String file) {
+        return Path.of(file + EXTENSION);
+    }
+
+    /**
+     * Open the snapshot of a project file, or return null when there is none
+     * or it is older than the XML
+     */
+    public static BinarySegmentStore open(Path xml) throws IOException {
+        Path bin = snapshotPath(xml.toString());
+        if (!Files.exists(bin) || Files.getLastModifiedTime(bin).compareTo(Files.getLastModifiedTime(xml)) < 0) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(bin, StandardOpenOption.READ);
+        try {
+            BinarySegmentStore store = new BinarySegmentStore(channel);
+            if (!store.readIndex(Files.size(xml))) {
+                channel.close();
+                return null;
+            }
+            return store;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private boolean readIndex(long xmlSize) throws IOException {
+        long size = channel.size();
+        if (size < 16) {
+            return false;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(16);
+        channel.read(trailer, size - 16);
+        trailer.flip();
+        long indexPosition = trailer.getLong();
+        if (trailer.getLong() != MAGIC || indexPosition < 0 || indexPosition > size - 16) {
+            return false;
+        }
+        try (DataInputStream header = stream(0)) {
+            if (header.readLong() != MAGIC || header.readInt() != FORMAT || header.readLong() != xmlSize) {
+                return false;
+            }
+            languages[SOURCES] = header.readUTF();
+            languages[TARGETS] = header.readUTF();
+        }
+        try (DataInputStream in = stream(indexPosition)) {
+            headTags = new String[in.readInt()];
+            for (int i = 0; i < headTags.length; i++) {
+                headTags[i] = in.readUTF();
+            }
+            for (int side = 0; side < 2; side++) {
+                int count = in.readInt();
+                counts[side] = count;
+                textStarts[side] = readLongs(in, count + 1);
+                heads[side] = readInts(in, count);
+                spanStarts[side] = readInts(in, count + 1);
+                int spans = spanStarts[side][count];
+                spanOffsets[side] = readInts(in, spans);
+                tagStarts[side] = readLongs(in, spans + 1);
+            }
+            segmentTable = SegmentTable.read(in);
+        }
+        return true;
+    }
+
+    private DataInputStream stream(long position) {
+        InputStream in = Channels.newInputStream(new PositionedChannel(channel, position));
+        return new DataInputStream(new BufferedInputStream(in, 65536));
+    }
+
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
+    private static long[] readLongs(DataInputStream in, int count) throws IOException {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    @Override
+    public String getLanguage(int side) {
+        return languages[side];
+    }
+
+    @Override
+    public int count(int side) {
+        return counts[side];
+    }
+
+    /**
+     * Scores and flags saved with the snapshot
+     */
+    public SegmentTable getSegmentTable() {
+        return segmentTable;
+    }
+
+    private byte[] read(long position, long end) throws IOException {
+        byte[] bytes = new byte[(int) (end - position)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of project snapshot");
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public Element load(int side, int record) throws IOException {
+        byte[] text = read(textStarts[side][record], textStarts[side][record + 1]);
+        int head = heads[side][record];
+        if (head < 0) {
+            return XmlSegmentStore.parse(text);
+        }
+        Element element = XmlSegmentStore.parse(headTags[head].getBytes(StandardCharsets.UTF_8));
+        String content = new String(text, StandardCharsets.UTF_8);
+        int first = spanStarts[side][record];
+        int last = spanStarts[side][record + 1];
+        long[] tags = tagStarts[side];
+        byte[] tagData = first < last ? read(tags[first], tags[last]) : null;
+        int done = 0;
+        for (int span = first; span < last; span++) {
+            int offset = spanOffsets[side][span];
+            if (offset > done) {
+                element.addContent(new TextNode(content.substring(done, offset)));
+                done = offset;
+            }
+            int from = (int) (tags[span] - tags[first]);
+            int to = (int) (tags[span + 1] - tags[first]);
+            element.addContent(XmlSegmentStore.parse(Arrays.copyOfRange(tagData, from, to)));
+        }
+        if (done < content.length()) {
+            element.addContent(new TextNode(content.substring(done)));
+        }
+        return element;
+    }
+
+    /**
+     * Write the snapshot of a project next to its XML file
+     */
+    public static void write(AlignmentSnapshot snapshot) throws IOException {
+        Path target = snapshotPath(snapshot.getFile()).toAbsolutePath();
+        long xmlSize = Files.size(Path.of(snapshot.getFile()));
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (CountingStream counter = new CountingStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 65536));
+                    DataOutputStream out = new DataOutputStream(counter)) {
+                new Writer(out, counter).write(snapshot, xmlSize);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static final class Writer {
+
+        private final DataOutputStream out;
+        private final CountingStream counter;
+        private final List<String> headTags = new ArrayList<>();
+        private final Map<String, Integer> headIndex = new HashMap<>();
+        private final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+
+        Writer(DataOutputStream out, CountingStream counter) {
+            this.out = out;
+            this.counter = counter;
+        }
+
+        private long position() {
+            return counter.count;
+        }
+
+        void write(AlignmentSnapshot snapshot, long xmlSize) throws IOException {
+            out.writeLong(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(xmlSize);
+            out.writeUTF(snapshot.getSrcLang().getCode());
+            out.writeUTF(snapshot.getTgtLang().getCode());
+            Side[] sides = { writeSide(snapshot.getSources()), writeSide(snapshot.getTargets()) };
+
+            long index = position();
+            out.writeInt(headTags.size());
+            for (String tag : headTags) {
+                out.writeUTF(tag);
+            }
+            for (Side side : sides) {
+                out.writeInt(side.count);
+                for (int i = 0; i <= side.count; i++) {
+                    out.writeLong(side.textStarts[i]);
+                }
+                for (int i = 0; i < side.count; i++) {
+                    out.writeInt(side.heads[i]);
+                }
+                for (int i = 0; i <= side.count; i++) {
+                    out.writeInt(side.spanStarts[i]);
+                }
+                int spans = side.spanStarts[side.count];
+                for (int i = 0; i < spans; i++) {
+                    out.writeInt(side.spanOffsets[i]);
+                }
+                for (int i = 0; i <= spans; i++) {
+                    out.writeLong(side.tagStarts[i]);
+                }
+            }
+            snapshot.getSegmentTable().write(out);
+            out.writeLong(index);
+            out.writeLong(MAGIC);
+        }
+
+        private Side writeSide(List<Element> list) throws IOException {
+            Side side = new Side(list.size());
+            // text of every segment first, then the inline tags
+            List<List<XMLNode>> tags = new ArrayList<>();
+            for (int i = 0; i < side.count; i++) {
+                side.textStarts[i] = position();
+                Element element = list.get(i);
+                List<XMLNode> content = element.getContent();
+                List<XMLNode> inline = new ArrayList<>();
+                if (isPlain(content)) {
+                    side.heads[i] = head(element);
+                    StringBuilder text = new StringBuilder();
+                    for (XMLNode node : content) {
+                        if (node.getNodeType() == XMLNode.TEXT_NODE) {
+                            text.append(((TextNode) node).getText());
+                        } else {
+                            side.addSpan(text.length());
+                            inline.add(node);
+                        }
+                    }
+                    out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+                } else {
+                    side.heads[i] = -1;
+                    writeNode(element);
+                }
+                tags.add(inline);
+                side.spanStarts[i + 1] = side.spans;
+            }
+            side.textStarts[side.count] = position();
+            int span = 0;
+            for (List<XMLNode> inline : tags) {
+                for (XMLNode node : inline) {
+                    side.tagStarts[span++] = position();
+                    writeNode(node);
+                }
+            }
+            side.tagStarts[span] = position();
+            return side;
+        }
+
+        /**
+         * Serialize a node in memory first; XMLNode writes many small pieces
+         */
+        private void writeNode(XMLNode node) throws IOException {
+            scratch.reset();
+            node.writeBytes(scratch, StandardCharsets.UTF_8);
+            scratch.writeTo(out);
+        }
+
+        private static boolean isPlain(List<XMLNode> content) {
+            for (XMLNode node : content) {
+                short type = node.getNodeType();
+                if (type != XMLNode.TEXT_NODE && type != XMLNode.ELEMENT_NODE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int head(Element element) throws IOException {
+            Element empty = new Element(element.getName());
+            for (Attribute attribute : element.getAttributes()) {
+                empty.setAttribute(attribute.getName(), attribute.getValue());
+            }
+            scratch.reset();
+            empty.writeBytes(scratch, StandardCharsets.UTF_8);
+            String tag = scratch.toString(StandardCharsets.UTF_8);
+            Integer index = headIndex.get(tag);
+            if (index == null) {
+                index = headTags.size();
+                headTags.add(tag);
+                headIndex.put(tag, index);
+            }
+            return index;
+        }
+    }
+
+    private static final class Side {
+        final int count;
+        final long[] textStarts;
+        final int[] heads;
+        final int[] spanStarts;
+        int[] spanOffsets = new int[1024];
+        long[] tagStarts = new long[1025];
+        int spans;
+
+        Side(int count) {
+            this.count = count;
+            textStarts = new long[count + 1];
+            heads = new int[count];
+            spanStarts = new int[count + 1];
+        }
+
+        void addSpan(int offset) {
+            if (spans == spanOffsets.length) {
+                spanOffsets = Arrays.copyOf(spanOffsets, spans * 2);
+                tagStarts = Arrays.copyOf(tagStarts, spans * 2 + 1);
+            }
+            spanOffsets[spans++] = offset;
+        }
+    }
+
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Sequential view of a channel from a given position, leaving the
+     * channel position untouched
+     */
+    private static final class PositionedChannel implements ReadableByteChannel {
+        private final FileChannel channel;
+        private long position;
+
+        PositionedChannel(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int read = channel.read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // the store owns the channel
+        }
+    }
+}
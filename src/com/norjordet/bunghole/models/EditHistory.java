@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.maxprograms.xml.Element;
+import com.norjordet.bunghole.models.Alignment.SegmentInfo;
+
+/**
+ * Bounded undo and redo history.
+ *
+ * Every recorded edit replaces a range of rows on one side, or the quality
+ * data of one row; the inverse puts the old values back, so undoing costs
+ * as much as the edit itself.
+ * Edits made by one command are grouped and undone together. A long running
+ * job such as an AI review can open a group that its commands join, so all
+ * of its edits are undone together too. Only the writer thread uses this
+ * class.
+ */
+final class EditHistory {
+
+    static final int LIMIT = 100;
+
+    /**
+     * One recorded edit and its inverse
+     */
+    sealed interface Edit permits Change, InfoChange {
+
+        Edit inverse();
+
+        /**
+         * First row the edit touches
+         */
+        int row();
+    }
+
+    /**
+     * Rows from "from" on that held "removed" now hold "inserted"
+     */
+    record Change(int side, int from, List<Element> removed, List<Element> inserted) implements Edit {
+
+        @Override
+        public Change inverse() {
+            return new Change(side, from, inserted, removed);
+        }
+
+        @Override
+        public int row() {
+            return from;
+        }
+    }
+
+    /**
+     * The quality data of a row changed from "before" to "after"; null for a
+     * row that was not scored
+     */
+    record InfoChange(int row, SegmentInfo before, SegmentInfo after) implements Edit {
+
+        @Override
+        public InfoChange inverse() {
+            return new InfoChange(row, after, before);
+        }
+    }
+
+    private final Deque<List<Edit>> undo = new ArrayDeque<>();
+    private final Deque<List<Edit>> redo = new ArrayDeque<>();
+    private List<Edit> pending = new ArrayList<>();
+    // open group of a long running job, null when there is none
+    private List<Edit> job;
+    private boolean joined;
+    // changes in the open group from before the running command joined it
+    private int joinedAt;
+    // whether the running command made edits that were not recorded
+    private boolean unrecorded;
+
+    void record(Edit edit) {
+        if (joined) {
+            job.add(edit);
+            return;
+        }
+        // other edits keep their order after what the job did so far
+        flushGroup();
+        pending.add(edit);
+    }
+
+    /**
+     * Whether changes to the quality data of rows are recorded. Only a job
+     * records them, so undoing it also restores the confidence and marks it
+     * set; commands that score all rows leave the history alone.
+     */
+    boolean recordsInfo() {
+        return joined;
+    }
+
+    /**
+     * Close the group of the command that just finished. A new edit makes
+     * the redo history obsolete.
+     */
+    void seal() {
+        joined = false;
+        unrecorded = false;
+        if (pending.isEmpty()) {
+            return;
+        }
+        push(pending);
+        pending = new ArrayList<>();
+    }
+
+    private void push(List<Edit> changes) {
+        undo.push(changes);
+        if (undo.size() > LIMIT) {
+            undo.removeLast();
+        }
+        redo.clear();
+    }
+
+    /**
+     * Start a group that the commands of a long running job join
+     */
+    void openGroup() {
+        seal();
+        job = new ArrayList<>();
+    }
+
+    /**
+     * Record the edits of the running command in the open group
+     */
+    void joinGroup() {
+        joined = job != null;
+        if (joined) {
+            joinedAt = job.size();
+        }
+    }
+
+    void closeGroup() {
+        joined = false;
+        flushGroup();
+        job = null;
+    }
+
+    /**
+     * Put the edits of the open group made so far on the undo stack
+     */
+    private void flushGroup() {
+        if (job != null && !job.isEmpty()) {
+            push(job);
+            job = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Forget everything, used after edits that are not recorded
+     */
+    void clear() {
+        undo.clear();
+        redo.clear();
+        pending = new ArrayList<>();
+        if (job != null) {
+            job = new ArrayList<>();
+            joinedAt = 0;
+        }
+        unrecorded = true;
+    }
+
+    /**
+     * Take back the changes of the running command, which failed; they are
+     * returned in the order they were made
+     */
+    List<Edit> rollback() {
+        List<Edit> changes;
+        if (joined) {
+            List<Edit> own = job.subList(joinedAt, job.size());
+            changes = new ArrayList<>(own);
+            own.clear();
+        } else {
+            changes = pending;
+            pending = new ArrayList<>();
+        }
+        joined = false;
+        return changes;
+    }
+
+    /**
+     * Whether the running command made edits that cannot be rolled back
+     * from the history
+     */
+    boolean unrecorded() {
+        return unrecorded;
+    }
+
+    /**
+     * Changes to revert, in the order they were made; null if there are none
+     */
+    List<Edit> undo() {
+        flushGroup();
+        List<Edit> group = undo.poll();
+        if (group != null) {
+            redo.push(group);
+        }
+        return group;
+    }
+
+    /**
+     * Changes to make again, in their original order; null if there are none
+     */
+    List<Edit> redo() {
+        flushGroup();
+        List<Edit> group = redo.poll();
+        if (group != null) {
+            undo.push(group);
+        }
+        return group;
+    }
+
+    boolean canUndo() {
+        return !undo.isEmpty() || job != null && !job.isEmpty();
+    }
+
+    boolean canRedo() {
+        return !redo.isEmpty();
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.json.JSONObject;
+import org.xml.sax.SAXException;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * One structural or text edit of a segment list, as sent in a batch to
+ * applyEdits. Each operation only touches a few neighbouring rows, so a batch
+ * can be applied to a small copy of the affected rows and written back once.
+ */
+public final class EditOperation {
+
+    enum Type {
+        SEGMENT_UP("segmentUp"),
+        SEGMENT_DOWN("segmentDown"),
+        MERGE_NEXT("mergeNext"),
+        SPLIT_SEGMENT("splitSegment"),
+        SAVE_DATA("saveData"),
+        REMOVE_SEGMENT("removeSegment"),
+        MOVE_TARGET_UP("moveTargetUp"),
+        MOVE_TARGET_DOWN("moveTargetDown");
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        static Type of(String name) {
+            for (Type type : values()) {
+                if (type.name.equals(name)) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    private final Type type;
+    private final int side;
+    private final int row;
+    private final String data;
+    private final String end;
+
+    /**
+     * Operation from the same fields the single-edit requests use, plus "op"
+     * with the request name
+     */
+    EditOperation(JSONObject json, String tgtLang) {
+        type = Type.of(json.getString("op"));
+        if (type == Type.MOVE_TARGET_UP || type == Type.MOVE_TARGET_DOWN) {
+            side = SegmentStore.TARGETS;
+            row = json.getInt("segmentId");
+        } else {
+            side = json.getString("lang").equals(tgtLang) ? SegmentStore.TARGETS : SegmentStore.SOURCES;
+            row = Integer.parseInt(json.get("id").toString());
+        }
+        switch (type) {
+            case SAVE_DATA:
+                data = json.getString("data");
+                end = null;
+                break;
+            case SPLIT_SEGMENT:
+                data = json.getString("start");
+                end = json.getString("end");
+                break;
+            default:
+                data = null;
+                end = null;
+        }
+    }
+
+    int getSide() {
+        return side;
+    }
+
+    /**
+     * First row read or written
+     */
+    int from() {
+        return type == Type.SEGMENT_UP || type == Type.MOVE_TARGET_UP ? row - 1 : row;
+    }
+
+    /**
+     * One past the last row read or written, before the operation
+     */
+    int to() {
+        switch (type) {
+            case SEGMENT_DOWN:
+            case MOVE_TARGET_DOWN:
+            case MERGE_NEXT:
+                return row + 2;
+            case SEGMENT_UP:
+            case MOVE_TARGET_UP:
+            default:
+                return row + 1;
+        }
+    }
+
+    /**
+     * Change in the number of rows
+     */
+    int delta() {
+        switch (type) {
+            case MERGE_NEXT:
+            case REMOVE_SEGMENT:
+                return -1;
+            case SPLIT_SEGMENT:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Apply to a list holding the rows from offset on
+     */
+    void apply(List<Element> rows, int offset) throws SAXException, IOException, ParserConfigurationException {
+        int i = row - offset;
+        switch (type) {
+            case SEGMENT_UP:
+            case MOVE_TARGET_UP:
+                swap(rows, i - 1, i);
+                break;
+            case SEGMENT_DOWN:
+            case MOVE_TARGET_DOWN:
+                swap(rows, i, i + 1);
+                break;
+            case MERGE_NEXT:
+                rows.set(i, Alignment.merged(rows.get(i), rows.get(i + 1)));
+                rows.remove(i + 1);
+                break;
+            case SPLIT_SEGMENT:
+                rows.set(i, Alignment.edited(rows.get(i), data));
+                rows.add(i + 1, Alignment.created(end));
+                break;
+            case SAVE_DATA:
+                rows.set(i, Alignment.edited(rows.get(i), data));
+                break;
+            case REMOVE_SEGMENT:
+                rows.remove(i);
+                break;
+        }
+    }
+
+    private static void swap(List<Element> rows, int a, int b) {
+        Element temp = rows.get(a);
+        rows.set(a, rows.get(b));
+        rows.set(b, temp);
+    }
+
+    @Override
+    public String toString() {
+        return type.name + " " + row;
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Single-writer queue for alignment changes.
+ *
+ * Commands run one at a time on a dedicated thread. When a command finishes the
+ * alignment publishes a new immutable snapshot, so readers (rows, statistics,
+ * exports) work without locks and never observe a partially applied edit. A
+ * command that fails is rolled back instead. A command submitted from inside
+ * another one runs as part of it.
+ */
+public class EditQueue {
+
+    public interface Command<T> {
+        T apply(Alignment alignment) throws IOException, SAXException, ParserConfigurationException;
+    }
+
+    private final ExecutorService writer;
+    private volatile Thread writerThread;
+
+    public EditQueue() {
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "bunghole-writer");
+            thread.setDaemon(true);
+            writerThread = thread;
+            return thread;
+        });
+    }
+
+    /**
+     * Run a command against an alignment on the writer thread and wait for it
+     */
+    public <T> T submit(Alignment alignment, Command<T> command)
+            throws IOException, SAXException, ParserConfigurationException {
+        if (Thread.currentThread() == writerThread) {
+            // published with the command that is running
+            return command.apply(alignment);
+        }
+        Future<T> future = writer.submit(() -> run(alignment, command));
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof SAXException sax) {
+                throw sax;
+            }
+            if (cause instanceof ParserConfigurationException pce) {
+                throw pce;
+            }
+            if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static <T> T run(Alignment alignment, Command<T> command)
+            throws IOException, SAXException, ParserConfigurationException {
+        T result;
+        try {
+            result = command.apply(alignment);
+        } catch (Throwable e) {
+            alignment.rollback();
+            throw e;
+        }
+        alignment.publish();
+        return result;
+    }
+}
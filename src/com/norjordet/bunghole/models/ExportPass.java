@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.maxprograms.xml.Element;
+import com.norjordet.bunghole.excel.ExcelStreamWriter;
+
+/**
+ * Exports one snapshot to TMX, TSV and Excel in a single pass.
+ *
+ * Rows are converted in parallel chunks, each segment once, and every chunk is
+ * handed in order to one writer thread per format. A writer may only fall a
+ * few chunks behind, so memory stays bounded by the chunks in flight.
+ */
+final class ExportPass {
+
+    private static final int CHUNK = 4096;
+    private static final int WINDOW = 4;
+
+    /**
+     * Converted rows from "from" on; arrays are null for unused formats
+     */
+    private record Chunk(int from, String[] tmxSources, String[] tmxTargets, String[] sources, String[] targets) {
+    }
+
+    private interface Sink extends AutoCloseable {
+        void accept(Chunk chunk) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private final AlignmentSnapshot view;
+    private final int rows;
+    private final boolean tmx;
+    private final boolean text;
+
+    private ExportPass(AlignmentSnapshot view, boolean tmx, boolean text) {
+        this.view = view;
+        this.rows = Math.min(view.getSources().size(), view.getTargets().size());
+        this.tmx = tmx;
+        this.text = text;
+    }
+
+    /**
+     * Write the files that are not null and return the number of rows
+     * exported
+     */
+    static int run(AlignmentSnapshot view, String tmxFile, String tsvFile, String excelFile) throws IOException {
+        ExportPass pass = new ExportPass(view, tmxFile != null, tsvFile != null || excelFile != null);
+        String srcLang = view.getSrcLang().getCode();
+        String tgtLang = view.getTgtLang().getCode();
+        List<Sink> sinks = new ArrayList<>();
+        try {
+            if (tmxFile != null) {
+                sinks.add(pass.tmxSink(Path.of(tmxFile), srcLang, tgtLang));
+            }
+            if (tsvFile != null) {
+                sinks.add(pass.tsvSink(Path.of(tsvFile), srcLang, tgtLang));
+            }
+            if (excelFile != null) {
+                sinks.add(pass.excelSink(excelFile, srcLang, tgtLang));
+            }
+        } catch (IOException e) {
+            for (Sink sink : sinks) {
+                sink.close();
+            }
+            throw e;
+        }
+        if (!sinks.isEmpty()) {
+            pass.run(sinks);
+        }
+        return pass.rows;
+    }
+
+    private void run(List<Sink> sinks) throws IOException {
+        int chunks = (rows + CHUNK - 1) / CHUNK;
+        List<BlockingQueue<Future<Chunk>>> queues = new ArrayList<>();
+        List<Future<?>> writers = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(sinks.size())) {
+            for (Sink sink : sinks) {
+                BlockingQueue<Future<Chunk>> queue = new ArrayBlockingQueue<>(WINDOW);
+                queues.add(queue);
+                writers.add(executor.submit(() -> {
+                    // keep draining after a failure so the producer is never blocked
+                    Exception failure = null;
+                    try (sink) {
+                        for (int i = 0; i < chunks; i++) {
+                            Future<Chunk> chunk = queue.take();
+                            if (failure == null) {
+                                try {
+                                    sink.accept(chunk.get());
+                                } catch (IOException | ExecutionException e) {
+                                    failure = e;
+                                }
+                            }
+                        }
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < chunks; i++) {
+                int from = i * CHUNK;
+                CompletableFuture<Chunk> chunk = CompletableFuture.supplyAsync(() -> convert(from));
+                for (BlockingQueue<Future<Chunk>> queue : queues) {
+                    queue.put(chunk);
+                }
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof ExecutionException nested ? nested.getCause() : e.getCause();
+            if (cause instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Chunk convert(int from) {
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        int count = Math.min(CHUNK, rows - from);
+        String[] tmxSources = tmx ? new String[count] : null;
+        String[] tmxTargets = tmx ? new String[count] : null;
+        String[] sourceTexts = text ? new String[count] : null;
+        String[] targetTexts = text ? new String[count] : null;
+        for (int i = 0; i < count; i++) {
+            Element source = sources.get(from + i);
+            Element target = targets.get(from + i);
+            if (tmx) {
+                tmxSources[i] = TmxWriter.segContent(source);
+                tmxTargets[i] = TmxWriter.segContent(target);
+            }
+            if (text) {
+                sourceTexts[i] = Alignment.getPureText(source).replace('\t', ' ');
+                targetTexts[i] = Alignment.getPureText(target).replace('\t', ' ');
+            }
+        }
+        return new Chunk(from, tmxSources, tmxTargets, sourceTexts, targetTexts);
+    }
+
+    private Sink tmxSink(Path file, String srcLang, String tgtLang) throws IOException {
+        TmxWriter writer = new TmxWriter(TmxWriter.open(file, file.toString().endsWith(".gz")), srcLang, tgtLang);
+        return new Sink() {
+            @Override
+            public void accept(Chunk chunk) throws IOException {
+                for (int i = 0; i < chunk.tmxSources().length; i++) {
+                    writer.writeUnit(chunk.tmxSources()[i], chunk.tmxTargets()[i]);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Same layout as exportCSV: UTF-16LE with a byte order mark, languages
+     * on the first line
+     */
+    private Sink tsvSink(Path file, String srcLang, String tgtLang) throws IOException {
+        OutputStream stream = Files.newOutputStream(file);
+        stream.write(new byte[] { -1, -2 });
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_16LE), 1 << 16);
+        writer.write(srcLang + '\t' + tgtLang + '\n');
+        return new Sink() {
+            @Override
+            public void accept(Chunk chunk) throws IOException {
+                for (int i = 0; i < chunk.sources().length; i++) {
+                    writer.write(chunk.sources()[i].replace('\n', ' ').strip());
+                    writer.write('\t');
+                    writer.write(chunk.targets()[i].replace('\n', ' ').strip());
+                    writer.write('\n');
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    private Sink excelSink(String file, String srcLang, String tgtLang) throws IOException {
+        ExcelStreamWriter writer = new ExcelStreamWriter(file, "Sheet1");
+        writer.addRow(srcLang, tgtLang);
+        return new Sink() {
+            @Override
+            public void accept(Chunk chunk) throws IOException {
+                for (int i = 0; i < chunk.sources().length; i++) {
+                    writer.addRow(chunk.sources()[i], chunk.targets()[i]);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+}
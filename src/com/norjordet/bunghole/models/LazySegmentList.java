@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * List of segments backed by a SegmentStore.
+ *
+ * Each position holds either the number of an unchanged record in the store
+ * or an element that replaced it. Unchanged records are loaded from the store
+ * when requested, so only edited segments stay in memory.
+ */
+final class LazySegmentList extends AbstractList<Element> implements RandomAccess {
+
+    private final SegmentStore store;
+    private final int side;
+    private final boolean readOnly;
+    private int[] records;
+    private Element[] elements;
+    private int size;
+
+    LazySegmentList(SegmentStore store, int side) {
+        this.store = store;
+        this.side = side;
+        this.readOnly = false;
+        size = store.count(side);
+        records = new int[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = i;
+        }
+        elements = new Element[size];
+    }
+
+    private LazySegmentList(LazySegmentList other, boolean readOnly) {
+        this.store = other.store;
+        this.side = other.side;
+        this.readOnly = readOnly;
+        size = other.size;
+        records = Arrays.copyOf(other.records, size);
+        elements = Arrays.copyOf(other.elements, size);
+    }
+
+    /**
+     * Unmodifiable copy of the current contents
+     */
+    LazySegmentList frozenCopy() {
+        return new LazySegmentList(this, true);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Element get(int index) {
+        Objects.checkIndex(index, size);
+        Element element = elements[index];
+        if (element != null) {
+            return element;
+        }
+        try {
+            return store.load(side, records[index]);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Element set(int index, Element element) {
+        checkWritable();
+        Element old = get(index);
+        elements[index] = element;
+        records[index] = -1;
+        return old;
+    }
+
+    @Override
+    public void add(int index, Element element) {
+        checkWritable();
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        if (size == records.length) {
+            int capacity = Math.max(16, size + (size >> 1));
+            records = Arrays.copyOf(records, capacity);
+            elements = Arrays.copyOf(elements, capacity);
+        }
+        System.arraycopy(records, index, records, index + 1, size - index);
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        records[index] = -1;
+        elements[index] = element;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Element remove(int index) {
+        checkWritable();
+        Element old = get(index);
+        System.arraycopy(records, index + 1, records, index, size - index - 1);
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        size--;
+        elements[size] = null;
+        modCount++;
+        return old;
+    }
+
+    /**
+     * Drop the given positions in a single pass
+     */
+    void removeRows(BitSet removed) {
+        checkWritable();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (!removed.get(i)) {
+                records[kept] = records[i];
+                elements[kept] = elements[i];
+                kept++;
+            }
+        }
+        Arrays.fill(elements, kept, size, null);
+        size = kept;
+        modCount++;
+    }
+
+    /**
+     * Replace positions from..to (exclusive) with the given elements, moving
+     * the rest of the list once
+     */
+    void replaceRange(int from, int to, List<Element> replacement) {
+        checkWritable();
+        Objects.checkFromToIndex(from, to, size);
+        int newSize = size - (to - from) + replacement.size();
+        if (newSize > records.length) {
+            int capacity = Math.max(newSize, size + (size >> 1));
+            records = Arrays.copyOf(records, capacity);
+            elements = Arrays.copyOf(elements, capacity);
+        }
+        int tail = size - to;
+        int start = from + replacement.size();
+        System.arraycopy(records, to, records, start, tail);
+        System.arraycopy(elements, to, elements, start, tail);
+        for (int i = 0; i < replacement.size(); i++) {
+            records[from + i] = -1;
+            elements[from + i] = replacement.get(i);
+        }
+        if (newSize < size) {
+            Arrays.fill(elements, newSize, size, null);
+        }
+        size = newSize;
+        modCount++;
+    }
+
+    /**
+     * Store record at a position, or -1 when the position holds an edited
+     * element
+     */
+    int recordAt(int index) {
+        Objects.checkIndex(index, size);
+        return elements[index] == null ? records[index] : -1;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Write all segments, copying runs of unchanged records straight from the
+     * store
+     */
+    void write(OutputStream out, byte[] separator) throws IOException {
+        int i = 0;
+        while (i < size) {
+            if (elements[i] != null) {
+                out.write(separator);
+                elements[i].writeBytes(out, StandardCharsets.UTF_8);
+                i++;
+                continue;
+            }
+            int j = i + 1;
+            while (j < size && elements[j] == null && records[j] == records[j - 1] + 1) {
+                j++;
+            }
+            store.write(side, records[i], records[i] + (j - i), separator, out);
+            i = j;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Groups segment pairs whose normalized text is nearly the same.
+ *
+ * Each pair is reduced to a MinHash signature over character shingles of its
+ * source and target text. Signatures are split into bands and pairs that share
+ * a band bucket become candidates (locality sensitive hashing); candidates are
+ * kept when the share of equal signature values reaches the threshold, which
+ * estimates the Jaccard similarity of their shingle sets.
+ */
+public final class NearDuplicates {
+
+    private static final int SHINGLE = 4;
+    private static final int BANDS = 16;
+    private static final int ROWS = 4;
+    private static final int HASHES = BANDS * ROWS;
+
+    private NearDuplicates() {
+        // static helpers only
+    }
+
+    /**
+     * 64-bit fingerprint of a string (FNV-1a with a final avalanche step)
+     */
+    public static long fingerprint(CharSequence text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        long z = value;
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * Lower case, compatibility-normalized text with punctuation removed and
+     * white space collapsed
+     */
+    static String normalize(String text) {
+        String normal = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder result = new StringBuilder(normal.length());
+        boolean space = true;
+        for (int i = 0; i < normal.length(); i++) {
+            char c = normal.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                result.append(c);
+                space = false;
+            } else if (!space) {
+                result.append(' ');
+                space = true;
+            }
+        }
+        int length = result.length();
+        if (length > 0 && result.charAt(length - 1) == ' ') {
+            result.setLength(length - 1);
+        }
+        return result.toString();
+    }
+
+    private static int[] signature(String text) {
+        int[] signature = new int[HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int last = Math.max(1, text.length() - SHINGLE + 1);
+        for (int start = 0; start < last; start++) {
+            long hash = fingerprint(text.substring(start, Math.min(text.length(), start + SHINGLE)));
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int value = h1 + i * h2;
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Clusters of near-duplicate rows, each sorted with the first occurrence
+     * first. Every row of a cluster is near its first row, so a chain of
+     * near duplicates never joins rows that are far apart. Rows without a
+     * near duplicate are not reported.
+     */
+    public static List<int[]> find(List<Element> sources, List<Element> targets, double threshold) {
+        int rows = Math.min(sources.size(), targets.size());
+        int[][] signatures = new int[rows][];
+        for (int row = 0; row < rows; row++) {
+            String text = normalize(Alignment.getPureText(sources.get(row))) + " \t "
+                    + normalize(Alignment.getPureText(targets.get(row)));
+            signatures[row] = signature(text);
+        }
+
+        int[] parent = new int[rows];
+        int[] size = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            parent[row] = row;
+            size[row] = 1;
+        }
+        for (int band = 0; band < BANDS; band++) {
+            Map<Long, Integer> buckets = new HashMap<>();
+            for (int row = 0; row < rows; row++) {
+                long key = band;
+                for (int r = 0; r < ROWS; r++) {
+                    key = key * 0x9E3779B97F4A7C15L + signatures[row][band * ROWS + r];
+                }
+                Integer first = buckets.putIfAbsent(key, row);
+                if (first != null) {
+                    join(parent, size, signatures, first, row, threshold);
+                }
+            }
+        }
+
+        // rows are visited in order and roots are the lowest row of each cluster
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (int row = 0; row < rows; row++) {
+            groups.computeIfAbsent(find(parent, row), k -> new ArrayList<>()).add(row);
+        }
+        List<int[]> clusters = new ArrayList<>();
+        for (List<Integer> members : groups.values()) {
+            if (members.size() > 1) {
+                clusters.add(members.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+        clusters.sort((a, b) -> Integer.compare(a[0], b[0]));
+        return clusters;
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < HASHES; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return same / (double) HASHES;
+    }
+
+    private static int find(int[] parent, int row) {
+        int root = row;
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+        while (parent[row] != root) {
+            int next = parent[row];
+            parent[row] = root;
+            row = next;
+        }
+        return root;
+    }
+
+    /**
+     * Put a row that is still alone into the cluster of the other row, when
+     * it comes after that cluster's first row and is near it. Clusters are
+     * never merged with each other.
+     */
+    private static void join(int[] parent, int[] size, int[][] signatures, int a, int b, double threshold) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        int single;
+        int root;
+        if (size[rootB] == 1 && rootA < rootB) {
+            single = rootB;
+            root = rootA;
+        } else if (size[rootA] == 1 && rootB < rootA) {
+            single = rootA;
+            root = rootB;
+        } else {
+            return;
+        }
+        if (similarity(signatures[root], signatures[single]) >= threshold) {
+            parent[single] = root;
+            size[root]++;
+        }
+    }
+}
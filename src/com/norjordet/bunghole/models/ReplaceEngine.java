@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.TextNode;
+import com.maxprograms.xml.XMLNode;
+
+/**
+ * Search and replace over the text of segments.
+ *
+ * The pattern is compiled once per request and each engine is used by a single
+ * request, so nothing is shared between callers. Segments are processed in
+ * parallel chunks; the engine only computes replacements, applying them is up
+ * to the caller.
+ */
+public final class ReplaceEngine {
+
+    private static final int CHUNK = 2048;
+
+    private final String search;
+    private final String replacement;
+    private final Pattern pattern;
+
+    /**
+     * A segment that would change, with the number of matches replaced
+     */
+    public record Change(int row, Element before, Element after, int matches) {
+    }
+
+    public ReplaceEngine(String search, String replacement, boolean regExp) {
+        if (search.isEmpty()) {
+            throw new IllegalArgumentException("Empty search text");
+        }
+        this.search = search;
+        this.replacement = replacement;
+        this.pattern = regExp ? Pattern.compile(search) : null;
+    }
+
+    /**
+     * Text with every match replaced; matches are added to count[0]
+     */
+    String replace(String text, int[] count) {
+        if (pattern != null) {
+            Matcher matcher = pattern.matcher(text);
+            if (!matcher.find()) {
+                return text;
+            }
+            StringBuilder result = new StringBuilder(text.length() + 16);
+            do {
+                matcher.appendReplacement(result, replacement);
+                count[0]++;
+            } while (matcher.find());
+            matcher.appendTail(result);
+            return result.toString();
+        }
+        int start = text.indexOf(search);
+        if (start == -1) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length() + 16);
+        int last = 0;
+        while (start != -1) {
+            result.append(text, last, start).append(replacement);
+            count[0]++;
+            last = start + search.length();
+            start = text.indexOf(search, last);
+        }
+        result.append(text, last, text.length());
+        return result.toString();
+    }
+
+    /**
+     * Replacement for one segment, or null if nothing matches. Text and the
+     * content of g elements are replaced; other inline elements are kept.
+     */
+    Change replace(int row, Element element) {
+        if (pattern == null && !Alignment.getPureText(element).contains(search)) {
+            return null;
+        }
+        int[] count = new int[1];
+        List<XMLNode> content = element.getContent();
+        List<XMLNode> newContent = new ArrayList<>(content.size());
+        for (XMLNode node : content) {
+            if (node.getNodeType() == XMLNode.TEXT_NODE) {
+                String text = ((TextNode) node).getText();
+                String replaced = replace(text, count);
+                newContent.add(replaced != text ? new TextNode(replaced) : node);
+            } else if (node.getNodeType() == XMLNode.ELEMENT_NODE && "g".equals(((Element) node).getName())) {
+                Element g = (Element) node;
+                String text = g.getText();
+                String replaced = replace(text, count);
+                if (replaced != text) {
+                    g = Alignment.copyOf(g);
+                    g.setText(replaced);
+                }
+                newContent.add(g);
+            } else {
+                newContent.add(node);
+            }
+        }
+        if (count[0] == 0) {
+            return null;
+        }
+        // unchanged children are shared; segments are never modified in place
+        Element copy = new Element(element.getName());
+        copy.setAttributes(element.getAttributes());
+        copy.setContent(newContent);
+        return new Change(row, element, copy, count[0]);
+    }
+
+    /**
+     * Changes for the given rows of a list (all rows when rows is null), in
+     * row order
+     */
+    public List<Change> run(List<Element> list, int[] rows) {
+        int count = rows != null ? rows.length : list.size();
+        int chunks = (count + CHUNK - 1) / CHUNK;
+        List<List<Change>> parts = IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+            List<Change> part = new ArrayList<>();
+            int end = Math.min(count, (chunk + 1) * CHUNK);
+            for (int i = chunk * CHUNK; i < end; i++) {
+                int row = rows != null ? rows[i] : i;
+                Change change = replace(row, list.get(row));
+                if (change != null) {
+                    part.add(change);
+                }
+            }
+            return part;
+        }).toList();
+        List<Change> changes = new ArrayList<>();
+        for (List<Change> part : parts) {
+            changes.addAll(part);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+import org.json.JSONObject;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Selection of rows for a filtered view.
+ *
+ * Recognized keys: "minConfidence" (inclusive), "maxConfidence" (exclusive),
+ * "uncertain", "manual", "aiReviewed" (true or false, omitted means any),
+ * "method" and "text" (case-insensitive, matched against source or target).
+ * Rows that were never scored only match filters without a confidence band.
+ */
+public final class RowFilter {
+
+    private final double minConfidence;
+    private final double maxConfidence;
+    private final Boolean uncertain;
+    private final Boolean manual;
+    private final Boolean aiReviewed;
+    private final String method;
+    private final String text;
+    private final String key;
+
+    public RowFilter(JSONObject json) {
+        minConfidence = json.optDouble("minConfidence", Double.NEGATIVE_INFINITY);
+        maxConfidence = json.optDouble("maxConfidence", Double.POSITIVE_INFINITY);
+        uncertain = flag(json, "uncertain");
+        manual = flag(json, "manual");
+        aiReviewed = flag(json, "aiReviewed");
+        method = json.has("method") ? json.getString("method") : null;
+        String search = json.optString("text", "");
+        text = search.isEmpty() ? null : search.toLowerCase(Locale.ROOT);
+        key = minConfidence + "|" + maxConfidence + "|" + uncertain + "|" + manual + "|" + aiReviewed + "|"
+                + method + "|" + text;
+    }
+
+    private static Boolean flag(JSONObject json, String name) {
+        return json.has(name) && !json.isNull(name) ? json.getBoolean(name) : null;
+    }
+
+    /**
+     * Canonical form of the filter, equal for filters that select the same rows
+     */
+    public String getKey() {
+        return key;
+    }
+
+    private boolean hasBand() {
+        return minConfidence != Double.NEGATIVE_INFINITY || maxConfidence != Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Ids of the matching rows of a snapshot, in order
+     */
+    public int[] select(AlignmentSnapshot view) {
+        List<Element> sources = view.getSources();
+        List<Element> targets = view.getTargets();
+        SegmentTable table = view.getSegmentTable();
+        int rows = Math.max(sources.size(), targets.size());
+
+        // Start from the smallest bitset the filter requires, so selective
+        // filters only visit the rows that can match
+        BitSet candidates = null;
+        if (Boolean.TRUE.equals(uncertain)) {
+            candidates = restrict(candidates, table.uncertainRows());
+        }
+        if (Boolean.TRUE.equals(manual)) {
+            candidates = restrict(candidates, table.manualRows());
+        }
+        if (Boolean.TRUE.equals(aiReviewed)) {
+            candidates = restrict(candidates, table.aiReviewedRows());
+        }
+        if (hasBand() || method != null) {
+            candidates = restrict(candidates, table.scoredRows());
+        }
+        int methodId = method != null ? table.methodId(method) : 0;
+        if (methodId < 0) {
+            return new int[0];
+        }
+
+        int[] result = new int[candidates != null ? Math.min(rows, candidates.cardinality()) : rows];
+        int found = 0;
+        int id = candidates != null ? candidates.nextSetBit(0) : 0;
+        while (id >= 0 && id < rows) {
+            if (matches(table, sources, targets, id, methodId)) {
+                result[found++] = id;
+            }
+            id = candidates != null ? candidates.nextSetBit(id + 1) : id + 1;
+        }
+        return found == result.length ? result : Arrays.copyOf(result, found);
+    }
+
+    private static BitSet restrict(BitSet candidates, BitSet rows) {
+        if (candidates == null) {
+            return (BitSet) rows.clone();
+        }
+        candidates.and(rows);
+        return candidates;
+    }
+
+    private boolean matches(SegmentTable table, List<Element> sources, List<Element> targets, int id,
+            int methodId) {
+        if (uncertain != null && table.isUncertain(id) != uncertain) {
+            return false;
+        }
+        if (manual != null && table.isManual(id) != manual) {
+            return false;
+        }
+        if (aiReviewed != null && table.isAIReviewed(id) != aiReviewed) {
+            return false;
+        }
+        if (hasBand()) {
+            double confidence = table.getConfidence(id);
+            if (confidence < minConfidence || confidence >= maxConfidence) {
+                return false;
+            }
+        }
+        if (method != null && table.methodAt(id) != methodId) {
+            return false;
+        }
+        if (text != null) {
+            return contains(sources, id) || contains(targets, id);
+        }
+        return true;
+    }
+
+    private boolean contains(List<Element> list, int id) {
+        return id < list.size() && Alignment.getPureText(list.get(id)).toLowerCase(Locale.ROOT).contains(text);
+    }
+}
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Trigram index over the plain text of sources and targets.
+ *
+ * Every indexed segment gets a document number that never changes; posting
+ * lists hold document numbers in ascending order and a separate table maps
+ * documents to their current row. When the alignment changes the index
+ * compares the new segment lists with the ones it indexed: segments are never
+ * modified in place, so an unchanged segment is the same element (or the same
+ * store record) and keeps its document even if it moved. Only new segments
+ * are indexed.
+ *
+ * Lookups are case-insensitive and return candidates; callers confirm each
+ * match against the segment text.
+ */
+final class SearchIndex {
+
+    private final Side[] sides = { new Side(), new Side() };
+    private long version = -1;
+
+    /**
+     * Rows of one side whose text may contain the literal, in ascending
+     * order; null when the literal is too short to use the index
+     */
+    synchronized int[] candidates(AlignmentSnapshot view, int side, String literal) {
+        String text = literal.toLowerCase(Locale.ROOT);
+        if (text.length() < 3) {
+            return null;
+        }
+        update(view);
+        return sides[side].candidates(text);
+    }
+
+    private void update(AlignmentSnapshot view) {
+        if (view.getVersion() == version) {
+            return;
+        }
+        sides[SegmentStore.SOURCES].update(view.getSources());
+        sides[SegmentStore.TARGETS].update(view.getTargets());
+        version = view.getVersion();
+    }
+
+    private static final class Side {
+
+        private List<Element> indexed;
+        private TrigramMap postings = new TrigramMap();
+        private IntList docRow = new IntList();
+        private int[] rowDoc = new int[0];
+        private int deleted;
+
+        void update(List<Element> list) {
+            if (indexed == null || deleted > rowDoc.length) {
+                rebuild(list);
+                return;
+            }
+            int oldSize = indexed.size();
+            int newSize = list.size();
+            int common = Math.min(oldSize, newSize);
+            int prefix = 0;
+            while (prefix < common && same(indexed, prefix, list, prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < common - prefix && same(indexed, oldSize - 1 - suffix, list, newSize - 1 - suffix)) {
+                suffix++;
+            }
+
+            // segments in between may have moved rather than changed
+            Map<Element, Integer> movedElements = new IdentityHashMap<>();
+            Map<Integer, Integer> movedRecords = new HashMap<>();
+            for (int row = prefix; row < oldSize - suffix; row++) {
+                int record = recordAt(indexed, row);
+                if (record >= 0) {
+                    movedRecords.put(record, rowDoc[row]);
+                } else {
+                    movedElements.put(indexed.get(row), rowDoc[row]);
+                }
+                docRow.set(rowDoc[row], -1);
+            }
+            int[] rows = Arrays.copyOf(rowDoc, newSize);
+            System.arraycopy(rowDoc, oldSize - suffix, rows, newSize - suffix, suffix);
+            int reused = 0;
+            for (int row = prefix; row < newSize - suffix; row++) {
+                int record = recordAt(list, row);
+                Integer doc = record >= 0 ? movedRecords.remove(record) : movedElements.remove(list.get(row));
+                if (doc != null) {
+                    reused++;
+                    rows[row] = doc;
+                } else {
+                    rows[row] = add(list.get(row));
+                }
+            }
+            deleted += (oldSize - suffix - prefix) - reused;
+            for (int row = prefix; row < newSize; row++) {
+                docRow.set(rows[row], row);
+            }
+            rowDoc = rows;
+            indexed = list;
+        }
+
+        private void rebuild(List<Element> list) {
+            postings = new TrigramMap();
+            docRow = new IntList();
+            deleted = 0;
+            rowDoc = new int[list.size()];
+            for (int row = 0; row < rowDoc.length; row++) {
+                rowDoc[row] = add(list.get(row));
+                docRow.set(rowDoc[row], row);
+            }
+            indexed = list;
+        }
+
+        private static int recordAt(List<Element> list, int row) {
+            return list instanceof LazySegmentList lazy ? lazy.recordAt(row) : -1;
+        }
+
+        private static boolean same(List<Element> a, int i, List<Element> b, int j) {
+            int record = recordAt(a, i);
+            if (record >= 0) {
+                return record == recordAt(b, j);
+            }
+            return recordAt(b, j) < 0 && a.get(i) == b.get(j);
+        }
+
+        private int add(Element element) {
+            int doc = docRow.size();
+            docRow.add(-1);
+            for (long trigram : trigrams(Alignment.getPureText(element).toLowerCase(Locale.ROOT))) {
+                postings.add(trigram, doc);
+            }
+            return doc;
+        }
+
+        int[] candidates(String text) {
+            long[] keys = trigrams(text);
+            IntList[] lists = new IntList[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                lists[i] = postings.get(keys[i]);
+                if (lists[i] == null) {
+                    return new int[0];
+                }
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+            int[] docs = lists[0].toArray();
+            int count = docs.length;
+            for (int i = 1; i < lists.length && count > 0; i++) {
+                count = intersect(docs, count, lists[i]);
+            }
+            int[] rows = new int[count];
+            int found = 0;
+            for (int i = 0; i < count; i++) {
+                int row = docRow.get(docs[i]);
+                if (row >= 0) {
+                    rows[found++] = row;
+                }
+            }
+            rows = Arrays.copyOf(rows, found);
+            Arrays.sort(rows);
+            return rows;
+        }
+
+        /**
+         * Keep the first count documents that also appear in the list
+         */
+        private static int intersect(int[] docs, int count, IntList list) {
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                int doc = docs[i];
+                while (j < list.size() && list.get(j) < doc) {
+                    j++;
+                }
+                if (j < list.size() && list.get(j) == doc) {
+                    docs[kept++] = doc;
+                }
+            }
+            return kept;
+        }
+    }
+
+    /**
+     * Distinct trigrams of a text, three UTF-16 units packed in a long
+     */
+    static long[] trigrams(String text) {
+        if (text.length() < 3) {
+            return new long[0];
+        }
+        long[] keys = new long[text.length() - 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        Arrays.sort(keys);
+        int distinct = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[distinct++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    /**
+     * Open addressing map from trigram to posting list
+     */
+    private static final class TrigramMap {
+        private long[] keys = new long[1024];
+        private IntList[] values = new IntList[1024];
+        private int size;
+
+        void add(long key, int doc) {
+            int slot = slot(keys, values, key);
+            if (values[slot] == null) {
+                keys[slot] = key;
+                values[slot] = new IntList();
+                if (++size * 2 > keys.length) {
+                    grow();
+                    slot = slot(keys, values, key);
+                }
+            }
+            values[slot].add(doc);
+        }
+
+        IntList get(long key) {
+            return values[slot(keys, values, key)];
+        }
+
+        private static int slot(long[] keys, IntList[] values, long key) {
+            int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (values[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            IntList[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new IntList[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = slot(keys, values, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
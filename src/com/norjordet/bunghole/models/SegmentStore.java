@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.maxprograms.xml.Element;
+
+/**
+ * Read-only source of the segments of a project file. Segments are
+ * materialized one at a time when they are needed instead of keeping the
+ * whole project in memory.
+ */
+public interface SegmentStore {
+
+    int SOURCES = 0;
+    int TARGETS = 1;
+
+    String getLanguage(int side);
+
+    int count(int side);
+
+    /**
+     * Build a new element for a record; the caller may keep but not modify it
+     */
+    Element load(int side, int record) throws IOException;
+
+    /**
+     * Write records [from, to) as XML, each one preceded by the separator
+     */
+    default void write(int side, int from, int to, byte[] separator, OutputStream out) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.write(separator);
+            load(side, i).writeBytes(out, StandardCharsets.UTF_8);
+        }
+    }
+}
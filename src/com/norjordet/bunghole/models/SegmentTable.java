@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.norjordet.bunghole.models.Alignment.SegmentInfo;
+
+/**
+ * Quality information for every segment pair, stored column by column.
+ *
+ * Confidences live in a double array, flags in bitsets and alignment methods
+ * as indexes into a table of distinct method names. The set of uncertain rows
+ * and a confidence histogram are kept up to date on every change, so lookups
+ * such as "next uncertain row" or the uncertain count do not scan the project.
+ *
+ * Only the writer modifies a table; readers get a copy through the published
+ * snapshot.
+ */
+public final class SegmentTable {
+
+    public static final double UNCERTAIN_THRESHOLD = 0.75;
+    public static final int BUCKETS = 10;
+
+    private double[] confidence;
+    private int[] method;
+    private BitSet known;
+    private BitSet manual;
+    private BitSet aiReviewed;
+    private BitSet uncertain;
+    private int[] histogram;
+    private List<String> methods;
+    private Map<String, Integer> methodIndex;
+
+    public SegmentTable() {
+        confidence = new double[64];
+        method = new int[64];
+        known = new BitSet();
+        manual = new BitSet();
+        aiReviewed = new BitSet();
+        uncertain = new BitSet();
+        histogram = new int[BUCKETS];
+        methods = new ArrayList<>();
+        methodIndex = new HashMap<>();
+        intern("");
+    }
+
+    private SegmentTable(SegmentTable other) {
+        confidence = other.confidence.clone();
+        method = other.method.clone();
+        known = (BitSet) other.known.clone();
+        manual = (BitSet) other.manual.clone();
+        aiReviewed = (BitSet) other.aiReviewed.clone();
+        uncertain = (BitSet) other.uncertain.clone();
+        histogram = other.histogram.clone();
+        methods = new ArrayList<>(other.methods);
+        methodIndex = new HashMap<>(other.methodIndex);
+    }
+
+    SegmentTable copy() {
+        return new SegmentTable(this);
+    }
+
+    private int intern(String name) {
+        String key = name == null ? "" : name;
+        Integer index = methodIndex.get(key);
+        if (index == null) {
+            index = methods.size();
+            methods.add(key);
+            methodIndex.put(key, index);
+        }
+        return index;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id >= confidence.length) {
+            int size = Math.max(id + 1, confidence.length * 2);
+            confidence = Arrays.copyOf(confidence, size);
+            method = Arrays.copyOf(method, size);
+        }
+    }
+
+    private static int bucket(double value) {
+        int b = (int) (value * BUCKETS);
+        return Math.max(0, Math.min(BUCKETS - 1, b));
+    }
+
+    /**
+     * Refresh the uncertain index for a row after it changed
+     */
+    private void index(int id) {
+        uncertain.set(id, confidence[id] < UNCERTAIN_THRESHOLD || manual.get(id));
+    }
+
+    /**
+     * Make sure a row has an entry, starting from the default values of
+     * SegmentInfo
+     */
+    private void touch(int id) {
+        if (!known.get(id)) {
+            ensureCapacity(id);
+            known.set(id);
+            confidence[id] = 0.5;
+            method[id] = 0;
+            manual.clear(id);
+            aiReviewed.clear(id);
+            histogram[bucket(0.5)]++;
+            uncertain.set(id);
+        }
+    }
+
+    void setConfidence(int id, double value) {
+        touch(id);
+        histogram[bucket(confidence[id])]--;
+        confidence[id] = value;
+        histogram[bucket(value)]++;
+        index(id);
+    }
+
+    void setMethod(int id, String name) {
+        touch(id);
+        method[id] = intern(name);
+    }
+
+    void setManual(int id, boolean marked) {
+        touch(id);
+        manual.set(id, marked);
+        index(id);
+    }
+
+    void setAIReviewed(int id, boolean reviewed) {
+        touch(id);
+        aiReviewed.set(id, reviewed);
+    }
+
+    /**
+     * Give a row the values of info again, or make it unscored when info is
+     * null; used to undo changes
+     */
+    void restore(int id, SegmentInfo info) {
+        if (info == null) {
+            if (contains(id)) {
+                histogram[bucket(confidence[id])]--;
+                known.clear(id);
+                manual.clear(id);
+                aiReviewed.clear(id);
+                uncertain.clear(id);
+            }
+            return;
+        }
+        setConfidence(id, info.confidence);
+        setMethod(id, info.method);
+        setManual(id, info.manuallyMarked);
+        setAIReviewed(id, info.aiReviewed);
+    }
+
+    /**
+     * Drop the given rows and move the ones after them up, as done with the
+     * segment lists
+     */
+    void removeRows(BitSet removed) {
+        int rows = Math.max(known.length(), Math.max(manual.length(), aiReviewed.length()));
+        double[] keptConfidence = new double[confidence.length];
+        int[] keptMethod = new int[method.length];
+        BitSet keptKnown = new BitSet();
+        BitSet keptManual = new BitSet();
+        BitSet keptReviewed = new BitSet();
+        BitSet keptUncertain = new BitSet();
+        int kept = 0;
+        for (int id = 0; id < rows; id++) {
+            if (removed.get(id)) {
+                if (known.get(id)) {
+                    histogram[bucket(confidence[id])]--;
+                }
+                continue;
+            }
+            if (known.get(id)) {
+                keptKnown.set(kept);
+                keptConfidence[kept] = confidence[id];
+                keptMethod[kept] = method[id];
+            }
+            keptManual.set(kept, manual.get(id));
+            keptReviewed.set(kept, aiReviewed.get(id));
+            keptUncertain.set(kept, uncertain.get(id));
+            kept++;
+        }
+        confidence = keptConfidence;
+        method = keptMethod;
+        known = keptKnown;
+        manual = keptManual;
+        aiReviewed = keptReviewed;
+        uncertain = keptUncertain;
+    }
+
+    public boolean contains(int id) {
+        return id >= 0 && known.get(id);
+    }
+
+    /**
+     * Confidence of a row, 1.0 when the row was never scored
+     */
+    public double getConfidence(int id) {
+        return contains(id) ? confidence[id] : 1.0;
+    }
+
+    public boolean isManual(int id) {
+        return id >= 0 && manual.get(id);
+    }
+
+    public boolean isAIReviewed(int id) {
+        return id >= 0 && aiReviewed.get(id);
+    }
+
+    public boolean isUncertain(int id) {
+        return id >= 0 && uncertain.get(id);
+    }
+
+    public String getMethod(int id) {
+        return contains(id) ? methods.get(method[id]) : "";
+    }
+
+    /**
+     * Values of a row for display, or null when the row was never scored
+     */
+    public SegmentInfo get(int id) {
+        if (!contains(id)) {
+            return null;
+        }
+        SegmentInfo info = new SegmentInfo(confidence[id], methods.get(method[id]));
+        info.manuallyMarked = manual.get(id);
+        info.aiReviewed = aiReviewed.get(id);
+        return info;
+    }
+
+    /**
+     * Uncertain rows below a limit, in order
+     */
+    public List<Integer> getUncertain(int limit) {
+        List<Integer> result = new ArrayList<>(Math.min(uncertain.cardinality(), limit));
+        for (int i = uncertain.nextSetBit(0); i >= 0 && i < limit; i = uncertain.nextSetBit(i + 1)) {
+            result.add(i);
+        }
+        return result;
+    }
+
+    /**
+     * First uncertain row after the given one, wrapping around at the end;
+     * -1 when there are none below the limit
+     */
+    public int nextUncertain(int after, int limit) {
+        int next = uncertain.nextSetBit(Math.max(0, after + 1));
+        if (next < 0 || next >= limit) {
+            next = uncertain.nextSetBit(0);
+        }
+        return next >= 0 && next < limit ? next : -1;
+    }
+
+    /**
+     * Last uncertain row before the given one, wrapping around at the start;
+     * -1 when there are none below the limit
+     */
+    public int previousUncertain(int before, int limit) {
+        int previous = before > 0 ? uncertain.previousSetBit(Math.min(before, limit) - 1) : -1;
+        if (previous < 0) {
+            previous = uncertain.previousSetBit(limit - 1);
+        }
+        return previous;
+    }
+
+    public int countUncertain(int limit) {
+        return uncertain.get(0, Math.max(0, limit)).cardinality();
+    }
+
+    public int countManual() {
+        return manual.cardinality();
+    }
+
+    public int countAIReviewed() {
+        return aiReviewed.cardinality();
+    }
+
+    /**
+     * Number of scored rows in each tenth of the confidence range
+     */
+    public int[] getHistogram() {
+        return histogram.clone();
+    }
+
+    BitSet uncertainRows() {
+        return uncertain;
+    }
+
+    BitSet manualRows() {
+        return manual;
+    }
+
+    BitSet aiReviewedRows() {
+        return aiReviewed;
+    }
+
+    BitSet scoredRows() {
+        return known;
+    }
+
+    /**
+     * Index of a method name in the table, or -1 when no row uses it
+     */
+    int methodId(String name) {
+        Integer index = methodIndex.get(name == null ? "" : name);
+        return index != null ? index : -1;
+    }
+
+    int methodAt(int id) {
+        return contains(id) ? method[id] : 0;
+    }
+
+    public boolean isEmpty() {
+        return known.isEmpty();
+    }
+
+    /**
+     * Store the table in the binary project snapshot
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(methods.size());
+        for (String name : methods) {
+            out.writeUTF(name);
+        }
+        int rows = known.length();
+        out.writeInt(rows);
+        for (int id = 0; id < rows; id++) {
+            int flags = (known.get(id) ? 1 : 0) | (manual.get(id) ? 2 : 0) | (aiReviewed.get(id) ? 4 : 0);
+            out.writeByte(flags);
+            if ((flags & 1) != 0) {
+                out.writeDouble(confidence[id]);
+                out.writeInt(method[id]);
+            }
+        }
+    }
+
+    static SegmentTable read(DataInput in) throws IOException {
+        SegmentTable table = new SegmentTable();
+        int count = in.readInt();
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+        }
+        int rows = in.readInt();
+        for (int id = 0; id < rows; id++) {
+            int flags = in.readByte();
+            if ((flags & 1) != 0) {
+                table.setConfidence(id, in.readDouble());
+                table.setMethod(id, names[in.readInt()]);
+                table.setManual(id, (flags & 2) != 0);
+                table.setAIReviewed(id, (flags & 4) != 0);
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.TextNode;
+import com.maxprograms.xml.XMLNode;
+import com.maxprograms.xml.XMLUtils;
+import com.norjordet.bunghole.Constants;
+
+/**
+ * Writes TMX 1.4 one translation unit at a time.
+ *
+ * Segment content is converted on the node model: text is kept, ph elements
+ * lose their attributes, g elements are replaced by their text and white space
+ * at both ends of the segment is removed. The output has the same layout as
+ * an indented TMX document.
+ */
+public final class TmxWriter implements Closeable {
+
+    private static final int BUFFER = 1 << 16;
+
+    private final Writer out;
+    private final String srcLang;
+    private final String tgtLang;
+    private long tuid;
+
+    public TmxWriter(OutputStream stream, String srcLang, String tgtLang) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER);
+        this.srcLang = srcLang;
+        this.tgtLang = tgtLang;
+        this.tuid = System.currentTimeMillis();
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+        out.write("<!DOCTYPE tmx PUBLIC \"-//LISA OSCAR:1998//DTD for Translation Memory eXchange//EN\" \"tmx14.dtd\">\n");
+        out.write("<tmx version=\"1.4\">\n");
+        out.write("  <header creationtool=\"Bunghole\" creationtoolversion=\"" + Constants.VERSION
+                + "\" datatype=\"unknown\" segtype=\"block\" adminlang=\"en\" srclang=\"*all*\" o-tmf=\"XLIFF\"/>\n");
+        out.write("  <body>\n");
+    }
+
+    /**
+     * Stream for a TMX file, compressed with gzip if requested
+     */
+    public static OutputStream open(Path file, boolean gzip) throws IOException {
+        OutputStream stream = Files.newOutputStream(file);
+        return gzip ? new GZIPOutputStream(stream, BUFFER) : stream;
+    }
+
+    public void writeUnit(Element source, Element target) throws IOException {
+        writeUnit(segContent(source), segContent(target));
+    }
+
+    /**
+     * Write a unit from seg content that is already converted
+     */
+    public void writeUnit(String source, String target) throws IOException {
+        out.write("    <tu tuid=\"");
+        out.write(Long.toString(tuid++));
+        out.write("\">\n");
+        writeTuv(srcLang, source);
+        writeTuv(tgtLang, target);
+        out.write("    </tu>\n");
+    }
+
+    private void writeTuv(String lang, String content) throws IOException {
+        out.write("      <tuv xml:lang=\"");
+        out.write(lang);
+        out.write("\">\n");
+        if (content.isEmpty()) {
+            out.write("        <seg/>\n");
+        } else {
+            out.write("        <seg>");
+            out.write(content);
+            out.write("</seg>\n");
+        }
+        out.write("      </tuv>\n");
+    }
+
+    /**
+     * Escaped TMX content for a segment, trimmed at both ends
+     */
+    public static String segContent(Element element) {
+        List<XMLNode> nodes = new ArrayList<>();
+        for (XMLNode node : element.getContent()) {
+            if (node.getNodeType() == XMLNode.TEXT_NODE || node.getNodeType() == XMLNode.ELEMENT_NODE) {
+                nodes.add(node);
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        int last = nodes.size() - 1;
+        for (int i = 0; i <= last; i++) {
+            XMLNode node = nodes.get(i);
+            if (node.getNodeType() == XMLNode.TEXT_NODE) {
+                String text = ((TextNode) node).getText();
+                if (i == 0) {
+                    text = text.stripLeading();
+                }
+                if (i == last) {
+                    text = text.stripTrailing();
+                }
+                result.append(XMLUtils.cleanText(text));
+                continue;
+            }
+            Element e = (Element) node;
+            if ("ph".equals(e.getName())) {
+                Element ph = new Element("ph");
+                ph.setContent(e.getContent());
+                result.append(ph.toString());
+            } else if ("g".equals(e.getName())) {
+                result.append(XMLUtils.cleanText(Alignment.getPureText(e)));
+            }
+        }
+        return result.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.write("  </body>\n");
+        out.write("</tmx>");
+        out.close();
+    }
+}
@@ -0,0 +1,529 @@
+/*******************************************************************************
+ * Copyright (c) 2008 - 2025 Håvard Nørjordet.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License 1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/org/documents/epl-v10.html
+ *
+ * Contributors:
+ *     Håvard Nørjordet - initial API and implementation
+ *******************************************************************************/
+
+package com.norjordet.bunghole.models;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import com.maxprograms.xml.Element;
+import com.maxprograms.xml.SAXBuilder;
+import com.maxprograms.xml.TextNode;
+
+/**
+ * Segments of an .algn project file, read in place.
+ *
+ * Opening scans the file once and records where each segment starts and ends.
+ * Segments are then parsed from the file when needed. The file is read with
+ * positional reads instead of being mapped, so an atomic save can replace it
+ * while the store is still in use (mapped files are locked on Windows).
+ */
+public final class XmlSegmentStore implements SegmentStore {
+
+    // Projects below this size are parsed into memory as before
+    public static final long LAZY_THRESHOLD = 8L * 1024 * 1024;
+
+    private static final int BLOCK = 1024 * 1024;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final FileChannel channel;
+    private final String[] languages = new String[2];
+    private final long[][] starts = new long[2][];
+    private final int[][] lengths = new int[2][];
+    private final int[] counts = new int[2];
+
+    private XmlSegmentStore(FileChannel channel) {
+        this.channel = channel;
+        for (int side = 0; side < 2; side++) {
+            starts[side] = new long[1024];
+            lengths[side] = new int[1024];
+        }
+        CLEANER.register(this, new Closer(channel));
+    }
+
+    private static final class Closer implements Runnable {
+        private final FileChannel channel;
+
+        Closer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    /**
+     * Index a project file, or return null when it should be parsed in memory
+     * (small files, other encodings, DTDs or an unexpected layout)
+     */
+    public static XmlSegmentStore open(Path file) throws IOException {
+        if (Files.size(file) < LAZY_THRESHOLD) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        XmlSegmentStore store = new XmlSegmentStore(channel);
+        if (!new Scanner(channel, store).scan()) {
+            channel.close();
+            return null;
+        }
+        return store;
+    }
+
+    @Override
+    public String getLanguage(int side) {
+        return languages[side];
+    }
+
+    @Override
+    public int count(int side) {
+        return counts[side];
+    }
+
+    private void addRecord(int side, long start, long end) {
+        int n = counts[side];
+        if (n == starts[side].length) {
+            starts[side] = Arrays.copyOf(starts[side], n * 2);
+            lengths[side] = Arrays.copyOf(lengths[side], n * 2);
+        }
+        starts[side][n] = start;
+        lengths[side][n] = (int) (end - start);
+        counts[side] = n + 1;
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of project file");
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public Element load(int side, int record) throws IOException {
+        return parse(read(starts[side][record], lengths[side][record]));
+    }
+
+    /**
+     * Build an element from its UTF-8 serialization
+     */
+    static Element parse(byte[] bytes) throws IOException {
+        String xml = new String(bytes, StandardCharsets.UTF_8);
+        Element element = xml.contains("<!") || xml.contains("<?") ? null : parseFragment(xml);
+        if (element != null) {
+            return element;
+        }
+        try {
+            return new SAXBuilder().build(new ByteArrayInputStream(bytes)).getRootElement();
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(int side, int from, int to, byte[] separator, OutputStream out) throws IOException {
+        long[] start = starts[side];
+        int[] length = lengths[side];
+        int i = from;
+        while (i < to) {
+            // read as many neighbouring records as fit in one block
+            long blockStart = start[i];
+            int j = i + 1;
+            while (j < to && start[j] + length[j] - blockStart <= BLOCK) {
+                j++;
+            }
+            byte[] block = read(blockStart, (int) (start[j - 1] + length[j - 1] - blockStart));
+            for (int k = i; k < j; k++) {
+                out.write(separator);
+                out.write(block, (int) (start[k] - blockStart), length[k]);
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * Parse a segment without the cost of a SAX parser. Returns null for
+     * content it does not handle, so the caller can fall back to SAXBuilder.
+     */
+    private static Element parseFragment(String xml) {
+        Deque<Element> stack = new ArrayDeque<>();
+        Element root = null;
+        StringBuilder text = new StringBuilder();
+        int i = 0;
+        int n = xml.length();
+        while (i < n) {
+            char c = xml.charAt(i);
+            if (c != '<') {
+                int next = xml.indexOf('<', i);
+                if (next < 0) {
+                    next = n;
+                }
+                if (!decode(xml, i, next, text)) {
+                    return null;
+                }
+                i = next;
+                continue;
+            }
+            if (!stack.isEmpty() && text.length() > 0) {
+                stack.peek().addContent(new TextNode(text.toString()));
+            }
+            text.setLength(0);
+            int close = xml.indexOf('>', i);
+            if (close < 0) {
+                return null;
+            }
+            if (xml.charAt(i + 1) == '/') {
+                if (stack.isEmpty()) {
+                    return null;
+                }
+                stack.pop();
+                i = close + 1;
+                continue;
+            }
+            int j = i + 1;
+            while (j < n && !isNameEnd(xml.charAt(j))) {
+                j++;
+            }
+            Element element = new Element(xml.substring(i + 1, j));
+            boolean empty = false;
+            while (true) {
+                while (j < n && Character.isWhitespace(xml.charAt(j))) {
+                    j++;
+                }
+                if (j >= n) {
+                    return null;
+                }
+                if (xml.charAt(j) == '>') {
+                    break;
+                }
+                if (xml.charAt(j) == '/') {
+                    empty = true;
+                    j = xml.indexOf('>', j);
+                    if (j < 0) {
+                        return null;
+                    }
+                    break;
+                }
+                int eq = xml.indexOf('=', j);
+                if (eq < 0) {
+                    return null;
+                }
+                String name = xml.substring(j, eq).trim();
+                int q = eq + 1;
+                while (q < n && Character.isWhitespace(xml.charAt(q))) {
+                    q++;
+                }
+                if (q >= n || (xml.charAt(q) != '"' && xml.charAt(q) != '\'')) {
+                    return null;
+                }
+                int end = xml.indexOf(xml.charAt(q), q + 1);
+                if (end < 0) {
+                    return null;
+                }
+                StringBuilder value = new StringBuilder();
+                if (!decode(xml, q + 1, end, value)) {
+                    return null;
+                }
+                element.setAttribute(name, value.toString().replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+                j = end + 1;
+            }
+            if (stack.isEmpty()) {
+                if (root != null) {
+                    return null;
+                }
+                root = element;
+            } else {
+                stack.peek().addContent(element);
+            }
+            if (!empty) {
+                stack.push(element);
+            }
+            i = j + 1;
+        }
+        return stack.isEmpty() ? root : null;
+    }
+
+    private static boolean isNameEnd(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+
+    /**
+     * Append text with entity references resolved; false for references
+     * that need a DTD
+     */
+    private static boolean decode(String xml, int from, int to, StringBuilder out) {
+        int i = from;
+        while (i < to) {
+            char c = xml.charAt(i);
+            if (c != '&') {
+                out.append(c);
+                i++;
+                continue;
+            }
+            int semi = xml.indexOf(';', i);
+            if (semi < 0 || semi > to) {
+                return false;
+            }
+            String entity = xml.substring(i + 1, semi);
+            switch (entity) {
+                case "lt":
+                    out.append('<');
+                    break;
+                case "gt":
+                    out.append('>');
+                    break;
+                case "amp":
+                    out.append('&');
+                    break;
+                case "quot":
+                    out.append('"');
+                    break;
+                case "apos":
+                    out.append('\'');
+                    break;
+                default:
+                    if (!entity.startsWith("#")) {
+                        return false;
+                    }
+                    try {
+                        int code = entity.startsWith("#x") ? Integer.parseInt(entity.substring(2), 16)
+                                : Integer.parseInt(entity.substring(1));
+                        out.appendCodePoint(code);
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+            }
+            i = semi + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Single pass over the file that records the byte range of every child
+     * of &lt;sources&gt; and &lt;targets&gt;
+     */
+    private static final class Scanner {
+
+        private final FileChannel channel;
+        private final XmlSegmentStore store;
+        private final byte[] buffer = new byte[BLOCK];
+        private final ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        private long offset;
+        private int pos;
+        private int limit;
+
+        Scanner(FileChannel channel, XmlSegmentStore store) {
+            this.channel = channel;
+            this.store = store;
+        }
+
+        private boolean fill() throws IOException {
+            offset += limit;
+            wrapper.clear();
+            int read = channel.read(wrapper, offset);
+            pos = 0;
+            limit = Math.max(read, 0);
+            return read > 0;
+        }
+
+        private long position() {
+            return offset + pos;
+        }
+
+        private int next() throws IOException {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            return buffer[pos++] & 0xFF;
+        }
+
+        /**
+         * Move past the next occurrence of a byte
+         */
+        private boolean skipTo(byte b) throws IOException {
+            while (true) {
+                byte[] data = buffer;
+                int end = limit;
+                for (int i = pos; i < end; i++) {
+                    if (data[i] == b) {
+                        pos = i + 1;
+                        return true;
+                    }
+                }
+                pos = end;
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        private boolean skipPast(String terminator) throws IOException {
+            int matched = 0;
+            int b;
+            while ((b = next()) != -1) {
+                if (b == terminator.charAt(matched)) {
+                    matched++;
+                    if (matched == terminator.length()) {
+                        return true;
+                    }
+                } else {
+                    matched = b == terminator.charAt(0) ? 1 : 0;
+                }
+            }
+            return false;
+        }
+
+        boolean scan() throws IOException {
+            int depth = 0;
+            int section = -1;
+            long recordStart = 0;
+            boolean rootSeen = false;
+            boolean[] sectionSeen = new boolean[2];
+            int b;
+            while (skipTo((byte) '<')) {
+                long tagStart = position() - 1;
+                b = next();
+                if (b == '?') {
+                    StringBuilder declaration = new StringBuilder();
+                    int prev = 0;
+                    while ((b = next()) != -1 && !(prev == '?' && b == '>')) {
+                        declaration.append((char) b);
+                        prev = b;
+                    }
+                    String decl = declaration.toString().toLowerCase(Locale.ROOT);
+                    if (!rootSeen && decl.startsWith("xml") && decl.contains("encoding")
+                            && !decl.contains("utf-8")) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (b == '!') {
+                    b = next();
+                    if (b == '-') {
+                        if (!skipPast("-->")) {
+                            return false;
+                        }
+                    } else if (b == '[') {
+                        if (!skipPast("]]>")) {
+                            return false;
+                        }
+                    } else {
+                        // DOCTYPE: entities may be declared, use the full parser
+                        return false;
+                    }
+                    continue;
+                }
+                if (b == '/') {
+                    if (!skipTo((byte) '>')) {
+                        return false;
+                    }
+                    depth--;
+                    if (depth == 2 && section >= 0) {
+                        store.addRecord(section, recordStart, position());
+                    } else if (depth == 1) {
+                        section = -1;
+                    }
+                    continue;
+                }
+                StringBuilder tag = depth < 2 ? new StringBuilder() : null;
+                int quote = 0;
+                int prev = b;
+                if (tag != null) {
+                    tag.append((char) b);
+                }
+                while ((b = next()) != -1) {
+                    if (quote != 0) {
+                        if (b == quote) {
+                            quote = 0;
+                        }
+                    } else if (b == '"' || b == '\'') {
+                        quote = b;
+                    } else if (b == '>') {
+                        break;
+                    }
+                    if (tag != null) {
+                        tag.append((char) b);
+                    }
+                    prev = b;
+                }
+                if (b == -1) {
+                    return false;
+                }
+                boolean empty = prev == '/';
+                if (depth == 0) {
+                    if (!tag.toString().startsWith("algnproject")) {
+                        return false;
+                    }
+                    rootSeen = true;
+                } else if (depth == 1) {
+                    String text = tag.toString();
+                    section = text.startsWith("sources") ? SOURCES : text.startsWith("targets") ? TARGETS : -1;
+                    if (section >= 0) {
+                        String lang = attribute(text, "xml:lang");
+                        if (lang == null) {
+                            return false;
+                        }
+                        store.languages[section] = lang;
+                        sectionSeen[section] = true;
+                        if (empty) {
+                            section = -1;
+                        }
+                    }
+                } else if (depth == 2 && section >= 0) {
+                    recordStart = tagStart;
+                    if (empty) {
+                        store.addRecord(section, tagStart, position());
+                    }
+                }
+                if (!empty) {
+                    depth++;
+                }
+            }
+            return rootSeen && depth == 0 && sectionSeen[SOURCES] && sectionSeen[TARGETS];
+        }
+
+        private static String attribute(String tag, String name) {
+            int index = tag.indexOf(name + "=");
+            if (index < 0) {
+                return null;
+            }
+            int q = index + name.length() + 1;
+            char quote = tag.charAt(q);
+            int end = tag.indexOf(quote, q + 1);
+            return end < 0 ? null : tag.substring(q + 1, end);
+        }
+    }
+}
@@ -17,6 +17,7 @@ module bunghole {
 	requires javabcp47;
 	requires java.base;
 	requires java.xml;
+	requires java.net.http;
 	requires transitive openxliff;
 	requires transitive jdk.httpserver;
 	requires transitive json;
@@ -1980,8 +1980,29 @@ class Bunghole {
         Bunghole.mainWindow.webContents.send('start-waiting');
         Bunghole.mainWindow.webContents.send('set-status', 'AI is reviewing alignments...');
 
+        // Fixes are applied while the answers stream in; show them as they come
+        let shownFixes: number = 0;
+        let intervalObject = setInterval(() => {
+            this.sendRequest('/aiReviewStatus', {},
+                (data: any) => {
+                    if (data.reviewing && data.prompts > 0) {
+                        Bunghole.mainWindow.webContents.send('set-status', `AI is reviewing alignments... ` +
+                            `${data.promptsDone}/${data.prompts} prompts, ${data.improved} fixes`);
+                    }
+                    if (data.improved > shownFixes) {
+                        shownFixes = data.improved;
+                        Bunghole.mainWindow.webContents.send('refresh-page');
+                    }
+                },
+                () => {
+                    // the final answer reports any error
+                }
+            );
+        }, 1000);
+
         this.sendRequest('/improveWithAI', {},
             (data: any) => {
+                clearInterval(intervalObject);
                 Bunghole.mainWindow.webContents.send('end-waiting');
                 Bunghole.mainWindow.webContents.send('set-status', '');
 
@@ -2011,6 +2032,7 @@ class Bunghole {
                 }
             },
             (reason: string) => {
+                clearInterval(intervalObject);
                 Bunghole.mainWindow.webContents.send('end-waiting');
                 Bunghole.mainWindow.webContents.send('set-status', '');
 